@@ -0,0 +1,107 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import javax.swing.JComponent;
+import paintapp.benchmarks.CanvasDriver;
+
+// the implementation of CanvasDriver, it is in the default package like the application classes
+// and can use their package-private methods
+public class CanvasBridge implements CanvasDriver
+{
+    private ShapeStore shapes = new ShapeStore(); // shapes created by createShape()
+
+    @Override
+    public BufferedImage deepCopy(BufferedImage image)
+    {
+        return ImageUtils.deepCopy(image);
+    }
+
+    @Override
+    public int createShape(int type, int x1, int y1, int x2, int y2, Color color, int size)
+    {
+        return shapes.add(x1, y1, x2, y2, color, size, type);
+    }
+
+    @Override
+    public void drawShape(int id, Graphics2D g2d)
+    {
+        shapes.draw(id, g2d);
+    }
+
+    @Override
+    public boolean shapeContains(int id, int x, int y)
+    {
+        return shapes.contains(id, x, y);
+    }
+
+    @Override
+    public JComponent createCanvas(int width, int height)
+    {
+        PaintCanvas canvas = new PaintCanvas(width, height);
+        canvas.setSize(width, height); // the canvas is not in a window, paintComponent needs a size
+        return canvas;
+    }
+
+    @Override
+    public void dispose(JComponent canvas)
+    {
+        ((PaintCanvas) canvas).dispose();
+    }
+
+    @Override
+    public void addShape(JComponent canvas, int type, int x1, int y1, int x2, int y2, Color color, int size)
+    {
+        ((PaintCanvas) canvas).addShape(x1, y1, x2, y2, color, size, type);
+    }
+
+    @Override
+    public void eraseShapesAt(JComponent canvas, int x, int y, double radius)
+    {
+        ((PaintCanvas) canvas).eraseShapesAt(x, y, radius);
+    }
+
+    @Override
+    public void saveStateToUndoStack(JComponent canvas)
+    {
+        ((PaintCanvas) canvas).saveStateToUndoStack();
+    }
+
+    @Override
+    public void undo(JComponent canvas)
+    {
+        ((PaintCanvas) canvas).undo();
+    }
+
+    @Override
+    public void redo(JComponent canvas)
+    {
+        ((PaintCanvas) canvas).redo();
+    }
+
+    @Override
+    public void drag(JComponent canvas, int tool, int[] points)
+    {
+        ((PaintCanvas) canvas).setActiveTool(tool);
+        int last = points.length - 2;
+        // the listeners are called directly by dispatchEvent, no window or event queue is needed
+        canvas.dispatchEvent(mouseEvent(canvas, MouseEvent.MOUSE_PRESSED, points[0], points[1]));
+        for (int i = 2; i <= last; i += 2)
+        {
+            canvas.dispatchEvent(mouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, points[i], points[i + 1]));
+        }
+        canvas.dispatchEvent(mouseEvent(canvas, MouseEvent.MOUSE_RELEASED, points[last], points[last + 1]));
+    }
+
+    @Override
+    public void paintComponent(JComponent canvas, Graphics2D g2d)
+    {
+        ((PaintCanvas) canvas).paintComponent(g2d);
+    }
+
+    private static MouseEvent mouseEvent(JComponent canvas, int id, int x, int y)
+    {
+        return new MouseEvent(canvas, id, 0, InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1);
+    }
+}
@@ -0,0 +1,55 @@
+package paintapp.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import javax.swing.JComponent;
+
+// the classes of the application are in the default package, which cannot be imported from a package,
+// and JMH only accepts benchmarks that are in a package, so the benchmarks call the application
+// through this interface, it is implemented by CanvasBridge in the default package
+// shapes are identified by their id in a ShapeStore, like in the application
+public interface CanvasDriver
+{
+    // loads the implementation, it is the only class of the benchmarks that can use the application classes
+    static CanvasDriver load()
+    {
+        try {
+            return (CanvasDriver) Class.forName("CanvasBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CanvasBridge is missing from the class path", e);
+        }
+    }
+
+    BufferedImage deepCopy(BufferedImage image);
+
+    // adds a shape to a store that is not shown on a canvas and returns its id
+    int createShape(int type, int x1, int y1, int x2, int y2, Color color, int size);
+
+    void drawShape(int id, Graphics2D g2d);
+
+    boolean shapeContains(int id, int x, int y);
+
+    // a canvas with the given size, like the one shown in the window
+    JComponent createCanvas(int width, int height);
+
+    // stops the threads of the canvas and deletes its scratch files
+    void dispose(JComponent canvas);
+
+    void addShape(JComponent canvas, int type, int x1, int y1, int x2, int y2, Color color, int size);
+
+    void eraseShapesAt(JComponent canvas, int x, int y, double radius);
+
+    void saveStateToUndoStack(JComponent canvas);
+
+    // undo and redo wait for the strokes that are still drawn in the background
+    void undo(JComponent canvas);
+
+    void redo(JComponent canvas);
+
+    // presses the mouse at the first point, drags it through the others and releases it at the last one,
+    // points holds x, y pairs
+    void drag(JComponent canvas, int tool, int[] points);
+
+    void paintComponent(JComponent canvas, Graphics2D g2d);
+}
@@ -0,0 +1,69 @@
+package paintapp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import javax.swing.JComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PaintCanvas.eraseShapesAt with many shapes on the canvas
+// erasing removes shapes, so every iteration starts with a new canvas with the same shapes
+// and measures one batch of eraser positions as a whole
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = EraserBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = EraserBenchmark.BATCH)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms2g", "-Xmx2g"})
+public class EraserBenchmark
+{
+    static final int BATCH = 200; // eraser positions per iteration
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    @Param({"1000", "10000", "100000"})
+    public int shapeCount;
+
+    private CanvasDriver driver = CanvasDriver.load();
+    private int[][] shapes;
+    private int[] points = Fixtures.points(BATCH, WIDTH, HEIGHT, Fixtures.SEED + 2);
+    private JComponent canvas;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createShapes()
+    {
+        shapes = Fixtures.shapes(shapeCount, 0, WIDTH, HEIGHT, 64, Fixtures.SEED);
+    }
+
+    @Setup(Level.Iteration)
+    public void createCanvas()
+    {
+        canvas = driver.createCanvas(WIDTH, HEIGHT);
+        Fixtures.addTo(driver, canvas, shapes);
+        next = 0;
+    }
+
+    // every iteration makes a new canvas, the old one would keep its render thread and its metrics bean
+    @TearDown(Level.Iteration)
+    public void disposeCanvas()
+    {
+        driver.dispose(canvas);
+    }
+
+    @Benchmark
+    public void eraseShapesAt()
+    {
+        int point = next++ * 2;
+        driver.eraseShapesAt(canvas, points[point], points[point + 1], 10);
+    }
+}
@@ -0,0 +1,94 @@
+package paintapp.benchmarks;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import javax.swing.JComponent;
+
+// test data shared by the benchmarks, everything is created from fixed seeds,
+// so every run measures the same shapes, points and pixels
+final class Fixtures
+{
+    static final long SEED = 42;
+    private static final Color[] COLORS = {Color.BLACK, Color.RED, Color.BLUE, Color.GREEN, Color.ORANGE};
+
+    private Fixtures()
+    {
+    }
+
+    // shapes of the given type (or of all types 1..4 if type is 0) spread over the area,
+    // every shape is {type, x1, y1, x2, y2, color index, stroke width}
+    static int[][] shapes(int count, int type, int width, int height, int maxSize, long seed)
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[][] shapes = new int[count][];
+        for (int i = 0; i < count; i++)
+        {
+            int x1 = random.nextInt(width);
+            int y1 = random.nextInt(height);
+            int x2 = Math.min(width - 1, x1 + 1 + random.nextInt(maxSize));
+            int y2 = Math.min(height - 1, y1 + 1 + random.nextInt(maxSize));
+            int shapeType = type == 0 ? 1 + random.nextInt(4) : type;
+            shapes[i] = new int[] {shapeType, x1, y1, x2, y2, i % COLORS.length, 1 + random.nextInt(8)};
+        }
+        return shapes;
+    }
+
+    // creates the shapes in the store of the driver and returns their ids
+    static int[] create(CanvasDriver driver, int[][] shapes)
+    {
+        int[] ids = new int[shapes.length];
+        for (int i = 0; i < shapes.length; i++)
+        {
+            int[] s = shapes[i];
+            ids[i] = driver.createShape(s[0], s[1], s[2], s[3], s[4], COLORS[s[5]], s[6]);
+        }
+        return ids;
+    }
+
+    // adds the shapes to the canvas, like drawing them with the mouse
+    static void addTo(CanvasDriver driver, JComponent canvas, int[][] shapes)
+    {
+        for (int[] s : shapes)
+        {
+            driver.addShape(canvas, s[0], s[1], s[2], s[3], s[4], COLORS[s[5]], s[6]);
+        }
+    }
+
+    // x, y pairs inside the area
+    static int[] points(int count, int width, int height, long seed)
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] points = new int[count * 2];
+        for (int i = 0; i < points.length; i += 2)
+        {
+            points[i] = random.nextInt(width);
+            points[i + 1] = random.nextInt(height);
+        }
+        return points;
+    }
+
+    // an ARGB image with noise, so copies cannot take shortcuts on uniform pixels
+    static BufferedImage noise(int width, int height, long seed)
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                row[x] = 0xff000000 | random.nextInt(0x1000000);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    // parses a benchmark parameter like "1920x1080"
+    static int[] size(String size)
+    {
+        int separator = size.indexOf('x');
+        return new int[] {Integer.parseInt(size.substring(0, separator)), Integer.parseInt(size.substring(separator + 1))};
+    }
+}
@@ -0,0 +1,45 @@
+package paintapp.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ImageUtils.deepCopy of the canvas image, it is used by the undo history and before every save
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms2g", "-Xmx2g"})
+public class ImageUtilsBenchmark
+{
+    @Param({"600x600", "1920x1080", "4096x4096"})
+    public String size;
+
+    private CanvasDriver driver;
+    private BufferedImage image;
+
+    @Setup
+    public void setup()
+    {
+        driver = CanvasDriver.load();
+        int[] dimensions = Fixtures.size(size);
+        image = Fixtures.noise(dimensions[0], dimensions[1], Fixtures.SEED);
+    }
+
+    @Benchmark
+    public BufferedImage deepCopy()
+    {
+        return driver.deepCopy(image);
+    }
+}
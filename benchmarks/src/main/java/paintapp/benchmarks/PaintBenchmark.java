@@ -0,0 +1,75 @@
+package paintapp.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PaintCanvas.paintComponent into an offscreen image, for a whole frame and for a small repainted area
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms2g", "-Xmx2g"})
+public class PaintBenchmark
+{
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    @Param({"0", "10000"})
+    public int shapeCount;
+
+    private CanvasDriver driver;
+    private JComponent canvas;
+    private BufferedImage screen;
+    private Graphics2D g2d;
+    private int[] points;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        driver = CanvasDriver.load();
+        canvas = driver.createCanvas(WIDTH, HEIGHT);
+        Fixtures.addTo(driver, canvas, Fixtures.shapes(shapeCount, 0, WIDTH, HEIGHT, 64, Fixtures.SEED));
+        screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        g2d = screen.createGraphics();
+        points = Fixtures.points(256, WIDTH - 64, HEIGHT - 64, Fixtures.SEED + 3);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        g2d.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage fullFrame()
+    {
+        g2d.setClip(0, 0, WIDTH, HEIGHT);
+        driver.paintComponent(canvas, g2d);
+        return screen;
+    }
+
+    // the area repainted for one brush dab or one small shape
+    @Benchmark
+    public BufferedImage dirtyArea()
+    {
+        int point = (next++ & 255) * 2;
+        g2d.setClip(points[point], points[point + 1], 64, 64);
+        driver.paintComponent(canvas, g2d);
+        return screen;
+    }
+}
@@ -0,0 +1,72 @@
+package paintapp.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Shape.draw and Shape.contains for every shape type, 1=Line, 2=Rectangle, 3=Circle, 4=Triangle
+// every call uses the next of 256 shapes and the next of 1024 points, so the branch predictor cannot learn one shape
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms2g", "-Xmx2g"})
+public class ShapeBenchmark
+{
+    private static final int SIZE = 1024;
+
+    @Param({"1", "2", "3", "4"})
+    public int type;
+
+    private CanvasDriver driver;
+    private int[] shapes; // ids
+    private int[] points;
+    private BufferedImage image;
+    private Graphics2D g2d;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        driver = CanvasDriver.load();
+        shapes = Fixtures.create(driver, Fixtures.shapes(256, type, SIZE, SIZE, 256, Fixtures.SEED));
+        points = Fixtures.points(1024, SIZE, SIZE, Fixtures.SEED + 1);
+        image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF); // like the canvas
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        g2d.dispose();
+    }
+
+    @Benchmark
+    public void draw()
+    {
+        driver.drawShape(shapes[next++ & 255], g2d);
+    }
+
+    @Benchmark
+    public boolean contains()
+    {
+        int i = next++;
+        int point = (i & 1023) * 2;
+        return driver.shapeContains(shapes[i & 255], points[point], points[point + 1]);
+    }
+}
@@ -0,0 +1,82 @@
+package paintapp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import javax.swing.JComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// saveStateToUndoStack, undo and redo on a 1920 x 1080 canvas with 1000 shapes
+// the cycles leave the history as they found it, so every call does the same work
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xms2g", "-Xmx2g"})
+public class UndoBenchmark
+{
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    private CanvasDriver driver;
+    private JComponent canvas;
+    private int[] stroke;
+
+    @Setup
+    public void setup()
+    {
+        driver = CanvasDriver.load();
+        canvas = driver.createCanvas(WIDTH, HEIGHT);
+        Fixtures.addTo(driver, canvas, Fixtures.shapes(1000, 0, WIDTH, HEIGHT, 64, Fixtures.SEED));
+        // a free draw stroke across the canvas, it is the operation undone and redone by undoRedo
+        stroke = new int[64];
+        for (int i = 0; i < stroke.length; i += 2)
+        {
+            stroke[i] = 100 + i * 25;
+            stroke[i + 1] = 100 + i * 12;
+        }
+        driver.drag(canvas, 0, stroke);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        driver.dispose(canvas);
+    }
+
+    // restores the tiles under the stroke and draws them again
+    @Benchmark
+    public void undoRedo()
+    {
+        driver.undo(canvas);
+        driver.redo(canvas);
+    }
+
+    // an operation that did not change anything, the cost of starting an operation and undoing it
+    @Benchmark
+    public void saveStateUndo()
+    {
+        driver.saveStateToUndoStack(canvas);
+        driver.undo(canvas);
+    }
+
+    // the whole cycle of a user action: draw a stroke, undo it and redo it
+    // the last undo takes the stroke back, so the history does not grow by one state per call,
+    // the next stroke drops it from the redo stack
+    @Benchmark
+    public void strokeUndoRedo()
+    {
+        driver.drag(canvas, 0, stroke);
+        driver.undo(canvas);
+        driver.redo(canvas);
+        driver.undo(canvas);
+    }
+}
@@ -0,0 +1,221 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// draws images from files of drawing commands without a window and saves them as PNG files
+// usage: java BatchRenderer [-threads n] [-compression 0-9] [command files...]
+// the commands are read from standard input if no file is given
+// a file can hold many documents, every document starts with a line
+//   document <output.png> <width> <height>
+// followed by the commands of CanvasOp, one per line, lines starting with # are ignored
+// the documents are drawn in parallel, one canvas per document
+public class BatchRenderer
+{
+    private static final int REPORT_EVERY = 1000; // images between progress messages
+
+    private ExecutorService pool;
+    private Semaphore queued; // limits the documents that are read but not drawn yet
+    private PngWriter writer;
+    private AtomicInteger written = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+    private long startTime;
+
+    public BatchRenderer(int threads, int compressionLevel)
+    {
+        pool = Executors.newFixedThreadPool(threads);
+        queued = new Semaphore(threads * 4);
+        writer = new PngWriter(compressionLevel);
+        startTime = System.nanoTime();
+    }
+
+    // reads the documents of the command stream and queues them for drawing
+    public void render(Reader in, String name) throws IOException, InterruptedException
+    {
+        BufferedReader reader = new BufferedReader(in);
+        Document document = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            try {
+                if (line.startsWith("document ") || line.equals("document"))
+                {
+                    submit(document);
+                    document = Document.parse(line);
+                }
+                else if (document == null)
+                {
+                    throw new IllegalArgumentException("Command before the first document line");
+                }
+                else if (!document.failed)
+                {
+                    document.ops.add(CanvasOp.parse(line));
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(name + ":" + lineNumber + ": " + e.getMessage());
+                if (document == null || line.startsWith("document"))
+                {
+                    document = new Document(); // stands for the broken document until the next one starts
+                }
+                document.failed = true; // the rest of the document is skipped
+            }
+        }
+        submit(document);
+    }
+
+    // waits until all queued documents are written and prints the throughput
+    public void finish() throws InterruptedException
+    {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.err.printf("%d images in %.1f s (%.1f images/s), %d failed%n",
+                written.get(), seconds, written.get() / seconds, failed.get());
+    }
+
+    public int getFailedCount()
+    {
+        return failed.get();
+    }
+
+    private void submit(Document document) throws InterruptedException
+    {
+        if (document == null)
+        {
+            return;
+        }
+        if (document.failed)
+        {
+            failed.incrementAndGet();
+            return;
+        }
+        queued.acquire(); // the reader waits if the drawing threads are behind
+        pool.execute(() -> {
+            try {
+                draw(document);
+            } finally {
+                queued.release();
+            }
+        });
+    }
+
+    private void draw(Document document)
+    {
+        PaintCanvas canvas = new PaintCanvas(document.width, document.height);
+        try {
+            canvas.setSize(document.width, document.height);
+            for (CanvasOp op : document.ops)
+            {
+                op.apply(canvas);
+            }
+            BufferedImage image = canvas.createFlattenedImage();
+            try {
+                writer.write(image, document.output.toPath(), null);
+            } finally {
+                MappedDataBuffer.disposeImage(image);
+            }
+            int count = written.incrementAndGet();
+            if (count % REPORT_EVERY == 0)
+            {
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                System.err.printf("%d images (%.1f images/s)%n", count, count / seconds);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not render " + document.output + ": " + e);
+            failed.incrementAndGet();
+        } finally {
+            canvas.dispose();
+        }
+    }
+
+    // one output image and the commands that draw it
+    private static class Document
+    {
+        private File output;
+        private int width, height;
+        private List<CanvasOp> ops = new ArrayList<>();
+        private boolean failed; // a command could not be parsed
+
+        static Document parse(String line)
+        {
+            String[] words = line.split("\\s+");
+            if (words.length != 4)
+            {
+                throw new IllegalArgumentException("document needs <output.png> <width> <height>: " + line);
+            }
+            Document document = new Document();
+            document.output = new File(words[1]);
+            try {
+                document.width = Integer.parseInt(words[2]);
+                document.height = Integer.parseInt(words[3]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a size: " + words[2] + " " + words[3]);
+            }
+            if (document.width <= 0 || document.height <= 0)
+            {
+                throw new IllegalArgumentException("The size must be positive: " + line);
+            }
+            return document;
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (System.getProperty("java.awt.headless") == null)
+        {
+            System.setProperty("java.awt.headless", "true"); // no window is needed, must be set before AWT is used
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int compressionLevel = 1;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-threads") && i + 1 < args.length)
+            {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-compression") && i + 1 < args.length)
+            {
+                compressionLevel = Integer.parseInt(args[++i]);
+            }
+            else
+            {
+                files.add(args[i]);
+            }
+        }
+
+        BatchRenderer renderer = new BatchRenderer(threads, compressionLevel);
+        if (files.isEmpty())
+        {
+            renderer.render(new InputStreamReader(System.in), "stdin");
+        }
+        for (String file : files)
+        {
+            try (Reader in = new FileReader(file))
+            {
+                renderer.render(in, file);
+            } catch (IOException e) {
+                System.err.println("Could not read " + file + ": " + e.getMessage());
+            }
+        }
+        renderer.finish();
+        System.exit(renderer.getFailedCount() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,198 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+// this class draws one free draw or eraser stroke on the canvas image
+// round dabs are placed along the path between the mouse positions at a fixed spacing,
+// so fast strokes have no gaps even if the mouse events come far apart
+// on a TYPE_INT_ARGB image the dabs are written directly into the pixel array,
+// on an image in a scratch file the rows of the dabs are written a tile row at a time (see MappedDataBuffer.fillRow()),
+// for other images one Graphics2D object is kept open for the whole stroke,
+// after begin() nothing is allocated while the stroke is drawn
+public class BrushStroke
+{
+    public static final double DEFAULT_SPACING = 0.25; // distance between dabs, relative to the brush size
+
+    private BufferedImage image;
+    private int[] pixels; // pixel array of the image, null if the image cannot be written directly
+    private boolean mapped; // the rows of the dabs are written into the scratch file of the image
+    private int offset, scanlineStride; // position of pixel (0, 0) and length of one row in the pixel array
+    private Graphics2D g2d; // used when the pixel array cannot be used
+    private int color; // ARGB color of the dabs
+    private int size; // brush diameter
+    private int[] spanStart = new int[0], spanEnd = new int[0]; // covered columns of every row of the dab
+    private double spacing = DEFAULT_SPACING;
+    private double lastX, lastY; // position of the last sample
+    private double distanceLeft; // distance to walk before the next dab is placed
+    private UndoHistory history; // tiles are saved before the stroke draws into them
+    private Rectangle dirty = new Rectangle(); // area changed by the last call of begin() or moveTo()
+
+    // the spacing is relative to the brush size, for example 0.25 places 4 dabs per brush diameter
+    public void setSpacing(double spacing)
+    {
+        this.spacing = spacing;
+    }
+
+    public double getSpacing()
+    {
+        return spacing;
+    }
+
+    // starts a new stroke at the given position, the first dab is placed there
+    public void begin(BufferedImage image, UndoHistory history, Color color, int size, int x, int y)
+    {
+        this.image = image;
+        this.history = history;
+        this.color = color.getRGB();
+        this.size = Math.max(size, 1);
+        pixels = null;
+        // the pixels can only be written directly for opaque colors,
+        // or for the transparent color that the eraser writes into a layer
+        boolean replaces = color.getAlpha() == 255 || color.getAlpha() == 0;
+        mapped = replaces && MappedDataBuffer.isMapped(image);
+        if (replaces && ParallelRaster.isDirect(image))
+        {
+            pixels = ParallelRaster.pixels(image);
+            scanlineStride = ParallelRaster.stride(image); // the array can be wider than the image
+            offset = ParallelRaster.offset(image);
+        }
+        else if (!mapped)
+        {
+            g2d = image.createGraphics();
+            g2d.setColor(color);
+            if (color.getAlpha() == 0)
+            {
+                g2d.setComposite(AlphaComposite.Src); // clears the pixels instead of drawing nothing
+            }
+        }
+        computeSpans();
+        lastX = x;
+        lastY = y;
+        distanceLeft = 0;
+        dirty.setBounds(x - this.size / 2, y - this.size / 2, this.size, this.size);
+        dab(x, y);
+    }
+
+    // continues the stroke to the given position, dabs are placed along the way
+    public void moveTo(int x, int y)
+    {
+        if (image == null) // no stroke was started
+        {
+            return;
+        }
+        double dx = x - lastX;
+        double dy = y - lastY;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        // the area of the whole segment is repainted, but only the tiles under the dabs are saved for undo,
+        // a long diagonal segment touches far fewer tiles than its bounding box has
+        int left = (int) Math.min(lastX, x) - size / 2;
+        int top = (int) Math.min(lastY, y) - size / 2;
+        dirty.setBounds(left, top, (int) Math.abs(dx) + size + 1, (int) Math.abs(dy) + size + 1);
+        double step = Math.max(1, size * spacing);
+        double travelled = distanceLeft;
+        while (travelled <= length)
+        {
+            double t = length == 0 ? 1 : travelled / length;
+            dab((int) Math.round(lastX + dx * t), (int) Math.round(lastY + dy * t));
+            travelled += step;
+        }
+        distanceLeft = travelled - length;
+        lastX = x;
+        lastY = y;
+    }
+
+    // finishes the stroke and releases the graphics context
+    public void end()
+    {
+        if (g2d != null)
+        {
+            g2d.dispose();
+            g2d = null;
+        }
+        pixels = null;
+        mapped = false;
+        image = null;
+        history = null;
+    }
+
+    // area changed by the last call of begin() or moveTo(), the rectangle is reused
+    public Rectangle getDirtyArea()
+    {
+        return dirty;
+    }
+
+    // draws one round dab centered at the given position
+    private void dab(int x, int y)
+    {
+        int left = x - size / 2;
+        int top = y - size / 2;
+        history.touch(image, left, top, size, size); // the tiles are saved once, later dabs only check a bit
+        if (pixels == null && !mapped)
+        {
+            g2d.fillOval(left, top, size, size);
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int row = 0; row < size; row++)
+        {
+            int py = top + row;
+            if (py < 0 || py >= height)
+            {
+                continue;
+            }
+            int from = Math.max(left + spanStart[row], 0);
+            int to = Math.min(left + spanEnd[row], width);
+            if (mapped)
+            {
+                if (from < to)
+                {
+                    MappedDataBuffer.fillRow(image, from, py, to - from, color);
+                }
+                continue;
+            }
+            int index = offset + py * scanlineStride;
+            for (int px = from; px < to; px++)
+            {
+                pixels[index + px] = color;
+            }
+        }
+    }
+
+    // computes which columns of every row are inside the circle
+    // the dab is drawn once with Graphics2D.fillOval into a small image and its rows are read back,
+    // so the pixel array gets exactly the pixels that fillOval draws on other images
+    private void computeSpans()
+    {
+        if (spanStart.length == size)
+        {
+            return; // the spans of this size are computed already
+        }
+        spanStart = new int[size];
+        spanEnd = new int[size];
+        BufferedImage mask = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = mask.createGraphics();
+        g.setColor(Color.BLACK);
+        g.fillOval(0, 0, size, size);
+        g.dispose();
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++)
+        {
+            mask.getRGB(0, y, size, 1, row, 0, size);
+            int start = 0;
+            while (start < size && row[start] == 0)
+            {
+                start++;
+            }
+            int end = size;
+            while (end > start && row[end - 1] == 0)
+            {
+                end--;
+            }
+            spanStart[y] = start; // a row without pixels gets start == end
+            spanEnd[y] = end;
+        }
+    }
+}
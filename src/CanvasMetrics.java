@@ -0,0 +1,289 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// this class collects the timings of a canvas, so a stutter can be traced to the part that causes it:
+// how long a mouse position takes until it is on the screen, how long painting takes and how often it happens,
+// what saving the undo state, copying the image and the eraser hit test cost, and the memory of the undo history
+// the record methods are called on the drawing paths, they only update counters and do not allocate
+// the metrics can be read through JMX (register()) and are shown by the canvas overlay (see PaintCanvas)
+public class CanvasMetrics implements CanvasMetricsMBean
+{
+    private static final int INPUT_RING = 1024; // mouse positions that can wait for a frame, must be a power of two
+    private static final int FRAME_RING = 256; // end times of the last frames, must be a power of two
+
+    private UndoHistory history;
+    private LatencyHistogram inputLatency = new LatencyHistogram(); // mouse position to the end of the frame showing it
+    private LatencyHistogram paintTime = new LatencyHistogram(); // one paintComponent call
+    private LatencyHistogram undoSaveTime = new LatencyHistogram(); // one saveStateToUndoStack call
+    private LatencyHistogram tileCaptureTime = new LatencyHistogram(); // tiles saved for undo by one drawing step
+    private LatencyHistogram deepCopyTime = new LatencyHistogram(); // one copy of the canvas image
+    private LatencyHistogram eraserHitTest = new LatencyHistogram(); // one query of the shapes under the eraser
+    private AtomicLong capturedBytes = new AtomicLong();
+    private AtomicLong deepCopyBytes = new AtomicLong();
+
+    // times of the mouse positions, written on the EDT, index = position number & (INPUT_RING - 1)
+    private long[] inputTimes = new long[INPUT_RING];
+    private int inputAdded; // positions added on the EDT
+    private volatile int inputDrawn; // positions drawn by the render worker
+    private int inputPainted; // positions whose latency is recorded
+    private long[] frameTimes = new long[FRAME_RING];
+    private int frames;
+    private volatile long firstFrameMillis = -1; // JVM start to the end of the first frame, -1 before it
+    private ObjectName name; // set while registered with JMX
+
+    public CanvasMetrics(UndoHistory history)
+    {
+        this.history = history;
+    }
+
+    // a mouse position was queued for drawing, called on the EDT
+    public void inputAdded()
+    {
+        inputTimes[inputAdded & (INPUT_RING - 1)] = System.nanoTime();
+        inputAdded++;
+    }
+
+    // positions were drawn into the canvas image, called on the render worker, in the order they were added
+    public void inputDrawn(int positions)
+    {
+        inputDrawn += positions; // only the render worker writes it
+    }
+
+    // a frame was painted, every position drawn before it is on the screen now, called on the EDT
+    public void framePainted(long start, long end)
+    {
+        paintTime.record(end - start);
+        if (frames == 0) // the startup time covers the JVM, the window and the first paint of the canvas
+        {
+            firstFrameMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        }
+        frameTimes[frames & (FRAME_RING - 1)] = end;
+        frames++;
+        int drawn = inputDrawn;
+        int first = inputAdded - inputPainted > INPUT_RING ? inputAdded - INPUT_RING : inputPainted; // older times are overwritten
+        for (int i = first; i - drawn < 0; i++)
+        {
+            inputLatency.record(end - inputTimes[i & (INPUT_RING - 1)]);
+        }
+        if (drawn - first > 0)
+        {
+            inputPainted = drawn;
+        }
+    }
+
+    public void recordUndoSave(long nanos)
+    {
+        undoSaveTime.record(nanos);
+    }
+
+    public void recordTileCapture(long nanos, long bytes)
+    {
+        tileCaptureTime.record(nanos);
+        capturedBytes.addAndGet(bytes);
+    }
+
+    public void recordDeepCopy(long nanos, long bytes)
+    {
+        deepCopyTime.record(nanos);
+        deepCopyBytes.addAndGet(bytes);
+    }
+
+    public void recordEraserHitTest(long nanos)
+    {
+        eraserHitTest.record(nanos);
+    }
+
+    // makes the metrics visible to JMX clients as paintapp:type=CanvasMetrics,name=<name>
+    public void register(String name)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("paintapp:type=CanvasMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void unregister()
+    {
+        if (name == null)
+        {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    // the lines shown by the canvas overlay
+    public List<String> getOverlayLines()
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%.0f fps, paint %s / %s (median / 99%%)", getFramesPerSecond(),
+                millis(paintTime.getPercentile(0.5)), millis(paintTime.getPercentile(0.99))));
+        lines.add(String.format("input to pixel %s / %s, max %s", millis(inputLatency.getPercentile(0.5)),
+                millis(inputLatency.getPercentile(0.99)), millis(inputLatency.getMax())));
+        lines.add(String.format("undo save %s, tile capture %s (99%%), %s captured", millis(undoSaveTime.getPercentile(0.99)),
+                millis(tileCaptureTime.getPercentile(0.99)), megabytes(capturedBytes.get())));
+        lines.add(String.format("undo memory %s of %s", megabytes(history.getMemoryUsed()),
+                megabytes(history.getMemoryBudget())));
+        lines.add(String.format("image copy %s (99%%), %s copied, eraser hit test %s (99%%)",
+                millis(deepCopyTime.getPercentile(0.99)), megabytes(deepCopyBytes.get()),
+                millis(eraserHitTest.getPercentile(0.99))));
+        lines.add(String.format("startup %d ms to the first frame", firstFrameMillis));
+        return lines;
+    }
+
+    @Override
+    public long getInputLatencyMedianMicros()
+    {
+        return inputLatency.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getInputLatency99Micros()
+    {
+        return inputLatency.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getInputLatencyMaxMicros()
+    {
+        return inputLatency.getMax() / 1000;
+    }
+
+    @Override
+    public long getInputEvents()
+    {
+        return inputLatency.getCount();
+    }
+
+    @Override
+    public long getPaintTimeMedianMicros()
+    {
+        return paintTime.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getPaintTime99Micros()
+    {
+        return paintTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getPaintTimeMaxMicros()
+    {
+        return paintTime.getMax() / 1000;
+    }
+
+    // frames painted during the last second, the frame times are read without locking,
+    // a frame painted at the same moment may be missed
+    @Override
+    public double getFramesPerSecond()
+    {
+        long since = System.nanoTime() - 1_000_000_000L;
+        int count = 0;
+        for (long time : frameTimes)
+        {
+            if (time != 0 && time - since > 0)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getUndoSaveTime99Micros()
+    {
+        return undoSaveTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getUndoTileCaptureTime99Micros()
+    {
+        return tileCaptureTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getUndoCapturedBytes()
+    {
+        return capturedBytes.get();
+    }
+
+    @Override
+    public long getUndoMemoryBytes()
+    {
+        return history.getMemoryUsed();
+    }
+
+    @Override
+    public long getUndoMemoryBudgetBytes()
+    {
+        return history.getMemoryBudget();
+    }
+
+    @Override
+    public long getDeepCopyTime99Micros()
+    {
+        return deepCopyTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getDeepCopyBytes()
+    {
+        return deepCopyBytes.get();
+    }
+
+    @Override
+    public long getEraserHitTestMedianMicros()
+    {
+        return eraserHitTest.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getEraserHitTest99Micros()
+    {
+        return eraserHitTest.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getTimeToFirstFrameMillis()
+    {
+        return firstFrameMillis;
+    }
+
+    // starts all histograms and counters again, the undo memory and the startup time are not counters and stay
+    @Override
+    public void reset()
+    {
+        inputLatency.reset();
+        paintTime.reset();
+        undoSaveTime.reset();
+        tileCaptureTime.reset();
+        deepCopyTime.reset();
+        eraserHitTest.reset();
+        capturedBytes.set(0);
+        deepCopyBytes.set(0);
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    private static String megabytes(long bytes)
+    {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
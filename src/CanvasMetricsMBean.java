@@ -0,0 +1,42 @@
+// the metrics of a canvas as seen through JMX (for example in JConsole or VisualVM),
+// times are in microseconds, see CanvasMetrics
+public interface CanvasMetricsMBean
+{
+    long getInputLatencyMedianMicros();
+
+    long getInputLatency99Micros();
+
+    long getInputLatencyMaxMicros();
+
+    long getInputEvents();
+
+    long getPaintTimeMedianMicros();
+
+    long getPaintTime99Micros();
+
+    long getPaintTimeMaxMicros();
+
+    double getFramesPerSecond();
+
+    long getUndoSaveTime99Micros();
+
+    long getUndoTileCaptureTime99Micros();
+
+    long getUndoCapturedBytes();
+
+    long getUndoMemoryBytes();
+
+    long getUndoMemoryBudgetBytes();
+
+    long getDeepCopyTime99Micros();
+
+    long getDeepCopyBytes();
+
+    long getEraserHitTestMedianMicros();
+
+    long getEraserHitTest99Micros();
+
+    long getTimeToFirstFrameMillis(); // in milliseconds since the JVM started, -1 before the first frame
+
+    void reset();
+}
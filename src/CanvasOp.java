@@ -0,0 +1,382 @@
+import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+// one drawing command that can be applied to a PaintCanvas without a window
+// the commands are the same operations a user can do with the mouse and the toolbar
+// text form, one command per line (used by BatchRenderer):
+//   color #rrggbb | #aarrggbb      brush and shape color
+//   size <n>                       brush size and line thickness
+//   free x y [x y ...]             free draw stroke through the points
+//   eraser x y [x y ...]           eraser stroke through the points
+//   line | rect | circle | triangle x1 y1 x2 y2
+//   fill x y [tolerance]           flood fill around the point, the tolerance is 0 to 255
+//   clear | undo | redo
+//   layer add | remove i | select i | move i j | visible i 0|1 | opacity i percent | blend i mode
+//                                  raster layers, index 0 is the background, mode is a name like multiply
+//   filter blur radius | sharpen percent | brightness b c | grayscale
+//                                  filters the active layer, brightness and contrast are -100 to 100
+//   resize width height            makes the canvas image at least this large
+// binary form (used by PaintDocument): the type as one byte, the number of args and the args as varints,
+// the points of a stroke are stored as the difference to the point before, so most of them take one byte each
+public class CanvasOp
+{
+    public static final int STROKE = 1; // args: tool (0 or 5), then x, y pairs
+    public static final int SHAPE = 2; // args: type (1 to 4), x1, y1, x2, y2
+    public static final int CLEAR = 3;
+    public static final int UNDO = 4;
+    public static final int REDO = 5;
+    public static final int COLOR = 6; // args: ARGB value
+    public static final int BRUSH_SIZE = 7; // args: size
+    public static final int FILL = 8; // args: x, y, tolerance
+    public static final int LAYER = 9; // args: action, then the layer index and the value of the action
+    public static final int FILTER = 10; // args: filter type, amount, amount2 (see ImageFilter)
+    public static final int RESIZE = 11; // args: width, height of the canvas image after it grew
+
+    // the actions of a LAYER command
+    public static final int LAYER_ADD = 0;
+    public static final int LAYER_REMOVE = 1;
+    public static final int LAYER_SELECT = 2;
+    public static final int LAYER_MOVE = 3; // args: from, to
+    public static final int LAYER_VISIBLE = 4; // args: index, 0 or 1
+    public static final int LAYER_OPACITY = 5; // args: index, percent
+    public static final int LAYER_BLEND = 6; // args: index, blend mode
+    private static final String[] LAYER_ACTIONS = {"add", "remove", "select", "move", "visible", "opacity", "blend"};
+
+    private static final String[] FILTER_NAMES = {"blur", "sharpen", "brightness", "grayscale"}; // index is the type
+    private static final String[] SHAPE_NAMES = {null, "line", "rect", "circle", "triangle"}; // index is the shape type
+
+    private int type;
+    private int[] args;
+
+    public CanvasOp(int type, int... args)
+    {
+        this.type = type;
+        this.args = args;
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    public int[] getArgs()
+    {
+        return args;
+    }
+
+    // draws the command on the canvas, like the user would with the mouse
+    public void apply(PaintCanvas canvas)
+    {
+        switch (type) {
+            case STROKE:
+                canvas.beginStroke(args[0], args[1], args[2]);
+                for (int i = 3; i < args.length; i += 2)
+                {
+                    canvas.strokeTo(args[i], args[i + 1]);
+                }
+                canvas.endStroke();
+                break;
+            case SHAPE:
+                canvas.commitShape(args[0], args[1], args[2], args[3], args[4]);
+                break;
+            case CLEAR:
+                canvas.clearCanvas();
+                break;
+            case UNDO:
+                canvas.undo();
+                break;
+            case REDO:
+                canvas.redo();
+                break;
+            case COLOR:
+                canvas.setSelectedColor(new Color(args[0], true));
+                break;
+            case BRUSH_SIZE:
+                canvas.setBrushSize(args[0]);
+                break;
+            case FILL:
+                canvas.fillAt(args[0], args[1], args[2]);
+                break;
+            case LAYER:
+                applyLayer(canvas);
+                break;
+            case FILTER:
+                canvas.applyFilter(new ImageFilter(args[0], args[1], args[2]));
+                break;
+            case RESIZE:
+                canvas.growCanvas(args[0], args[1]);
+                break;
+        }
+    }
+
+    private void applyLayer(PaintCanvas canvas)
+    {
+        switch (args[0]) {
+            case LAYER_ADD:
+                canvas.addLayer();
+                break;
+            case LAYER_REMOVE:
+                canvas.removeLayer(args[1]);
+                break;
+            case LAYER_SELECT:
+                canvas.selectLayer(args[1]);
+                break;
+            case LAYER_MOVE:
+                canvas.moveLayer(args[1], args[2]);
+                break;
+            case LAYER_VISIBLE:
+                canvas.setLayerVisible(args[1], args[2] != 0);
+                break;
+            case LAYER_OPACITY:
+                canvas.setLayerOpacity(args[1], args[2]);
+                break;
+            case LAYER_BLEND:
+                canvas.setLayerBlendMode(args[1], args[2]);
+                break;
+        }
+    }
+
+    // parses one command in the text form, throws IllegalArgumentException if it is not valid
+    public static CanvasOp parse(String line)
+    {
+        String[] words = line.trim().split("\\s+");
+        String name = words[0];
+        switch (name) {
+            case "free":
+            case "eraser":
+                int[] points = numbers(words, 1);
+                if (points.length < 2 || points.length % 2 != 0)
+                {
+                    throw new IllegalArgumentException(name + " needs x y pairs: " + line);
+                }
+                int[] args = new int[points.length + 1];
+                args[0] = name.equals("free") ? 0 : 5;
+                System.arraycopy(points, 0, args, 1, points.length);
+                return new CanvasOp(STROKE, args);
+            case "clear":
+                return new CanvasOp(CLEAR);
+            case "undo":
+                return new CanvasOp(UNDO);
+            case "redo":
+                return new CanvasOp(REDO);
+            case "color":
+                if (words.length != 2 || !words[1].startsWith("#")
+                        || (words[1].length() != 7 && words[1].length() != 9))
+                {
+                    throw new IllegalArgumentException("color needs #rrggbb or #aarrggbb: " + line);
+                }
+                int argb = (int) Long.parseLong(words[1].substring(1), 16);
+                return new CanvasOp(COLOR, words[1].length() == 7 ? 0xff000000 | argb : argb);
+            case "size":
+                int[] size = numbers(words, 1);
+                if (size.length != 1 || size[0] <= 0)
+                {
+                    throw new IllegalArgumentException("size needs one positive number: " + line);
+                }
+                return new CanvasOp(BRUSH_SIZE, size[0]);
+            case "fill":
+                int[] fill = numbers(words, 1);
+                if (fill.length != 2 && fill.length != 3)
+                {
+                    throw new IllegalArgumentException("fill needs x y and an optional tolerance: " + line);
+                }
+                return new CanvasOp(FILL, fill[0], fill[1], fill.length == 3 ? fill[2] : PaintCanvas.DEFAULT_FILL_TOLERANCE);
+            case "layer":
+                return parseLayer(words, line);
+            case "filter":
+                int filterType = words.length > 1 ? Arrays.asList(FILTER_NAMES).indexOf(words[1]) : -1;
+                if (filterType < 0)
+                {
+                    throw new IllegalArgumentException("filter needs one of " + String.join(", ", FILTER_NAMES) + ": " + line);
+                }
+                int[] amounts = numbers(words, 2);
+                int expected = filterType == ImageFilter.BRIGHTNESS_CONTRAST ? 2 : filterType == ImageFilter.GRAYSCALE ? 0 : 1;
+                if (amounts.length != expected)
+                {
+                    throw new IllegalArgumentException("filter " + words[1] + " needs " + expected + " numbers: " + line);
+                }
+                return new CanvasOp(FILTER, filterType, expected > 0 ? amounts[0] : 0, expected > 1 ? amounts[1] : 0);
+            case "resize":
+                int[] dimensions = numbers(words, 1);
+                if (dimensions.length != 2 || dimensions[0] <= 0 || dimensions[1] <= 0)
+                {
+                    throw new IllegalArgumentException("resize needs a positive width and height: " + line);
+                }
+                return new CanvasOp(RESIZE, dimensions[0], dimensions[1]);
+            default:
+                int shapeType = Arrays.asList(SHAPE_NAMES).indexOf(name);
+                if (shapeType < 1)
+                {
+                    throw new IllegalArgumentException("Unknown command: " + line);
+                }
+                int[] corners = numbers(words, 1);
+                if (corners.length != 4)
+                {
+                    throw new IllegalArgumentException(name + " needs x1 y1 x2 y2: " + line);
+                }
+                return new CanvasOp(SHAPE, shapeType, corners[0], corners[1], corners[2], corners[3]);
+        }
+    }
+
+    private static CanvasOp parseLayer(String[] words, String line)
+    {
+        int action = words.length > 1 ? Arrays.asList(LAYER_ACTIONS).indexOf(words[1]) : -1;
+        if (action < 0)
+        {
+            throw new IllegalArgumentException("layer needs one of " + String.join(", ", LAYER_ACTIONS) + ": " + line);
+        }
+        if (action == LAYER_BLEND && words.length == 4) // the mode is given by its name
+        {
+            int mode = -1;
+            for (int i = 0; i < Layer.BLEND_MODE_NAMES.length; i++)
+            {
+                if (Layer.BLEND_MODE_NAMES[i].equalsIgnoreCase(words[3]))
+                {
+                    mode = i;
+                }
+            }
+            if (mode < 0)
+            {
+                throw new IllegalArgumentException("Unknown blend mode: " + line);
+            }
+            return new CanvasOp(LAYER, action, numbers(Arrays.copyOf(words, 3), 2)[0], mode);
+        }
+        int[] numbers = numbers(words, 2);
+        int expected = action == LAYER_ADD ? 0 : action == LAYER_REMOVE || action == LAYER_SELECT ? 1 : 2;
+        if (numbers.length != expected)
+        {
+            throw new IllegalArgumentException("layer " + words[1] + " needs " + expected + " numbers: " + line);
+        }
+        int[] args = new int[expected + 1];
+        args[0] = action;
+        System.arraycopy(numbers, 0, args, 1, expected);
+        return new CanvasOp(LAYER, args);
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeByte(type);
+        writeVarInt(out, args.length);
+        for (int i = 0; i < args.length; i++)
+        {
+            // the x, y pairs of a stroke start at index 1, every coordinate is stored relative to the one two places before
+            int value = type == STROKE && i >= 3 ? args[i] - args[i - 2] : args[i];
+            writeVarInt(out, (value << 1) ^ (value >> 31)); // zigzag, small negative numbers stay small
+        }
+    }
+
+    public static CanvasOp read(DataInput in) throws IOException
+    {
+        int type = in.readUnsignedByte();
+        if (type < STROKE || type > RESIZE)
+        {
+            throw new IOException("Unknown operation type: " + type);
+        }
+        int count = readVarInt(in);
+        if (count < 0 || count > 1 << 24)
+        {
+            throw new IOException("Bad operation length: " + count);
+        }
+        int[] args = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            int value = readVarInt(in);
+            value = (value >>> 1) ^ -(value & 1);
+            args[i] = type == STROKE && i >= 3 ? args[i - 2] + value : value;
+        }
+        validate(type, args);
+        return new CanvasOp(type, args);
+    }
+
+    // checks that the args have the count and the values apply() expects for the type,
+    // so an operation of another format version, a damaged file or a broken client is rejected
+    // before it is applied, read() calls it for the journal, the documents and the session messages
+    static void validate(int type, int[] args) throws IOException
+    {
+        boolean valid;
+        switch (type) {
+            case STROKE:
+                valid = args.length >= 3 && args.length % 2 == 1 && (args[0] == 0 || args[0] == 5);
+                break;
+            case SHAPE:
+                valid = args.length == 5 && args[0] >= 1 && args[0] < SHAPE_NAMES.length;
+                break;
+            case CLEAR:
+            case UNDO:
+            case REDO:
+                valid = args.length == 0;
+                break;
+            case COLOR:
+                valid = args.length == 1;
+                break;
+            case BRUSH_SIZE:
+                valid = args.length == 1 && args[0] > 0;
+                break;
+            case FILL:
+                valid = args.length == 3 && args[2] >= 0 && args[2] <= 255;
+                break;
+            case LAYER:
+                valid = args.length >= 1 && args[0] >= 0 && args[0] < LAYER_ACTIONS.length
+                        && args.length == (args[0] == LAYER_ADD ? 1 : args[0] == LAYER_REMOVE || args[0] == LAYER_SELECT ? 2 : 3)
+                        && (args[0] != LAYER_OPACITY || (args[2] >= 0 && args[2] <= 100))
+                        && (args[0] != LAYER_BLEND || (args[2] >= 0 && args[2] < Layer.BLEND_MODE_NAMES.length));
+                break;
+            case FILTER:
+                valid = args.length == 3 && args[0] >= 0 && args[0] < FILTER_NAMES.length;
+                break;
+            case RESIZE:
+                valid = args.length == 2 && args[0] > 0 && args[1] > 0 && (long) args[0] * args[1] <= Integer.MAX_VALUE;
+                break;
+            default:
+                valid = false;
+                break;
+        }
+        if (!valid)
+        {
+            throw new IOException("Bad arguments for operation type " + type + " (" + args.length + " numbers)");
+        }
+    }
+
+    // writes 7 bits per byte, the highest bit tells that another byte follows
+    static void writeVarInt(DataOutput out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private static int[] numbers(String[] words, int from)
+    {
+        int[] numbers = new int[words.length - from];
+        for (int i = 0; i < numbers.length; i++)
+        {
+            try {
+                numbers[i] = Integer.parseInt(words[from + i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + words[from + i]);
+            }
+        }
+        return numbers;
+    }
+}
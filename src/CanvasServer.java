@@ -0,0 +1,350 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// this class is the server of a shared canvas session, the PaintApps of the session connect to it (see CanvasSession)
+// the server does not draw, it puts the messages of all clients into one order and sends every message
+// to the clients in that order, a finished operation also goes back to the client that sent it,
+// which tells that client where the server put it (see PaintCanvas.applyRemoteOperation())
+// the finished operations are kept, a client that joins later gets them first and draws what the others see,
+// they are kept up to a size (see trimHistory()), after that a client that joins later misses the oldest ones
+// every client has a reader and a writer thread, they are virtual threads, so dozens of clients cost little,
+// the sockets are NIO channels in blocking mode, which park a virtual thread instead of blocking a platform thread
+// a message is a frame: its length as an int, then the body
+//   client to server: kind (OP or LIVE) as one byte, then the operation in the binary form of CanvasOp
+//   server to client: the id of the sending client as an int, then the body the client sent,
+//   the first message only has the id of the client itself and the kind WELCOME
+// run it on its own with: java -cp paintapp.jar CanvasServer [port]
+public class CanvasServer
+{
+    public static final int DEFAULT_PORT = 4711;
+    public static final int OP = 1; // a finished operation, it is applied to the canvas
+    public static final int LIVE = 2; // the points of a stroke in progress since the last message, they are only shown
+    public static final int WELCOME = 3; // tells a client its id, so it knows its own operations when they come back
+    static final int MAX_FRAME = 1 << 24;
+    private static final int MAX_QUEUED = 1 << 16; // messages waiting for a client, a client that does not read them is dropped
+    public static final long DEFAULT_MAX_HISTORY = Long.getLong("paintapp.sessionHistoryBytes", 64L * 1024 * 1024);
+
+    private ServerSocketChannel server;
+    private Thread acceptor;
+    private List<Client> clients = new ArrayList<>(); // guarded by this
+    private List<ByteBuffer> history = new ArrayList<>(); // finished operations in session order, guarded by this
+    private long historyBytes; // guarded by this
+    private long maxHistory;
+    private boolean historyTrimmed; // the warning is printed once
+    private int nextId = 1;
+
+    // one connected client
+    private class Client
+    {
+        int id;
+        SocketChannel channel;
+        BlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<>();
+        Thread writer;
+    }
+
+    // starts accepting clients on the port, 0 uses a free port (see getPort())
+    public CanvasServer(int port) throws IOException
+    {
+        this(port, DEFAULT_MAX_HISTORY);
+    }
+
+    // maxHistory is the size in bytes of the operations kept for the clients that join later
+    public CanvasServer(int port, long maxHistory) throws IOException
+    {
+        this.maxHistory = maxHistory;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        acceptor = Thread.ofVirtual().name("Canvas server").start(this::acceptClients);
+    }
+
+    public int getPort()
+    {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1; // the server is closed
+        }
+    }
+
+    // disconnects every client and stops accepting new ones
+    public void close()
+    {
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        List<Client> connected;
+        synchronized (this)
+        {
+            connected = new ArrayList<>(clients);
+        }
+        for (Client client : connected)
+        {
+            disconnect(client);
+        }
+    }
+
+    private void acceptClients()
+    {
+        while (server.isOpen())
+        {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true); // the live samples are small and should not wait
+                Client client = new Client();
+                client.channel = channel;
+                join(client);
+                client.writer = Thread.ofVirtual().name("Canvas server writer " + client.id).start(() -> writeMessages(client));
+                Thread.ofVirtual().name("Canvas server reader " + client.id).start(() -> readMessages(client));
+            } catch (IOException e) {
+                if (server.isOpen())
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // the operations so far are queued before any message that comes after the join
+    private synchronized void join(Client client)
+    {
+        client.id = nextId++;
+        ByteBuffer welcome = ByteBuffer.allocate(9);
+        welcome.putInt(5).putInt(client.id).put((byte) WELCOME).flip();
+        client.outgoing.add(welcome);
+        for (ByteBuffer message : history)
+        {
+            client.outgoing.add(message.duplicate());
+        }
+        clients.add(client);
+    }
+
+    private void readMessages(Client client)
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            while (true)
+            {
+                header.clear();
+                if (!readFully(client.channel, header))
+                {
+                    break; // the client closed the connection
+                }
+                int length = header.getInt(0);
+                if (length < 2 || length > MAX_FRAME)
+                {
+                    throw new IOException("Bad message length " + length + " from client " + client.id);
+                }
+                // the message is sent on as it is, with the id of the client in front
+                ByteBuffer message = ByteBuffer.allocate(8 + length);
+                message.putInt(4 + length).putInt(client.id);
+                if (!readFully(client.channel, message))
+                {
+                    break;
+                }
+                message.flip();
+                broadcast(client, message, check(message));
+            }
+        } catch (IOException e) {
+            if (client.channel.isOpen())
+            {
+                e.printStackTrace(); // a client that sends something else is dropped
+            }
+        }
+        disconnect(client);
+    }
+
+    // reads and validates the operation of a message (see readOperation()), so a broken client cannot
+    // break the others and nothing that cannot be applied gets into the history, returns the type of an OP
+    static int check(ByteBuffer message) throws IOException
+    {
+        CanvasOp op = readOperation(message.array(), 8, message.limit() - 8);
+        return message.get(8) == LIVE ? 0 : op.getType();
+    }
+
+    // reads the kind and the operation of a message body, the server and the clients check messages the same way:
+    // the arguments must fit the type (see CanvasOp.validate()) and the kind must fit the operation
+    static CanvasOp readOperation(byte[] bytes, int offset, int length) throws IOException
+    {
+        int kind = bytes[offset];
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, length - 1));
+        CanvasOp op = CanvasOp.read(in);
+        if (in.available() > 0)
+        {
+            throw new IOException("Extra bytes after the operation");
+        }
+        int type = op.getType();
+        if (kind == LIVE && type == CanvasOp.STROKE)
+        {
+            return op;
+        }
+        if (kind == OP && (CanvasSession.isShared(op) || type == CanvasOp.COLOR || type == CanvasOp.BRUSH_SIZE))
+        {
+            return op;
+        }
+        throw new IOException("Operation type " + type + " cannot be sent as message kind " + kind);
+    }
+
+    private synchronized void broadcast(Client from, ByteBuffer message, int opType)
+    {
+        if (opType != 0)
+        {
+            history.add(message);
+            historyBytes += message.limit();
+            trimHistory();
+        }
+        for (Client client : clients)
+        {
+            if (client != from || opType != 0) // the live samples of a client are not sent back to it
+            {
+                if (client.outgoing.size() >= MAX_QUEUED)
+                {
+                    System.err.println("Canvas server: client " + client.id + " does not read its messages, it is dropped");
+                    closeChannel(client); // its reader disconnects it
+                    continue;
+                }
+                client.outgoing.add(message.duplicate());
+            }
+        }
+    }
+
+    private static boolean isDrawing(int opType)
+    {
+        return opType != CanvasOp.COLOR && opType != CanvasOp.BRUSH_SIZE;
+    }
+
+    // drops the oldest operations when the history is larger than maxHistory, first the ones before the last clear,
+    // they are only visible again if the clear is undone, then more until it fits,
+    // the last color and brush size of every client in the dropped part stay because the operations after it use them
+    // a client that joins after that cannot undo past the oldest operation it got, and an undo of a dropped operation
+    // that the others still have changes its canvas differently, so the limit should be larger than a session needs
+    private void trimHistory()
+    {
+        if (historyBytes <= maxHistory)
+        {
+            return;
+        }
+        int lastClear = 0;
+        for (int i = 0; i < history.size(); i++)
+        {
+            if (history.get(i).get(9) == CanvasOp.CLEAR)
+            {
+                lastClear = i;
+            }
+        }
+        int end = 0;
+        long bytes = historyBytes;
+        while (end < history.size() && (end < lastClear || bytes > maxHistory))
+        {
+            bytes -= history.get(end++).limit();
+        }
+        List<ByteBuffer> kept = new ArrayList<>();
+        Set<Long> contexts = new HashSet<>(); // sender and type of the colors and brush sizes that are kept
+        for (int i = end - 1; i >= 0; i--)
+        {
+            ByteBuffer old = history.get(i);
+            if (!isDrawing(old.get(9)) && contexts.add(((long) old.getInt(4) << 8) | old.get(9)))
+            {
+                kept.add(0, old);
+                bytes += old.limit();
+            }
+        }
+        kept.addAll(history.subList(end, history.size()));
+        history = kept;
+        historyBytes = bytes;
+        if (!historyTrimmed)
+        {
+            historyTrimmed = true;
+            System.err.println("Canvas server: the session history is larger than " + maxHistory
+                    + " bytes, clients that join from now on do not get the oldest operations");
+        }
+    }
+
+    // sends the queued messages, everything queued at the time is sent with one gathering write
+    private void writeMessages(Client client)
+    {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (true)
+            {
+                batch.add(client.outgoing.take());
+                client.outgoing.drainTo(batch);
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                while (buffers[buffers.length - 1].hasRemaining())
+                {
+                    client.channel.write(buffers);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // the client is disconnected
+        } catch (IOException e) {
+            if (client.channel.isOpen())
+            {
+                e.printStackTrace();
+            }
+            disconnect(client);
+        }
+    }
+
+    private void disconnect(Client client)
+    {
+        synchronized (this)
+        {
+            clients.remove(client);
+        }
+        closeChannel(client);
+        if (client.writer != null)
+        {
+            client.writer.interrupt();
+        }
+    }
+
+    private static void closeChannel(Client client)
+    {
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // reads until the buffer is full, false if the connection ended before anything was read
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        int start = buffer.position();
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                if (buffer.position() == start)
+                {
+                    return false;
+                }
+                throw new EOFException("The connection ended inside a message");
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        CanvasServer server = new CanvasServer(port);
+        System.out.println("Canvas server listening on port " + server.getPort());
+        server.acceptor.join();
+    }
+}
@@ -0,0 +1,310 @@
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// this class connects a canvas to a CanvasServer, so several PaintApps draw on the same image
+// the finished strokes, shapes, fills and clears of the canvas are sent to the server, which sends them to the others,
+// the operations of the others are applied to the canvas in the order of the server, with the color and brush size
+// of the client that drew them
+// a local operation is drawn at once and is tentative until the server sends it back, an operation of another
+// client that comes before that was put before it by the server, the canvas takes the tentative operations back
+// and draws them again after it, so all canvases end with the same operations in the same order
+// while a stroke is drawn its points are sent once per frame, the others show them over their canvas
+// until the finished stroke arrives, so they see it grow without it being drawn twice
+// undo and redo are shared too, they are done when the server sends them back, also on the canvas that sent them,
+// so every canvas takes back the same operation
+// the canvases of a session start from the same image, the session only carries the operations,
+// the layers and the filters stay local
+// the socket is read and written on virtual threads, the canvas is only used on the EDT
+public class CanvasSession
+{
+    private static final int FRAME_DELAY = 16; // milliseconds, the points of a stroke in progress are sent once per frame
+
+    private PaintCanvas canvas;
+    private SocketChannel channel;
+    private BlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<>();
+    private Thread reader;
+    private Thread writer;
+    private Timer frameTimer;
+    private volatile boolean closed;
+
+    // what the server was told, used on the EDT
+    private int sentColor;
+    private int sentSize = -1; // nothing sent yet
+    private IntList liveSamples = new IntList(); // tool and points of the local stroke that are not sent yet
+    private int sent; // finished operations sent, their sequence numbers
+    private int confirmed; // finished operations the server sent back
+    private int id; // the id the server gave this client, 0 until its welcome arrived
+
+    // color and brush size of the other clients, by the id the server gave them, used on the EDT
+    private Map<Integer, int[]> senders = new HashMap<>();
+
+    private CanvasSession(PaintCanvas canvas, SocketChannel channel)
+    {
+        this.canvas = canvas;
+        this.channel = channel;
+        frameTimer = new Timer(FRAME_DELAY, new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                sendLiveSamples();
+            }
+        });
+    }
+
+    // connects to the server and starts applying the operations of the session to the canvas, called on the EDT
+    public static CanvasSession connect(PaintCanvas canvas, String host, int port) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        CanvasSession session = new CanvasSession(canvas, channel);
+        session.reader = Thread.ofVirtual().name("Canvas session reader").start(session::readMessages);
+        session.writer = Thread.ofVirtual().name("Canvas session writer").start(session::writeMessages);
+        session.frameTimer.start();
+        return session;
+    }
+
+    // true for the operations that are shared with the other clients
+    public static boolean isShared(CanvasOp op)
+    {
+        int type = op.getType();
+        return type == CanvasOp.STROKE || type == CanvasOp.SHAPE || type == CanvasOp.FILL || type == CanvasOp.CLEAR
+                || type == CanvasOp.UNDO || type == CanvasOp.REDO;
+    }
+
+    // sends a finished operation drawn with the color and brush size, called on the EDT
+    // returns its sequence number, the canvas is told when the server sent back the operations up to it
+    public int send(CanvasOp op, Color color, int size)
+    {
+        if (op.getType() == CanvasOp.STROKE)
+        {
+            liveSamples.clear(); // the finished stroke replaces the points that were not sent yet
+        }
+        sendContext(color, size);
+        queue(CanvasServer.OP, op);
+        return ++sent;
+    }
+
+    // a local stroke starts, its points are sent with the next frames
+    public void strokeStarted(int tool, int x, int y, Color color, int size)
+    {
+        sendContext(color, size);
+        liveSamples.clear();
+        liveSamples.add(tool);
+        liveSamples.add(x);
+        liveSamples.add(y);
+    }
+
+    public void strokeSample(int x, int y)
+    {
+        if (liveSamples.isEmpty())
+        {
+            return; // the stroke was not started in the session
+        }
+        liveSamples.add(x);
+        liveSamples.add(y);
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    // leaves the session, the canvas keeps what was drawn
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        frameTimer.stop();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer.interrupt();
+    }
+
+    // the points added since the last frame are sent as one message, the tool stays at the start of the list
+    private void sendLiveSamples()
+    {
+        if (liveSamples.size() <= 1)
+        {
+            return;
+        }
+        int[] samples = liveSamples.toArray();
+        queue(CanvasServer.LIVE, new CanvasOp(CanvasOp.STROKE, samples));
+        liveSamples.clear();
+        liveSamples.add(samples[0]);
+    }
+
+    // the others apply operations with the color and size of this client, they are only sent when they change
+    private void sendContext(Color color, int size)
+    {
+        if (sentSize < 0 || color.getRGB() != sentColor)
+        {
+            queue(CanvasServer.OP, new CanvasOp(CanvasOp.COLOR, color.getRGB()));
+            sentColor = color.getRGB();
+        }
+        if (size != sentSize)
+        {
+            queue(CanvasServer.OP, new CanvasOp(CanvasOp.BRUSH_SIZE, size));
+            sentSize = size;
+        }
+    }
+
+    private void queue(int kind, CanvasOp op)
+    {
+        if (closed)
+        {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // the length, set below
+            out.writeByte(kind);
+            op.write(out);
+            ByteBuffer message = ByteBuffer.wrap(bytes.toByteArray());
+            message.putInt(0, message.capacity() - 4);
+            outgoing.add(message);
+        } catch (IOException e) {
+            e.printStackTrace(); // not possible, the stream is in memory
+        }
+    }
+
+    // sends the queued messages, everything queued at the time is sent with one gathering write
+    private void writeMessages()
+    {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (true)
+            {
+                batch.add(outgoing.take());
+                outgoing.drainTo(batch);
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                while (buffers[buffers.length - 1].hasRemaining())
+                {
+                    channel.write(buffers);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // the session is closed
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    private void readMessages()
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            while (true)
+            {
+                header.clear();
+                if (!CanvasServer.readFully(channel, header))
+                {
+                    break;
+                }
+                int length = header.getInt(0);
+                if (length < 5 || length > CanvasServer.MAX_FRAME)
+                {
+                    throw new IOException("Bad message length " + length);
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (!CanvasServer.readFully(channel, body))
+                {
+                    break;
+                }
+                int sender = body.getInt(0);
+                int kind = body.get(4);
+                CanvasOp op = null;
+                if (kind != CanvasServer.WELCOME || length != 5)
+                {
+                    op = CanvasServer.readOperation(body.array(), 4, length - 4); // a bad message ends the session
+                }
+                CanvasOp received = op;
+                SwingUtilities.invokeLater(() -> receive(sender, kind, received));
+            }
+            connectionLost(null);
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    // applies a message of the server, called on the EDT in the order of the server
+    private void receive(int sender, int kind, CanvasOp op)
+    {
+        if (closed)
+        {
+            return;
+        }
+        if (kind == CanvasServer.WELCOME)
+        {
+            id = sender;
+            return;
+        }
+        if (sender == id)
+        {
+            if (isShared(op)) // the colors and brush sizes that come back are the local ones
+            {
+                if (op.getType() == CanvasOp.UNDO || op.getType() == CanvasOp.REDO)
+                {
+                    // done now, in the order of the server, before the local actions that waited for it
+                    canvas.applyRemoteOperation(sender, op, new Color(sentColor, true), sentSize);
+                }
+                canvas.confirmOperations(++confirmed);
+            }
+            return;
+        }
+        int[] context = senders.computeIfAbsent(sender, id -> new int[] {Color.BLACK.getRGB(), 20});
+        Color color = new Color(context[0], true);
+        if (kind == CanvasServer.LIVE)
+        {
+            canvas.showRemoteSamples(sender, op.getArgs(), color, context[1]);
+        }
+        else if (op.getType() == CanvasOp.COLOR)
+        {
+            context[0] = op.getArgs()[0];
+        }
+        else if (op.getType() == CanvasOp.BRUSH_SIZE)
+        {
+            context[1] = op.getArgs()[0];
+        }
+        else if (isShared(op))
+        {
+            canvas.applyRemoteOperation(sender, op, color, context[1]);
+        }
+    }
+
+    private void connectionLost(IOException e)
+    {
+        if (closed)
+        {
+            return; // the session was left, the channel is closed on purpose
+        }
+        if (e != null)
+        {
+            e.printStackTrace();
+        }
+        SwingUtilities.invokeLater(() -> canvas.sessionClosed(this));
+    }
+}
@@ -1,24 +1,106 @@
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
+// one entry of the undo/redo history
+// instead of a copy of the whole canvas image, it stores only the tiles that the operation changed,
+// tiles that were not touched are never copied, so they are shared with the live canvas and all other states
 public class CanvasState
 {
-    private BufferedImage canvasImage; // this field stores the canvas image
-    private List<Shape> shapes; // this field stores the list of shapes on the canvas
+    private BufferedImage canvasImage; // this field stores the whole canvas image, only when the image was replaced (open, clear)
+    private IdList shapes; // ids of the shapes on the canvas, a snapshot that shares its memory with the other states
+    private List<PixelTile> tiles = new ArrayList<>(); // tiles saved before they were changed
+    private BitSet savedTiles = new BitSet(); // which tiles are already saved, index = row * columns + column
+    private int tileSize; // width and height of one tile
+    private int columns; // number of tile columns when the state was created
+    private long sizeInBytes; // memory used by the saved pixels
+    private Layer layer; // the layer the tiles belong to, null for the canvas image (background)
 
-    public CanvasState(BufferedImage canvasImage, List<Shape> shapes)
+    public CanvasState(BufferedImage canvasImage, IdList shapes)
     {
         this.canvasImage = canvasImage;
         this.shapes = shapes;
+        if (canvasImage != null)
+        {
+            sizeInBytes = (long) canvasImage.getWidth() * canvasImage.getHeight() * 4;
+        }
     }
-    // this method provides the canvas image, returning a BufferedImage object
+
+    public CanvasState(IdList shapes, int tileSize, int columns, Layer layer)
+    {
+        this.shapes = shapes;
+        this.tileSize = tileSize;
+        this.columns = columns;
+        this.layer = layer;
+    }
+
+    // the layer the saved tiles are restored into, null for the canvas image
+    public Layer getLayer()
+    {
+        return layer;
+    }
+
+    // this method provides the canvas image, returning a BufferedImage object,
+    // it returns null when the state only stores changed tiles
     public BufferedImage getCanvasImage()
     {
         return canvasImage;
     }
-    // this method provides the list of shapes, returning a list of Shape objects
-    public List<Shape> getShapes()
+    // this method provides the ids of the shapes, see ShapeStore
+    public IdList getShapes()
     {
         return shapes;
     }
+
+    public List<PixelTile> getTiles()
+    {
+        return tiles;
+    }
+
+    // checks if the tile at the given column and row is already saved in this state
+    public boolean hasTile(int column, int row)
+    {
+        if (column < columns)
+        {
+            return savedTiles.get(row * columns + column);
+        }
+        // the image grew after this state was created, fall back to searching the saved tiles
+        for (PixelTile tile : tiles)
+        {
+            if (tile.getX() == column * tileSize && tile.getY() == row * tileSize)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void addTile(int column, int row, PixelTile tile)
+    {
+        if (column < columns)
+        {
+            savedTiles.set(row * columns + column);
+        }
+        tiles.add(tile);
+        sizeInBytes += tile.getSizeInBytes();
+    }
+
+    // this method returns the area covered by the saved tiles, or null if no tile was saved
+    public Rectangle getBounds()
+    {
+        Rectangle bounds = null;
+        for (PixelTile tile : tiles)
+        {
+            Rectangle r = new Rectangle(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
+            bounds = bounds == null ? r : bounds.union(r);
+        }
+        return bounds;
+    }
+
+    public long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
 }
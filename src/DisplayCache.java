@@ -0,0 +1,228 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+// this class keeps the visible part of the canvas in an image of the screen format,
+// so a frame is one plain copy instead of converting the ARGB pixels of the canvas and blending
+// the shape layer over them every time
+// a VolatileImage is used where the pipeline can keep it in video memory, if it cannot be created
+// (no GPU, software pipeline) a compatible BufferedImage is used, which is still copied without conversion
+// the cache holds the visible area of the panel at the current zoom, the canvas areas marked as changed
+// are drawn into it again before the next copy, after scrolling the cached pixels are moved
+// and only the uncovered strips are drawn
+// the pixels that are edited stay in the canvas image, the cache is only used for the screen
+public class DisplayCache
+{
+    // draws the canvas inside an area of the panel, in panel coordinates
+    public interface Source
+    {
+        void paint(Graphics2D g, Rectangle area);
+    }
+
+    private VolatileImage volatileImage; // null if the volatile image could not be created
+    private BufferedImage image; // used when there is no volatile image
+    private boolean volatileEnabled = !Boolean.getBoolean("paintapp.noVolatileImage");
+    private GraphicsConfiguration configuration; // the screen the cache was created for
+    private Rectangle bounds = new Rectangle(); // the panel area held by the cache
+    private double zoom;
+    private Rectangle changed = new Rectangle(); // changed area of the canvas since the last frame, canvas pixels
+    private boolean changedAll = true;
+
+    // marks an area of the canvas as changed, in canvas pixels, can be called from any thread
+    public void invalidate(int x, int y, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            return;
+        }
+        synchronized (changed)
+        {
+            if (changed.isEmpty())
+            {
+                changed.setBounds(x, y, width, height);
+            }
+            else // join the areas without creating new objects
+            {
+                changed.add(x, y);
+                changed.add(x + width, y + height);
+            }
+        }
+    }
+
+    // the whole canvas is drawn again before the next frame
+    public void invalidateAll()
+    {
+        synchronized (changed)
+        {
+            changedAll = true;
+        }
+    }
+
+    // copies the clip from the cache, after drawing the parts of the cache that are not up to date,
+    // the clip is drawn straight from the source if it is not inside the visible area or there is no screen
+    public void paint(Graphics g, Rectangle clip, Rectangle visible, double zoom, GraphicsConfiguration configuration,
+                      Color background, Source source)
+    {
+        if (configuration == null || visible.isEmpty() || !visible.contains(clip))
+        {
+            g.setColor(background);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            source.paint((Graphics2D) g, clip);
+            return;
+        }
+        Rectangle area; // canvas pixels to draw again
+        boolean redraw; // true if the whole cache is drawn again
+        synchronized (changed)
+        {
+            redraw = changedAll;
+            area = changed.isEmpty() ? null : new Rectangle(changed);
+            changedAll = false;
+            changed.setBounds(0, 0, 0, 0);
+        }
+        boolean moved = false;
+        if (configuration != this.configuration || zoom != this.zoom
+                || visible.width != bounds.width || visible.height != bounds.height)
+        {
+            create(configuration, visible.width, visible.height);
+            this.zoom = zoom;
+            redraw = true;
+        }
+        else
+        {
+            moved = visible.x != bounds.x || visible.y != bounds.y;
+        }
+        Rectangle old = new Rectangle(bounds);
+        bounds.setBounds(visible);
+        do
+        {
+            if (volatileImage != null)
+            {
+                int status = volatileImage.validate(configuration);
+                if (status == VolatileImage.IMAGE_INCOMPATIBLE)
+                {
+                    create(configuration, visible.width, visible.height);
+                }
+                redraw |= status != VolatileImage.IMAGE_OK;
+            }
+            if (redraw)
+            {
+                draw(bounds, background, source);
+            }
+            else
+            {
+                if (moved)
+                {
+                    scroll(old, background, source);
+                }
+                if (area != null)
+                {
+                    draw(toView(area).intersection(bounds), background, source);
+                }
+            }
+            g.drawImage(getImage(), clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x - bounds.x, clip.y - bounds.y, clip.x - bounds.x + clip.width, clip.y - bounds.y + clip.height, null);
+            redraw = true; // if the contents were lost while they were copied, all of it is drawn again
+        }
+        while (volatileImage != null && volatileImage.contentsLost());
+    }
+
+    // releases the image, the next frame creates it again
+    public void flush()
+    {
+        release();
+        configuration = null;
+        bounds.setBounds(0, 0, 0, 0);
+    }
+
+    private void release()
+    {
+        if (volatileImage != null)
+        {
+            volatileImage.flush();
+        }
+        volatileImage = null;
+        image = null;
+    }
+
+    private void create(GraphicsConfiguration configuration, int width, int height)
+    {
+        release();
+        this.configuration = configuration;
+        if (volatileEnabled)
+        {
+            try {
+                volatileImage = configuration.createCompatibleVolatileImage(width, height, Transparency.OPAQUE);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                volatileEnabled = false; // the compatible image is used from now on
+            }
+        }
+        if (volatileImage == null)
+        {
+            image = configuration.createCompatibleImage(width, height, Transparency.OPAQUE);
+        }
+    }
+
+    private Image getImage()
+    {
+        return volatileImage != null ? volatileImage : image;
+    }
+
+    private Graphics2D createGraphics()
+    {
+        return volatileImage != null ? volatileImage.createGraphics() : image.createGraphics();
+    }
+
+    // draws an area of the panel into the cache
+    private void draw(Rectangle area, Color background, Source source)
+    {
+        if (area.isEmpty())
+        {
+            return;
+        }
+        Graphics2D g2d = createGraphics();
+        g2d.translate(-bounds.x, -bounds.y);
+        g2d.clipRect(area.x, area.y, area.width, area.height);
+        g2d.setColor(background);
+        g2d.fillRect(area.x, area.y, area.width, area.height);
+        source.paint(g2d, area);
+        g2d.dispose();
+    }
+
+    // moves the pixels that are still visible from the old position of the cache to the new one,
+    // the strips that were not visible before are drawn
+    private void scroll(Rectangle old, Color background, Source source)
+    {
+        Rectangle kept = old.intersection(bounds);
+        if (kept.isEmpty())
+        {
+            draw(bounds, background, source);
+            return;
+        }
+        Graphics2D g2d = createGraphics();
+        g2d.copyArea(kept.x - old.x, kept.y - old.y, kept.width, kept.height, old.x - bounds.x, old.y - bounds.y);
+        g2d.dispose();
+        // the rows above or below the kept area, then the columns beside it
+        int top = kept.y == bounds.y ? kept.y + kept.height : bounds.y;
+        draw(new Rectangle(bounds.x, top, bounds.width, bounds.height - kept.height), background, source);
+        int left = kept.x == bounds.x ? kept.x + kept.width : bounds.x;
+        draw(new Rectangle(left, kept.y, bounds.width - kept.width, kept.height), background, source);
+    }
+
+    // the panel area that shows the canvas area, rounded outwards,
+    // with one more pixel around it for the antialiased edges of shapes drawn at the zoom
+    private Rectangle toView(Rectangle area)
+    {
+        int left = (int) Math.floor(area.x * zoom) - 1;
+        int top = (int) Math.floor(area.y * zoom) - 1;
+        int right = (int) Math.ceil((area.x + (double) area.width) * zoom) + 1;
+        int bottom = (int) Math.ceil((area.y + (double) area.height) * zoom) + 1;
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+}
@@ -0,0 +1,106 @@
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+// asks for the settings of a filter, the visible part of the canvas shows the filter while they are changed
+// OK applies the filter to the whole active layer, Cancel leaves the canvas as it was
+public class FilterDialog extends JDialog
+{
+    private PaintCanvas canvas;
+    private int type;
+    private JSlider amountSlider;
+    private JSlider amount2Slider; // only for brightness/contrast
+
+    public FilterDialog(Frame owner, PaintCanvas canvas, int type)
+    {
+        super(owner, ImageFilter.NAMES[type], true);
+        this.canvas = canvas;
+        this.type = type;
+
+        JPanel sliders = new JPanel(new GridLayout(0, 1));
+        ChangeListener preview = new ChangeListener()
+        {
+            @Override
+            public void stateChanged(ChangeEvent e)
+            {
+                canvas.setFilterPreview(createFilter());
+            }
+        };
+        switch (type) {
+            case ImageFilter.BLUR:
+                amountSlider = new JSlider(0, ImageFilter.MAX_RADIUS, 3);
+                sliders.add(new JLabel("Radius"));
+                break;
+            case ImageFilter.SHARPEN:
+                amountSlider = new JSlider(0, 300, 100);
+                sliders.add(new JLabel("Strength (%)"));
+                break;
+            default:
+                amountSlider = new JSlider(-100, 100, 0);
+                amount2Slider = new JSlider(-100, 100, 0);
+                sliders.add(new JLabel("Brightness"));
+                break;
+        }
+        amountSlider.addChangeListener(preview);
+        sliders.add(amountSlider);
+        if (amount2Slider != null)
+        {
+            amount2Slider.addChangeListener(preview);
+            sliders.add(new JLabel("Contrast"));
+            sliders.add(amount2Slider);
+        }
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton okBtn = new JButton("OK");
+        okBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.setFilterPreview(null);
+                canvas.applyFilter(createFilter());
+                dispose();
+            }
+        });
+        JButton cancelBtn = new JButton("Cancel");
+        cancelBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.setFilterPreview(null);
+                dispose();
+            }
+        });
+        addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosing(WindowEvent e)
+            {
+                canvas.setFilterPreview(null);
+            }
+        });
+        buttons.add(okBtn);
+        buttons.add(cancelBtn);
+
+        JPanel content = new JPanel(new BorderLayout());
+        content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        content.add(sliders, BorderLayout.CENTER);
+        content.add(buttons, BorderLayout.SOUTH);
+        setContentPane(content);
+        getRootPane().setDefaultButton(okBtn);
+        pack();
+        setLocationRelativeTo(owner);
+        canvas.setFilterPreview(createFilter());
+    }
+
+    private ImageFilter createFilter()
+    {
+        return new ImageFilter(type, amountSlider.getValue(), amount2Slider == null ? 0 : amount2Slider.getValue());
+    }
+}
@@ -0,0 +1,270 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+// this class fills the area of similar color around a pixel (paint bucket) with a scanline algorithm:
+// from a seed pixel the run of matching pixels to the left and right is found in one pass over the row,
+// and only the first pixel of every matching run in the rows above and below is kept as the next seed,
+// so the stack stays small and every pixel is compared a few times at most
+// the area is found first without changing the image, then the undo history saves the tiles under the spans
+// and the spans are filled in parallel (see ParallelRaster.fillSpans)
+// a pixel matches if every channel differs from the seed pixel by at most the tolerance,
+// pixels covered by a shape of the shape layer are borders, so a shape outline keeps the fill inside
+public class FloodFill
+{
+    private BufferedImage image;
+    private BufferedImage shapeLayer; // can be null
+    private int width, height;
+    private int[] pixels, layerPixels; // pixel arrays of direct images, null otherwise
+    private boolean fast; // true if the pixels of both images can be read from the arrays
+    private int offset, stride, layerOffset, layerStride;
+    private int seed; // color of the start pixel
+    private int tolerance;
+    private long[] visited; // one bit per pixel, index = y * width + x
+    private IntList stack = new IntList(); // x, y of the seeds
+    private IntList spans = new IntList(); // y, left, right (exclusive) of the found spans
+    private long filledPixels;
+    private int argb; // the fill color
+    private Rectangle bounds; // bounds of the spans
+
+    private FloodFill(BufferedImage image, BufferedImage shapeLayer, int tolerance)
+    {
+        this.image = image;
+        this.shapeLayer = shapeLayer;
+        this.tolerance = tolerance;
+        width = image.getWidth();
+        height = image.getHeight();
+        if (ParallelRaster.isDirect(image))
+        {
+            pixels = ParallelRaster.pixels(image);
+            offset = ParallelRaster.offset(image);
+            stride = ParallelRaster.stride(image);
+        }
+        if (shapeLayer != null && ParallelRaster.isDirect(shapeLayer))
+        {
+            layerPixels = ParallelRaster.pixels(shapeLayer);
+            layerOffset = ParallelRaster.offset(shapeLayer);
+            layerStride = ParallelRaster.stride(shapeLayer);
+        }
+        fast = pixels != null && (shapeLayer == null || layerPixels != null);
+        visited = new long[(int) (((long) width * height + 63) >>> 6)];
+    }
+
+    // finds the area around (x, y) that the ARGB color would fill, tolerance is 0 to 255,
+    // returns null if nothing would change, the image must not change until apply() is called
+    public static FloodFill find(BufferedImage image, BufferedImage shapeLayer, int x, int y, int argb, int tolerance)
+    {
+        if (x < 0 || y < 0 || x >= image.getWidth() || y >= image.getHeight())
+        {
+            return null;
+        }
+        FloodFill fill = new FloodFill(image, shapeLayer, Math.max(0, Math.min(tolerance, 255)));
+        if (fill.isShape(x, y))
+        {
+            return null; // the shapes are not part of the image, there is nothing to fill under the mouse
+        }
+        fill.seed = fill.pixel(x, y);
+        if (fill.tolerance == 0 && fill.seed == argb)
+        {
+            return null; // the area has the color already
+        }
+        fill.argb = argb;
+        fill.bounds = fill.findSpans(x, y);
+        return fill;
+    }
+
+    // fills the area found by find() and returns its bounds,
+    // the tiles of the spans are saved in the history before they are filled
+    public Rectangle apply(UndoHistory history)
+    {
+        for (int i = 0; i < spans.size(); i += 3)
+        {
+            history.touch(image, spans.get(i + 1), spans.get(i), spans.get(i + 2) - spans.get(i + 1), 1);
+        }
+        ParallelRaster.fillSpans(image, spans, argb, (int) (filledPixels / (spans.size() / 3)));
+        return bounds;
+    }
+
+    // number of pixels in the area
+    public long getPixelCount()
+    {
+        return filledPixels;
+    }
+
+    // finds the spans of the area around (x, y) and returns their bounds
+    private Rectangle findSpans(int x, int y)
+    {
+        int top = y, bottom = y, left = x, right = x;
+        stack.add(x);
+        stack.add(y);
+        while (!stack.isEmpty())
+        {
+            int row = stack.removeLast();
+            int column = stack.removeLast();
+            if (isVisited(column, row) || !matches(column, row))
+            {
+                continue; // another span reached it first
+            }
+            int start = runStart(row, column);
+            int end = runEnd(row, column + 1, width);
+            markVisited(row, start, end);
+            spans.add(row);
+            spans.add(start);
+            spans.add(end);
+            filledPixels += end - start;
+            left = Math.min(left, start);
+            right = Math.max(right, end);
+            top = Math.min(top, row);
+            bottom = Math.max(bottom, row);
+            if (row > 0)
+            {
+                addSeeds(row - 1, start, end);
+            }
+            if (row < height - 1)
+            {
+                addSeeds(row + 1, start, end);
+            }
+        }
+        return new Rectangle(left, top, right - left, bottom - top + 1);
+    }
+
+    // adds the first pixel of every matching run between start and end of the row as a seed
+    private void addSeeds(int row, int start, int end)
+    {
+        long rowIndex = (long) row * width;
+        int column = nextUnvisited(rowIndex, start, end);
+        while (column < end)
+        {
+            if (!matches(column, row))
+            {
+                column = nextUnvisited(rowIndex, column + 1, end);
+                continue;
+            }
+            stack.add(column);
+            stack.add(row);
+            column = nextUnvisited(rowIndex, runEnd(row, column + 1, end), end);
+        }
+    }
+
+    // the first column of the run of fillable pixels that ends at column
+    private int runStart(int row, int column)
+    {
+        long rowIndex = (long) row * width;
+        if (fast)
+        {
+            int base = offset + row * stride;
+            int layerBase = layerOffset + row * layerStride;
+            while (column > 0 && !isVisited(rowIndex + column - 1) && matchesColor(pixels[base + column - 1])
+                    && (layerPixels == null || layerPixels[layerBase + column - 1] >>> 24 == 0))
+            {
+                column--;
+            }
+            return column;
+        }
+        while (column > 0 && !isVisited(rowIndex + column - 1) && matches(column - 1, row))
+        {
+            column--;
+        }
+        return column;
+    }
+
+    // the end (exclusive) of the run of fillable pixels that starts at column, at most limit
+    private int runEnd(int row, int column, int limit)
+    {
+        long rowIndex = (long) row * width;
+        if (fast)
+        {
+            int base = offset + row * stride;
+            int layerBase = layerOffset + row * layerStride;
+            while (column < limit && !isVisited(rowIndex + column) && matchesColor(pixels[base + column])
+                    && (layerPixels == null || layerPixels[layerBase + column] >>> 24 == 0))
+            {
+                column++;
+            }
+            return column;
+        }
+        while (column < limit && !isVisited(rowIndex + column) && matches(column, row))
+        {
+            column++;
+        }
+        return column;
+    }
+
+    private boolean matches(int x, int y)
+    {
+        return matchesColor(pixel(x, y)) && !isShape(x, y);
+    }
+
+    private boolean matchesColor(int argb)
+    {
+        return argb == seed || tolerance != 0
+                && Math.abs((argb >>> 24) - (seed >>> 24)) <= tolerance
+                && Math.abs(((argb >> 16) & 0xff) - ((seed >> 16) & 0xff)) <= tolerance
+                && Math.abs(((argb >> 8) & 0xff) - ((seed >> 8) & 0xff)) <= tolerance
+                && Math.abs((argb & 0xff) - (seed & 0xff)) <= tolerance;
+    }
+
+    private int pixel(int x, int y)
+    {
+        return pixels != null ? pixels[offset + y * stride + x] : image.getRGB(x, y);
+    }
+
+    // true if a shape covers the pixel
+    private boolean isShape(int x, int y)
+    {
+        if (shapeLayer == null)
+        {
+            return false;
+        }
+        int argb = layerPixels != null ? layerPixels[layerOffset + y * layerStride + x] : shapeLayer.getRGB(x, y);
+        return argb >>> 24 != 0;
+    }
+
+    private boolean isVisited(int x, int y)
+    {
+        return isVisited((long) y * width + x);
+    }
+
+    private boolean isVisited(long index)
+    {
+        return (visited[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    // the first column from x that is not visited, limit if there is none before it,
+    // 64 visited pixels are skipped at once
+    private int nextUnvisited(long rowIndex, int x, int limit)
+    {
+        while (x < limit)
+        {
+            long index = rowIndex + x;
+            long free = ~visited[(int) (index >>> 6)] >>> (index & 63); // bit 0 is x
+            if (free != 0)
+            {
+                return Math.min(x + Long.numberOfTrailingZeros(free), limit);
+            }
+            x += 64 - (int) (index & 63);
+        }
+        return limit;
+    }
+
+    // marks the pixels from start to end (exclusive) of the row as visited, whole words at once
+    private void markVisited(int y, int start, int end)
+    {
+        long from = (long) y * width + start;
+        long to = (long) y * width + end;
+        int first = (int) (from >>> 6);
+        int last = (int) ((to - 1) >>> 6);
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last)
+        {
+            visited[first] |= firstMask & lastMask;
+            return;
+        }
+        visited[first] |= firstMask;
+        for (int i = first + 1; i < last; i++)
+        {
+            visited[i] = -1L;
+        }
+        visited[last] |= lastMask;
+    }
+}
@@ -0,0 +1,91 @@
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.SwingUtilities;
+
+// this class loads the toolbar icons as classpath resources (icons/ is packaged into the jar),
+// so they are found whatever the working directory is
+// the icons are decoded in parallel on the common pool instead of one after the other on the EDT,
+// a button shows an empty icon of the same size until its icon arrives, so the toolbar does not change its layout
+// a decoded icon is kept, asking for it again does not read it again
+public class IconLoader
+{
+    public static final int ICON_SIZE = 16; // the size of the icons in icons/
+
+    private static final Map<String, CompletableFuture<ImageIcon>> icons = new ConcurrentHashMap<>();
+
+    // an empty icon that takes the space of a toolbar icon
+    private static final Icon PLACEHOLDER = new Icon()
+    {
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y)
+        {
+        }
+
+        @Override
+        public int getIconWidth()
+        {
+            return ICON_SIZE;
+        }
+
+        @Override
+        public int getIconHeight()
+        {
+            return ICON_SIZE;
+        }
+    };
+
+    // starts decoding the icons, called before the window is created so it overlaps with the Swing startup
+    public static void preload(String... names)
+    {
+        for (String name : names)
+        {
+            load(name);
+        }
+    }
+
+    // the icon icons/<name>.png, decoded on the common pool, null if it cannot be read
+    public static CompletableFuture<ImageIcon> load(String name)
+    {
+        return icons.computeIfAbsent(name, key -> CompletableFuture.supplyAsync(() -> decode(key)));
+    }
+
+    // shows the icon on the button when it is decoded, until then the button has a placeholder,
+    // if the icon cannot be read the button shows the text instead
+    public static void setIcon(JButton button, String name, String text)
+    {
+        CompletableFuture<ImageIcon> icon = load(name);
+        if (icon.isDone())
+        {
+            showIcon(button, icon.join(), text); // already decoded, no placeholder is needed
+            return;
+        }
+        button.setIcon(PLACEHOLDER);
+        icon.thenAccept(loaded -> SwingUtilities.invokeLater(() -> showIcon(button, loaded, text)));
+    }
+
+    private static void showIcon(JButton button, ImageIcon icon, String text)
+    {
+        if (icon != null)
+        {
+            button.setIcon(icon);
+        }
+        else
+        {
+            button.setIcon(null);
+            button.setText(text);
+        }
+    }
+
+    private static ImageIcon decode(String name)
+    {
+        Image image = ImageUtils.loadResourceImage("icons/" + name + ".png");
+        return image == null ? null : new ImageIcon(image);
+    }
+}
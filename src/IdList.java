@@ -0,0 +1,281 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// a sorted list of shape ids, stored in chunks of ints
+// snapshot() returns a read-only copy that shares the chunks with this list (copy-on-write),
+// a chunk is copied only when the list changes it after a snapshot, so taking a snapshot
+// for the undo history costs one small array copy instead of a copy of all ids
+public class IdList
+{
+    private static final int CHUNK_SIZE = 1024; // maximum number of ids in one chunk
+
+    private int[][] chunks; // sorted ids, every chunk has ids greater than the chunks before it
+    private int[] chunkSizes; // number of ids used in every chunk
+    private boolean[] owned; // false if the chunk may be shared with a snapshot and has to be copied before a change
+    private int chunkCount;
+    private int size;
+    private boolean readOnly; // snapshots cannot be changed
+
+    public IdList()
+    {
+        chunks = new int[4][];
+        chunkSizes = new int[4];
+        owned = new boolean[4];
+    }
+
+    private IdList(IdList source, boolean readOnly)
+    {
+        chunkCount = source.chunkCount;
+        chunks = Arrays.copyOf(source.chunks, Math.max(chunkCount, 4));
+        chunkSizes = Arrays.copyOf(source.chunkSizes, chunks.length);
+        owned = new boolean[chunks.length]; // the chunks are shared now
+        size = source.size;
+        this.readOnly = readOnly;
+    }
+
+    // a read-only copy of the list as it is now
+    public IdList snapshot()
+    {
+        if (readOnly)
+        {
+            return this;
+        }
+        Arrays.fill(owned, 0, chunkCount, false); // later changes must not be seen by the snapshot
+        return new IdList(this, true);
+    }
+
+    // a list that can be changed and starts with the ids of this list
+    public IdList mutableCopy()
+    {
+        if (!readOnly)
+        {
+            Arrays.fill(owned, 0, chunkCount, false);
+        }
+        return new IdList(this, false);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    // adds the id at its sorted position, adding an id greater than all others is the fast case
+    public void add(int id)
+    {
+        checkWritable();
+        if (chunkCount == 0)
+        {
+            insertChunk(0, new int[CHUNK_SIZE], 0);
+        }
+        int chunk = findChunk(id);
+        int position = Arrays.binarySearch(chunks[chunk], 0, chunkSizes[chunk], id);
+        if (position >= 0)
+        {
+            return; // already in the list
+        }
+        position = -position - 1;
+        if (chunkSizes[chunk] == CHUNK_SIZE) // split the full chunk in two halves
+        {
+            int half = CHUNK_SIZE / 2;
+            int[] upper = new int[CHUNK_SIZE];
+            System.arraycopy(chunks[chunk], half, upper, 0, half);
+            makeOwned(chunk);
+            chunkSizes[chunk] = half;
+            insertChunk(chunk + 1, upper, half);
+            if (position > half)
+            {
+                chunk++;
+                position -= half;
+            }
+        }
+        makeOwned(chunk);
+        int[] ids = chunks[chunk];
+        System.arraycopy(ids, position, ids, position + 1, chunkSizes[chunk] - position);
+        ids[position] = id;
+        chunkSizes[chunk]++;
+        size++;
+    }
+
+    public boolean remove(int id)
+    {
+        checkWritable();
+        if (chunkCount == 0)
+        {
+            return false;
+        }
+        int chunk = findChunk(id);
+        int position = Arrays.binarySearch(chunks[chunk], 0, chunkSizes[chunk], id);
+        if (position < 0)
+        {
+            return false;
+        }
+        if (chunkSizes[chunk] == 1)
+        {
+            removeChunk(chunk);
+        }
+        else
+        {
+            makeOwned(chunk);
+            int[] ids = chunks[chunk];
+            System.arraycopy(ids, position + 1, ids, position, chunkSizes[chunk] - position - 1);
+            chunkSizes[chunk]--;
+        }
+        size--;
+        return true;
+    }
+
+    public boolean contains(int id)
+    {
+        if (chunkCount == 0)
+        {
+            return false;
+        }
+        int chunk = findChunk(id);
+        return Arrays.binarySearch(chunks[chunk], 0, chunkSizes[chunk], id) >= 0;
+    }
+
+    public void clear()
+    {
+        checkWritable();
+        Arrays.fill(chunks, 0, chunkCount, null);
+        chunkCount = 0;
+        size = 0;
+    }
+
+    // calls the action with every id in ascending order
+    public void forEach(IntConsumer action)
+    {
+        for (int chunk = 0; chunk < chunkCount; chunk++)
+        {
+            int[] ids = chunks[chunk];
+            for (int i = 0; i < chunkSizes[chunk]; i++)
+            {
+                action.accept(ids[i]);
+            }
+        }
+    }
+
+    // finds the ids that are only in after (added) and only in before (removed),
+    // chunks shared by both lists are skipped without looking at their ids
+    public static void diff(IdList before, IdList after, IntList added, IntList removed)
+    {
+        int chunkA = 0, indexA = 0, chunkB = 0, indexB = 0;
+        while (chunkA < before.chunkCount && chunkB < after.chunkCount)
+        {
+            if (indexA == 0 && indexB == 0 && before.chunks[chunkA] == after.chunks[chunkB]
+                    && before.chunkSizes[chunkA] == after.chunkSizes[chunkB])
+            {
+                chunkA++; // the same chunk, nothing changed in it
+                chunkB++;
+                continue;
+            }
+            int a = before.chunks[chunkA][indexA];
+            int b = after.chunks[chunkB][indexB];
+            if (a <= b)
+            {
+                if (a < b)
+                {
+                    removed.add(a);
+                }
+                if (++indexA == before.chunkSizes[chunkA])
+                {
+                    chunkA++;
+                    indexA = 0;
+                }
+            }
+            if (b <= a)
+            {
+                if (b < a)
+                {
+                    added.add(b);
+                }
+                if (++indexB == after.chunkSizes[chunkB])
+                {
+                    chunkB++;
+                    indexB = 0;
+                }
+            }
+        }
+        for (; chunkA < before.chunkCount; chunkA++, indexA = 0)
+        {
+            for (; indexA < before.chunkSizes[chunkA]; indexA++)
+            {
+                removed.add(before.chunks[chunkA][indexA]);
+            }
+        }
+        for (; chunkB < after.chunkCount; chunkB++, indexB = 0)
+        {
+            for (; indexB < after.chunkSizes[chunkB]; indexB++)
+            {
+                added.add(after.chunks[chunkB][indexB]);
+            }
+        }
+    }
+
+    // the chunk that contains the id or where it would be inserted
+    private int findChunk(int id)
+    {
+        int low = 0, high = chunkCount - 1;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (chunks[middle][chunkSizes[middle] - 1] < id)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void makeOwned(int chunk)
+    {
+        if (!owned[chunk])
+        {
+            chunks[chunk] = Arrays.copyOf(chunks[chunk], CHUNK_SIZE);
+            owned[chunk] = true;
+        }
+    }
+
+    private void insertChunk(int index, int[] ids, int count)
+    {
+        if (chunkCount == chunks.length)
+        {
+            int capacity = chunks.length * 2;
+            chunks = Arrays.copyOf(chunks, capacity);
+            chunkSizes = Arrays.copyOf(chunkSizes, capacity);
+            owned = Arrays.copyOf(owned, capacity);
+        }
+        System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+        System.arraycopy(chunkSizes, index, chunkSizes, index + 1, chunkCount - index);
+        System.arraycopy(owned, index, owned, index + 1, chunkCount - index);
+        chunks[index] = ids;
+        chunkSizes[index] = count;
+        owned[index] = true;
+        chunkCount++;
+    }
+
+    private void removeChunk(int index)
+    {
+        System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+        System.arraycopy(chunkSizes, index + 1, chunkSizes, index, chunkCount - index - 1);
+        System.arraycopy(owned, index + 1, owned, index, chunkCount - index - 1);
+        chunks[--chunkCount] = null;
+    }
+
+    private void checkWritable()
+    {
+        if (readOnly)
+        {
+            throw new UnsupportedOperationException("A snapshot cannot be changed");
+        }
+    }
+}
@@ -0,0 +1,399 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+// this class applies a filter (blur, sharpen, brightness/contrast, grayscale) to an area of an image
+// the pixels are read and written as ARGB rows (from the pixel array on TYPE_INT_ARGB images),
+// blur and sharpen use a separable kernel: every row is filtered horizontally, then every column vertically,
+// which costs 2 * (2 * radius + 1) instead of (2 * radius + 1)^2 multiplications per pixel
+// the area is split into bands of rows that are filtered in parallel with fork/join (see ParallelRaster),
+// the kernel loops are written as plain loops over int arrays, one channel at a time,
+// so the JIT can compile them to SIMD instructions
+// the colors are premultiplied with the alpha while they are filtered, so transparent pixels do not
+// darken the edges of a layer
+// filtering in place: a band needs the unfiltered rows around it, so the bands are filtered in chunks,
+// the rows below a chunk are only written after it is done, and the last rows of the chunk are kept
+// unfiltered for the chunk after it
+public class ImageFilter
+{
+    public static final int BLUR = 0; // amount: radius in pixels
+    public static final int SHARPEN = 1; // amount: strength in percent
+    public static final int BRIGHTNESS_CONTRAST = 2; // amount: brightness, amount2: contrast, both -100 to 100
+    public static final int GRAYSCALE = 3;
+    public static final String[] NAMES = {"Blur", "Sharpen", "Brightness/Contrast", "Grayscale"};
+    public static final int MAX_RADIUS = 50;
+
+    private static final int BAND_ROWS = 64; // rows filtered by one task
+    private static final int CHUNK_BANDS = 4 * Runtime.getRuntime().availableProcessors(); // bands filtered together
+    private static final int WEIGHT_BITS = 12; // the kernel weights add up to 1 << WEIGHT_BITS
+    private static final int EXTRA_BITS = 4; // precision kept between the horizontal and the vertical pass
+
+    private int type;
+    private int amount;
+    private int amount2;
+    private int radius; // pixels read on every side of a pixel
+    private int[] weights; // 2 * radius + 1 weights of the separable kernel
+
+    public ImageFilter(int type, int amount, int amount2)
+    {
+        this.type = type;
+        switch (type) {
+            case BLUR:
+                this.amount = Math.max(0, Math.min(amount, MAX_RADIUS));
+                radius = this.amount;
+                weights = gaussian(radius);
+                break;
+            case SHARPEN:
+                this.amount = Math.max(0, Math.min(amount, 500));
+                radius = 1; // the details are the difference to a blur of radius 1
+                weights = gaussian(radius);
+                break;
+            case BRIGHTNESS_CONTRAST:
+                this.amount = Math.max(-100, Math.min(amount, 100));
+                this.amount2 = Math.max(-100, Math.min(amount2, 100));
+                break;
+            case GRAYSCALE:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + type);
+        }
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    public int getAmount()
+    {
+        return amount;
+    }
+
+    public int getAmount2()
+    {
+        return amount2;
+    }
+
+    // the same filter for an image scaled by the factor, used for the preview of a zoomed out view
+    public ImageFilter scaled(double factor)
+    {
+        return type == BLUR ? new ImageFilter(type, (int) Math.round(amount * factor), amount2) : this;
+    }
+
+    // filters the area of the image in place
+    public void apply(BufferedImage image, Rectangle area)
+    {
+        filter(image, area, image, area.x, area.y);
+    }
+
+    // returns the filtered pixels of the area in a new image of the size of the area, the image is not changed
+    public BufferedImage preview(BufferedImage image, Rectangle area)
+    {
+        Rectangle inside = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        BufferedImage preview = new BufferedImage(Math.max(inside.width, 1), Math.max(inside.height, 1),
+                BufferedImage.TYPE_INT_ARGB);
+        filter(image, inside, preview, 0, 0);
+        return preview;
+    }
+
+    // filters the area of the source into the target at (targetX, targetY), source and target can be the same image
+    private void filter(BufferedImage source, Rectangle area, BufferedImage target, int targetX, int targetY)
+    {
+        Rectangle inside = area.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        if (inside.isEmpty())
+        {
+            return;
+        }
+        int dx = targetX - area.x; // target position minus source position
+        int dy = targetY - area.y;
+        if (type == BRIGHTNESS_CONTRAST || type == GRAYSCALE)
+        {
+            mapColors(source, inside, target, dx, dy);
+        }
+        else
+        {
+            convolve(source, inside, target, dx, dy);
+        }
+    }
+
+    // filters that change every pixel on its own, the rows are read, changed and written back in parallel bands
+    private void mapColors(BufferedImage source, Rectangle area, BufferedImage target, int dx, int dy)
+    {
+        int[] table = type == BRIGHTNESS_CONTRAST ? brightnessContrastTable() : null;
+        int width = area.width;
+        ParallelRaster.run(area.y, area.y + area.height, width, (from, to) -> {
+            int[] row = new int[width];
+            for (int y = from; y < to; y++)
+            {
+                ParallelRaster.getRow(source, area.x, y, width, row);
+                if (table != null)
+                {
+                    for (int i = 0; i < width; i++)
+                    {
+                        int p = row[i];
+                        row[i] = (p & 0xff000000) | (table[(p >> 16) & 0xff] << 16)
+                                | (table[(p >> 8) & 0xff] << 8) | table[p & 0xff];
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < width; i++)
+                    {
+                        int p = row[i];
+                        int luma = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29 + 128) >> 8;
+                        row[i] = (p & 0xff000000) | (luma << 16) | (luma << 8) | luma;
+                    }
+                }
+                ParallelRaster.setRow(target, area.x + dx, y + dy, width, row);
+            }
+        });
+    }
+
+    // new value of every channel value for the brightness and contrast
+    private int[] brightnessContrastTable()
+    {
+        double contrast = amount2 <= 0 ? (100 + amount2) / 100.0 : 100.0 / (101 - amount2);
+        double brightness = amount * 255 / 100.0;
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++)
+        {
+            table[v] = (int) Math.max(0, Math.min(Math.round((v - 128) * contrast + 128 + brightness), 255));
+        }
+        return table;
+    }
+
+    // blur and sharpen, the bands of a chunk are filtered into buffers in parallel, then written
+    private void convolve(BufferedImage source, Rectangle area, BufferedImage target, int dx, int dy)
+    {
+        boolean inPlace = source == target;
+        int left = Math.max(area.x - radius, 0); // columns read around the area
+        int readWidth = Math.min(area.x + area.width + radius, source.getWidth()) - left;
+        int bottom = area.y + area.height;
+        int chunkRows = BAND_ROWS * CHUNK_BANDS; // more than MAX_RADIUS, a band only reads the chunk before it
+        int[] carry = null; // unfiltered rows at the end of the chunk before, they are filtered in the image already
+        int carryTop = 0;
+        for (int chunk = area.y; chunk < bottom; chunk += chunkRows)
+        {
+            int chunkTop = chunk;
+            int chunkBottom = Math.min(chunk + chunkRows, bottom);
+            int bands = (chunkBottom - chunkTop + BAND_ROWS - 1) / BAND_ROWS;
+            int[][] filtered = new int[bands][];
+            int[] rowsAbove = carry;
+            int rowsAboveTop = carryTop;
+            ParallelRaster.run(0, bands, BAND_ROWS * area.width * (2 * radius + 1), (from, to) -> {
+                for (int band = from; band < to; band++)
+                {
+                    int top = chunkTop + band * BAND_ROWS;
+                    filtered[band] = filterBand(source, area, top, Math.min(top + BAND_ROWS, chunkBottom),
+                            left, readWidth, rowsAbove, rowsAboveTop);
+                }
+            });
+            if (inPlace && chunkBottom < bottom)
+            {
+                // the next chunk reads these rows, they have to be kept before they are filtered
+                carryTop = Math.max(chunkBottom - radius, area.y);
+                carry = new int[(chunkBottom - carryTop) * readWidth];
+                int[] row = new int[readWidth];
+                for (int y = carryTop; y < chunkBottom; y++)
+                {
+                    ParallelRaster.getRow(source, left, y, readWidth, row);
+                    System.arraycopy(row, 0, carry, (y - carryTop) * readWidth, readWidth);
+                }
+            }
+            ParallelRaster.run(0, bands, BAND_ROWS * area.width, (from, to) -> {
+                int[] row = new int[area.width];
+                for (int band = from; band < to; band++)
+                {
+                    int top = chunkTop + band * BAND_ROWS;
+                    int rows = Math.min(top + BAND_ROWS, chunkBottom) - top;
+                    for (int i = 0; i < rows; i++)
+                    {
+                        System.arraycopy(filtered[band], i * area.width, row, 0, area.width);
+                        ParallelRaster.setRow(target, area.x + dx, top + i + dy, area.width, row);
+                    }
+                }
+            });
+        }
+    }
+
+    // filters the rows top to bottom (exclusive) of the area and returns them as ARGB pixels
+    private int[] filterBand(BufferedImage source, Rectangle area, int top, int bottom, int left, int readWidth,
+                             int[] carry, int carryTop)
+    {
+        int width = area.width;
+        int kernel = 2 * radius + 1;
+        int rows = bottom - top + 2 * radius; // rows read, the radius above and below the band
+        int lastRow = source.getHeight() - 1;
+        int lineLength = width + 2 * radius;
+        int first = left - (area.x - radius); // the first read pixel in the line, the pixels before repeat it
+        int[] row = new int[readWidth];
+        int[][] line = new int[4][lineLength]; // one read row with the radius on both sides, per channel
+        int[][] horizontal = new int[4][rows * width]; // rows filtered horizontally, per channel
+        int[] sum = new int[width];
+        int[] original = type == SHARPEN ? new int[(bottom - top) * width] : null; // sharpen adds their details
+        int carryBottom = carry == null ? 0 : carryTop + carry.length / readWidth;
+        for (int j = 0; j < rows; j++)
+        {
+            // the rows and columns outside the image repeat the pixels at its edge
+            int y = Math.max(0, Math.min(top - radius + j, lastRow));
+            if (y >= carryTop && y < carryBottom)
+            {
+                System.arraycopy(carry, (y - carryTop) * readWidth, row, 0, readWidth);
+            }
+            else
+            {
+                ParallelRaster.getRow(source, left, y, readWidth, row);
+            }
+            premultiply(row, readWidth, line, first);
+            for (int channel = 0; channel < 4; channel++)
+            {
+                int[] values = line[channel];
+                Arrays.fill(values, 0, first, values[first]);
+                Arrays.fill(values, first + readWidth, lineLength, values[first + readWidth - 1]);
+            }
+            if (original != null && j >= radius && j < rows - radius)
+            {
+                System.arraycopy(row, area.x - left, original, (j - radius) * width, width);
+            }
+            int rounding = 1 << (WEIGHT_BITS - EXTRA_BITS - 1);
+            for (int channel = 0; channel < 4; channel++)
+            {
+                int[] values = line[channel];
+                Arrays.fill(sum, 0);
+                for (int k = 0; k < kernel; k++)
+                {
+                    multiplyAdd(sum, values, k, weights[k], width);
+                }
+                int[] out = horizontal[channel];
+                int offset = j * width;
+                for (int i = 0; i < width; i++)
+                {
+                    out[offset + i] = (sum[i] + rounding) >> (WEIGHT_BITS - EXTRA_BITS);
+                }
+            }
+        }
+        int[] result = new int[(bottom - top) * width];
+        int[][] blurred = new int[4][width];
+        int shift = WEIGHT_BITS + EXTRA_BITS;
+        for (int o = 0; o < bottom - top; o++)
+        {
+            for (int channel = 0; channel < 4; channel++)
+            {
+                int[] values = horizontal[channel];
+                Arrays.fill(sum, 0);
+                for (int k = 0; k < kernel; k++)
+                {
+                    multiplyAdd(sum, values, (o + k) * width, weights[k], width);
+                }
+                int[] out = blurred[channel];
+                for (int i = 0; i < width; i++)
+                {
+                    out[i] = (sum[i] + (1 << (shift - 1))) >> shift;
+                }
+            }
+            unpremultiply(blurred, width, result, o * width);
+            if (original != null)
+            {
+                for (int i = o * width; i < (o + 1) * width; i++)
+                {
+                    result[i] = sharpen(original[i], result[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    // the kernel loop, adds weight times the values from the offset to the sums,
+    // kept small and on its own so the JIT compiles it to SIMD instructions
+    private static void multiplyAdd(int[] sums, int[] values, int offset, int weight, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            sums[i] += weight * values[offset + i];
+        }
+    }
+
+    // splits the ARGB pixels into one array per channel from the position, the colors are multiplied with the alpha
+    private static void premultiply(int[] row, int length, int[][] line, int position)
+    {
+        int[] alphas = line[0], reds = line[1], greens = line[2], blues = line[3];
+        for (int i = 0; i < length; i++)
+        {
+            int p = row[i];
+            int alpha = p >>> 24;
+            int red = (p >> 16) & 0xff, green = (p >> 8) & 0xff, blue = p & 0xff;
+            if (alpha != 255) // most pixels of a canvas are opaque
+            {
+                red = (red * alpha + 127) / 255;
+                green = (green * alpha + 127) / 255;
+                blue = (blue * alpha + 127) / 255;
+            }
+            alphas[position + i] = alpha;
+            reds[position + i] = red;
+            greens[position + i] = green;
+            blues[position + i] = blue;
+        }
+    }
+
+    // joins the channels into ARGB pixels at the position of the result, the colors are divided by the alpha
+    private static void unpremultiply(int[][] channels, int length, int[] result, int position)
+    {
+        int[] alphas = channels[0], reds = channels[1], greens = channels[2], blues = channels[3];
+        for (int i = 0; i < length; i++)
+        {
+            int alpha = alphas[i];
+            int red = reds[i], green = greens[i], blue = blues[i];
+            if (alpha == 0)
+            {
+                red = green = blue = 0;
+            }
+            else if (alpha != 255)
+            {
+                red = Math.min(red * 255 / alpha, 255);
+                green = Math.min(green * 255 / alpha, 255);
+                blue = Math.min(blue * 255 / alpha, 255);
+            }
+            result[position + i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    // adds the difference between the pixel and its blurred value, the details, times the strength
+    private int sharpen(int pixel, int blurred)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            int value = (pixel >>> shift) & 0xff;
+            int detail = value - ((blurred >>> shift) & 0xff);
+            result |= Math.max(0, Math.min(value + detail * amount / 100, 255)) << shift;
+        }
+        return result;
+    }
+
+    // weights of a gaussian kernel with the radius, in fixed point, the rounding error is added to the middle
+    private static int[] gaussian(int radius)
+    {
+        int[] weights = new int[2 * radius + 1];
+        if (radius == 0)
+        {
+            weights[0] = 1 << WEIGHT_BITS;
+            return weights;
+        }
+        double sigma = Math.max(radius / 2.0, 0.5);
+        double[] values = new double[weights.length];
+        double total = 0;
+        for (int k = -radius; k <= radius; k++)
+        {
+            values[k + radius] = Math.exp(-k * k / (2 * sigma * sigma));
+            total += values[k + radius];
+        }
+        int sum = 0;
+        for (int k = 0; k < weights.length; k++)
+        {
+            weights[k] = (int) Math.round(values[k] / total * (1 << WEIGHT_BITS));
+            sum += weights[k];
+        }
+        weights[radius] += (1 << WEIGHT_BITS) - sum;
+        return weights;
+    }
+}
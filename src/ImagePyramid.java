@@ -0,0 +1,185 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+// this class keeps reduced copies of the canvas image (a mipmap pyramid) for the zoomed out views,
+// level 1 has half the width and height of the image, level 2 a quarter and so on,
+// so a zoomed out view copies the pixels of its level instead of scaling the whole image every frame
+// a level is built the first time it is used, after that only the areas changed since are reduced again:
+// the changed areas of the image are collected for every built level and each level is updated
+// from the level above it when it is used
+// a new image object (open, clear, resize) drops all levels
+public class ImagePyramid
+{
+    public static final int MAX_LEVEL = 5; // level 5 is 1/32 of the image
+
+    private BufferedImage source; // the image the levels were reduced from
+    private BufferedImage[] levels = new BufferedImage[MAX_LEVEL + 1]; // index 0 is not used, it is the source
+    private Rectangle[] stale = new Rectangle[MAX_LEVEL + 1]; // changed area of each built level, in image pixels
+    private Rectangle[] areas = new Rectangle[MAX_LEVEL + 1]; // areas reduced by getLevel()
+    private int[] upper = new int[0], lower = new int[0], reduced = new int[0]; // reused rows
+
+    // marks an area of the image as changed, can be called from any thread
+    public synchronized void invalidate(int x, int y, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            return;
+        }
+        for (int level = 1; level <= MAX_LEVEL; level++)
+        {
+            if (levels[level] == null)
+            {
+                break; // a level is only built when the one above it is built
+            }
+            if (stale[level] == null)
+            {
+                stale[level] = new Rectangle(x, y, width, height);
+            }
+            else // join the areas without creating new objects
+            {
+                stale[level].add(x, y);
+                stale[level].add(x + width, y + height);
+            }
+        }
+    }
+
+    // returns the level of the image, up to date with the changes marked so far, used on the EDT
+    public BufferedImage getLevel(BufferedImage image, int level)
+    {
+        if (level < 1 || level > MAX_LEVEL)
+        {
+            throw new IllegalArgumentException("Level must be between 1 and " + MAX_LEVEL + ": " + level);
+        }
+        // the changed areas of all levels down to this one are taken together, so a change marked
+        // while the levels are reduced is reduced again in every level the next time
+        synchronized (this)
+        {
+            if (image != source)
+            {
+                source = image;
+                for (int i = 1; i <= MAX_LEVEL; i++)
+                {
+                    MappedDataBuffer.disposeImage(levels[i]);
+                    levels[i] = null;
+                    stale[i] = null;
+                }
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            for (int i = 1; i <= level; i++)
+            {
+                width = (width + 1) / 2;
+                height = (height + 1) / 2;
+                if (levels[i] == null)
+                {
+                    levels[i] = createLevelImage(width, height);
+                    areas[i] = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+                }
+                else
+                {
+                    areas[i] = stale[i];
+                }
+                stale[i] = null;
+            }
+        }
+        for (int i = 1; i <= level; i++)
+        {
+            Rectangle area = areas[i];
+            if (area == null)
+            {
+                continue;
+            }
+            areas[i] = null;
+            // the area in pixels of this level, every pixel is reduced from 2x2 pixels of the level above
+            int scale = 1 << i;
+            BufferedImage target = levels[i];
+            int left = Math.max(area.x / scale, 0);
+            int top = Math.max(area.y / scale, 0);
+            int right = Math.min((area.x + area.width + scale - 1) / scale, target.getWidth());
+            int bottom = Math.min((area.y + area.height + scale - 1) / scale, target.getHeight());
+            if (left < right && top < bottom)
+            {
+                reduce(i == 1 ? image : levels[i - 1], target, left, top, right - left, bottom - top);
+            }
+        }
+        return levels[level];
+    }
+
+    // memory used by the built levels
+    public synchronized long getSizeInBytes()
+    {
+        long bytes = 0;
+        for (int level = 1; level <= MAX_LEVEL; level++)
+        {
+            if (levels[level] != null)
+            {
+                bytes += 4L * levels[level].getWidth() * levels[level].getHeight();
+            }
+        }
+        return bytes;
+    }
+
+    // writes the average of every 2x2 pixels of the source into one pixel of the target,
+    // the last row and column of an odd sized source are used twice
+    private void reduce(BufferedImage source, BufferedImage target, int x, int y, int width, int height)
+    {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int rowLength = Math.min(2 * (x + width), sourceWidth) - 2 * x;
+        if (upper.length < rowLength)
+        {
+            upper = new int[rowLength];
+            lower = new int[rowLength];
+        }
+        if (reduced.length < width)
+        {
+            reduced = new int[width];
+        }
+        for (int row = y; row < y + height; row++)
+        {
+            ParallelRaster.getRow(source, 2 * x, 2 * row, rowLength, upper);
+            ParallelRaster.getRow(source, 2 * x, Math.min(2 * row + 1, sourceHeight - 1), rowLength, lower);
+            for (int i = 0; i < width; i++)
+            {
+                int first = 2 * i;
+                int second = Math.min(first + 1, rowLength - 1);
+                reduced[i] = average(upper[first], upper[second], lower[first], lower[second]);
+            }
+            ParallelRaster.setRow(target, x, row, width, reduced);
+        }
+    }
+
+    // average of four ARGB pixels, every channel on its own
+    private static int average(int a, int b, int c, int d)
+    {
+        int alpha = ((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2;
+        int red = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+        int green = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+        int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    // deletes the scratch files of the levels, they are built again when they are used
+    public synchronized void dispose()
+    {
+        for (int i = 1; i <= MAX_LEVEL; i++)
+        {
+            MappedDataBuffer.disposeImage(levels[i]);
+            levels[i] = null;
+            stale[i] = null;
+        }
+        source = null;
+    }
+
+    // the levels of a very large canvas are kept in a scratch file like the canvas image
+    private static BufferedImage createLevelImage(int width, int height)
+    {
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+        if (MappedDataBuffer.shouldMap(width, height))
+        {
+            return MappedDataBuffer.createImage(width, height, 0);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+}
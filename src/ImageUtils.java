@@ -4,8 +4,12 @@ import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import javax.imageio.ImageIO;
 import java.util.Hashtable;
+import java.util.Iterator;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 // this class is used in the PaintCanvas class
 // for loading images from the disk and creating deep copies of images.
@@ -14,12 +18,47 @@ public class ImageUtils
     // this method creates a deep copy of the BufferedImage object
     public static BufferedImage deepCopy(BufferedImage bi)
     {
+        if (MappedDataBuffer.isMapped(bi)) // very large images are copied file to file, not through the heap
+        {
+            return MappedDataBuffer.copyOf(bi);
+        }
+        if (ParallelRaster.isDirect(bi)) // ARGB images are copied in parallel bands of rows
+        {
+            BufferedImage copy = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            ParallelRaster.copy(bi, copy, 0, 0, bi.getWidth(), bi.getHeight());
+            return copy;
+        }
         ColorModel cm = bi.getColorModel(); // get the ColorModel from the original image
         boolean isAlphaPremultiplied = cm.isAlphaPremultiplied(); // check if the image has an alpha channel
         WritableRaster raster = bi.copyData(null); // create a new writable raster based on the original image pixels
         return new BufferedImage(cm, raster, isAlphaPremultiplied, new Hashtable<>());
     }
 
+    // this method reads an image that will be edited on the canvas
+    // very large images are decoded straight into a memory-mapped scratch file instead of the heap
+    public static BufferedImage readCanvasImage(File file) throws IOException
+    {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file))
+        {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext())
+            {
+                throw new IOException("Unsupported image file: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                if (MappedDataBuffer.shouldMap(reader.getWidth(0), reader.getHeight(0)))
+                {
+                    return MappedDataBuffer.read(reader);
+                }
+                return reader.read(0); // the decoded image is not shared, so it does not have to be copied
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
     // this method is used to load an image from a file on the disk
     public static Image loadImage(String path) // returns an Image object, which is the loaded image
     {
@@ -30,4 +69,22 @@ public class ImageUtils
             return null;
         }
     }
+
+    // this method loads an image packaged with the application, like the toolbar icons
+    // if it is not on the classpath (classes compiled without the resources) it is read from the working directory
+    public static Image loadResourceImage(String path)
+    {
+        URL url = ImageUtils.class.getClassLoader().getResource(path);
+        if (url == null)
+        {
+            File file = new File(path);
+            return file.isFile() ? loadImage(path) : null;
+        }
+        try {
+            return ImageIO.read(url);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 }
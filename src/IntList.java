@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+// a growable list of ints, used for shape ids so no Integer objects are created
+public class IntList
+{
+    private int[] values;
+    private int size;
+
+    public IntList()
+    {
+        this(16);
+    }
+
+    public IntList(int capacity)
+    {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value)
+    {
+        if (size == values.length)
+        {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int index)
+    {
+        if (index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    // removes the first occurrence of the value, the last value is moved into its place
+    public boolean removeValue(int value)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (values[i] == value)
+            {
+                values[i] = values[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // removes and returns the last value, so the list can be used as a stack
+    public int removeLast()
+    {
+        if (size == 0)
+        {
+            throw new IndexOutOfBoundsException("The list is empty");
+        }
+        return values[--size];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public void sort()
+    {
+        Arrays.sort(values, 0, size);
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
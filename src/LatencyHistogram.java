@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// a histogram of durations in nanoseconds that can be recorded from any thread without allocating
+// the buckets grow in powers of two, every power of two is split into 4 sub-buckets,
+// so a percentile is exact to about 20 percent, which is enough to see where the time goes
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 2; // 4 sub-buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong total = new AtomicLong(); // sum of all values
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+    // the value below which the given fraction of the values are (0.5 = median), the upper end of its bucket
+    public long getPercentile(double fraction)
+    {
+        long n = count.get();
+        if (n == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * fraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    // values below 4 have their own bucket, above that the highest bit selects the power of two
+    // and the next two bits the sub-bucket
+    private static int bucket(long value)
+    {
+        if (value < (1 << SUB_BITS))
+        {
+            return (int) value;
+        }
+        int highest = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (highest - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return ((highest - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < (1 << SUB_BITS))
+        {
+            return bucket;
+        }
+        int highest = (bucket >> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & ((1 << SUB_BITS) - 1);
+        long lower = (1L << highest) + (sub << (highest - SUB_BITS));
+        return lower + (1L << (highest - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,107 @@
+import java.awt.image.BufferedImage;
+
+// one raster layer of the canvas, a transparent image that is blended over the layers below it
+// the background layer has no image of its own, it is the canvas image of PaintCanvas
+public class Layer
+{
+    // blend modes, how the colors of the layer are mixed with the layers below
+    public static final int NORMAL = 0;
+    public static final int MULTIPLY = 1;
+    public static final int SCREEN = 2;
+    public static final int OVERLAY = 3;
+    public static final int DARKEN = 4;
+    public static final int LIGHTEN = 5;
+    public static final String[] BLEND_MODE_NAMES = {"Normal", "Multiply", "Screen", "Overlay", "Darken", "Lighten"};
+
+    private String name;
+    private BufferedImage image; // null for the background layer
+    private boolean visible = true;
+    private int opacity = 100; // percent
+    private int blendMode = NORMAL;
+
+    public Layer(String name, BufferedImage image)
+    {
+        this.name = name;
+        this.image = image;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    // the pixels of the layer, null for the background layer
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    public boolean isBackground()
+    {
+        return image == null;
+    }
+
+    public boolean isVisible()
+    {
+        return visible;
+    }
+
+    public void setVisible(boolean visible)
+    {
+        this.visible = visible;
+    }
+
+    public int getOpacity()
+    {
+        return opacity;
+    }
+
+    public void setOpacity(int opacity)
+    {
+        this.opacity = Math.max(0, Math.min(opacity, 100));
+    }
+
+    public int getBlendMode()
+    {
+        return blendMode;
+    }
+
+    public void setBlendMode(int blendMode)
+    {
+        if (blendMode < NORMAL || blendMode > LIGHTEN)
+        {
+            throw new IllegalArgumentException("Unknown blend mode: " + blendMode);
+        }
+        this.blendMode = blendMode;
+    }
+
+    // true if the layer covers the layers below exactly like an image drawn over them
+    public boolean isPlain()
+    {
+        return visible && opacity == 100 && blendMode == NORMAL;
+    }
+
+    // makes the image width x height, the pixels inside both sizes are kept, new areas are transparent
+    public void resize(int width, int height)
+    {
+        if (image == null || (image.getWidth() == width && image.getHeight() == height))
+        {
+            return;
+        }
+        BufferedImage resized = LayerStack.createLayerImage(width, height);
+        ParallelRaster.copy(image, resized, 0, 0, width, height);
+        MappedDataBuffer.disposeImage(image);
+        image = resized;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,172 @@
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+// the layers of the canvas, the top layer is shown first
+// selecting a layer makes it the one that is drawn on, the controls below change the selected layer
+public class LayerPanel extends JPanel
+{
+    private PaintCanvas canvas;
+    private DefaultListModel<Layer> model = new DefaultListModel<>();
+    private JList<Layer> list = new JList<>(model);
+    private JCheckBox visibleBox = new JCheckBox("Visible");
+    private JSlider opacitySlider = new JSlider(0, 100, 100);
+    private JComboBox<String> blendBox = new JComboBox<>(Layer.BLEND_MODE_NAMES);
+    private JButton removeBtn = new JButton("Remove");
+    private JButton upBtn = new JButton("Up");
+    private JButton downBtn = new JButton("Down");
+    private boolean updating; // true while the controls are set from the layers, so they do not change them back
+
+    public LayerPanel(PaintCanvas canvas)
+    {
+        super(new BorderLayout());
+        this.canvas = canvas;
+        setPreferredSize(new Dimension(180, 0));
+        setBorder(BorderFactory.createTitledBorder("Layers"));
+
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.addListSelectionListener(new ListSelectionListener()
+        {
+            @Override
+            public void valueChanged(ListSelectionEvent e)
+            {
+                if (!updating && !e.getValueIsAdjusting() && list.getSelectedIndex() >= 0)
+                {
+                    canvas.selectLayer(stackIndex(list.getSelectedIndex()));
+                }
+            }
+        });
+        add(new JScrollPane(list), BorderLayout.CENTER);
+
+        JPanel controls = new JPanel(new GridLayout(0, 1));
+        visibleBox.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.setLayerVisible(activeIndex(), visibleBox.isSelected());
+            }
+        });
+        controls.add(visibleBox);
+
+        opacitySlider.addChangeListener(new ChangeListener()
+        {
+            @Override
+            public void stateChanged(ChangeEvent e)
+            {
+                // the composite is blended again only when the slider is released
+                if (!updating && !opacitySlider.getValueIsAdjusting())
+                {
+                    canvas.setLayerOpacity(activeIndex(), opacitySlider.getValue());
+                }
+            }
+        });
+        controls.add(new JLabel("Opacity"));
+        controls.add(opacitySlider);
+
+        blendBox.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                if (!updating)
+                {
+                    canvas.setLayerBlendMode(activeIndex(), blendBox.getSelectedIndex());
+                }
+            }
+        });
+        controls.add(blendBox);
+
+        JPanel buttons = new JPanel(new GridLayout(2, 2));
+        JButton addBtn = new JButton("Add");
+        addBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.addLayer();
+            }
+        });
+        buttons.add(addBtn);
+        removeBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.removeLayer(activeIndex());
+            }
+        });
+        buttons.add(removeBtn);
+        upBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.moveLayer(activeIndex(), activeIndex() + 1);
+            }
+        });
+        buttons.add(upBtn);
+        downBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.moveLayer(activeIndex(), activeIndex() - 1);
+            }
+        });
+        buttons.add(downBtn);
+        controls.add(buttons);
+        add(controls, BorderLayout.SOUTH);
+
+        canvas.addPropertyChangeListener("layers", new PropertyChangeListener()
+        {
+            @Override
+            public void propertyChange(PropertyChangeEvent e)
+            {
+                update();
+            }
+        });
+        update();
+    }
+
+    // shows the layers and the properties of the active layer
+    private void update()
+    {
+        updating = true;
+        LayerStack layers = canvas.getLayers();
+        model.clear();
+        for (int i = layers.size() - 1; i >= 0; i--)
+        {
+            model.addElement(layers.get(i));
+        }
+        int active = layers.getActiveIndex();
+        Layer layer = layers.getActive();
+        list.setSelectedIndex(stackIndex(active));
+        visibleBox.setSelected(layer.isVisible());
+        opacitySlider.setValue(layer.getOpacity());
+        blendBox.setSelectedIndex(layer.getBlendMode());
+        // the background stays at the bottom
+        removeBtn.setEnabled(active > 0);
+        upBtn.setEnabled(active > 0 && active < layers.size() - 1);
+        downBtn.setEnabled(active > 1);
+        updating = false;
+    }
+
+    private int activeIndex()
+    {
+        return canvas.getLayers().getActiveIndex();
+    }
+
+    // the list shows the top layer first, the stack has the background first, the mapping works both ways
+    private int stackIndex(int listIndex)
+    {
+        return model.getSize() - 1 - listIndex;
+    }
+}
@@ -0,0 +1,304 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// this class keeps the raster layers of the canvas, the first one is the background (the canvas image),
+// the others are transparent images above it, drawing goes into the active layer
+// the blended result of all layers is kept in a composite image, when a layer changes only the changed
+// area is blended again from the layers, so painting copies the composite like it copied the canvas image
+// with only a plain background layer the composite is the canvas image itself and nothing is blended
+// the shapes are not part of the stack, they stay on top of all layers (see ShapeLayer)
+// the layers are changed on the EDT, the render worker only draws into their images
+public class LayerStack
+{
+    private List<Layer> layers = new ArrayList<>(); // bottom first
+    private int active; // index of the layer that is drawn on
+    private int created = 1; // number of layers created, used for the names
+    private BufferedImage composite; // blended layers, null while the background is shown as it is
+    private BufferedImage compositeSource; // the background the composite was blended with
+    private Rectangle dirty = new Rectangle(); // area of the composite that has to be blended again
+    private int[] row = new int[0], layerRow = new int[0]; // reused rows
+
+    public LayerStack()
+    {
+        layers.add(new Layer("Background", null));
+    }
+
+    public List<Layer> getLayers()
+    {
+        return Collections.unmodifiableList(layers);
+    }
+
+    public int size()
+    {
+        return layers.size();
+    }
+
+    public Layer get(int index)
+    {
+        return layers.get(index);
+    }
+
+    public int getActiveIndex()
+    {
+        return active;
+    }
+
+    public Layer getActive()
+    {
+        return layers.get(active);
+    }
+
+    public void setActive(int index)
+    {
+        checkIndex(index);
+        active = index;
+    }
+
+    // adds a transparent layer above the active layer and makes it active
+    public Layer add(int width, int height)
+    {
+        Layer layer = new Layer("Layer " + created++, createLayerImage(width, height));
+        layers.add(active + 1, layer);
+        active++;
+        return layer; // a transparent layer does not change the composite
+    }
+
+    // puts a layer read from a document above the active layer and makes it active
+    public void add(Layer layer)
+    {
+        layers.add(active + 1, layer);
+        active++;
+        created++;
+        invalidateAll();
+    }
+
+    // removes a layer, the background cannot be removed
+    public void remove(int index)
+    {
+        checkIndex(index);
+        if (index == 0)
+        {
+            throw new IllegalArgumentException("The background layer cannot be removed");
+        }
+        layers.remove(index);
+        if (active >= index)
+        {
+            active--;
+        }
+        invalidateAll();
+    }
+
+    // moves a layer to another position, the background stays at the bottom
+    public void move(int from, int to)
+    {
+        checkIndex(from);
+        checkIndex(to);
+        if (from == 0 || to == 0)
+        {
+            throw new IllegalArgumentException("The background layer cannot be moved");
+        }
+        Layer activeLayer = layers.get(active);
+        layers.add(to, layers.remove(from));
+        active = layers.indexOf(activeLayer);
+        invalidateAll();
+    }
+
+    // makes every layer image width x height
+    public void resize(int width, int height)
+    {
+        for (Layer layer : layers)
+        {
+            layer.resize(width, height);
+        }
+    }
+
+    // marks an area as changed in one of the layers, it is blended again before the next paint,
+    // can be called from any thread
+    public void invalidate(int x, int y, int width, int height)
+    {
+        synchronized (dirty)
+        {
+            if (dirty.isEmpty())
+            {
+                dirty.setBounds(x, y, width, height);
+            }
+            else // join the areas without creating new objects
+            {
+                dirty.add(x, y);
+                dirty.add(x + width, y + height);
+            }
+        }
+    }
+
+    // marks the whole composite as changed, after the order or a property of a layer changed
+    public void invalidateAll()
+    {
+        invalidate(0, 0, Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2);
+    }
+
+    // true if the composite is just the background image, so it does not have to be blended
+    public boolean isBackgroundOnly()
+    {
+        if (!layers.get(0).isPlain())
+        {
+            return false;
+        }
+        for (int i = 1; i < layers.size(); i++)
+        {
+            if (layers.get(i).isVisible() && layers.get(i).getOpacity() > 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the blended image of all visible layers, up to date with the changes marked so far, used on the EDT
+    public BufferedImage getComposite(BufferedImage background)
+    {
+        if (isBackgroundOnly())
+        {
+            MappedDataBuffer.disposeImage(composite);
+            composite = null; // the next composite is blended completely
+            return background;
+        }
+        Rectangle area;
+        int width = background.getWidth();
+        int height = background.getHeight();
+        synchronized (dirty)
+        {
+            if (composite == null || compositeSource != background
+                    || composite.getWidth() != width || composite.getHeight() != height)
+            {
+                if (composite == null || composite.getWidth() != width || composite.getHeight() != height)
+                {
+                    MappedDataBuffer.disposeImage(composite);
+                    composite = createLayerImage(width, height);
+                }
+                compositeSource = background;
+                dirty.setBounds(0, 0, width, height);
+            }
+            area = dirty.intersection(new Rectangle(0, 0, width, height));
+            dirty.setBounds(0, 0, 0, 0);
+        }
+        if (!area.isEmpty())
+        {
+            blend(background, area);
+        }
+        return composite;
+    }
+
+    // blends the layers inside the area into the composite, row by row from the bottom layer up
+    private void blend(BufferedImage background, Rectangle area)
+    {
+        if (row.length < area.width)
+        {
+            row = new int[area.width];
+            layerRow = new int[area.width];
+        }
+        for (int y = area.y; y < area.y + area.height; y++)
+        {
+            Arrays.fill(row, 0, area.width, 0);
+            for (Layer layer : layers)
+            {
+                if (!layer.isVisible() || layer.getOpacity() == 0)
+                {
+                    continue;
+                }
+                BufferedImage image = layer.isBackground() ? background : layer.getImage();
+                int length = Math.min(area.width, image.getWidth() - area.x);
+                if (length <= 0 || y >= image.getHeight())
+                {
+                    continue;
+                }
+                ParallelRaster.getRow(image, area.x, y, length, layerRow);
+                blendRow(row, layerRow, length, layer.getOpacity() * 255 / 100, layer.getBlendMode());
+            }
+            ParallelRaster.setRow(composite, area.x, y, area.width, row);
+        }
+    }
+
+    // blends the source row over the target row
+    private static void blendRow(int[] target, int[] source, int length, int opacity, int mode)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int src = source[i];
+            int sourceAlpha = (src >>> 24) * opacity / 255;
+            if (sourceAlpha == 0)
+            {
+                continue;
+            }
+            int dst = target[i];
+            int targetAlpha = dst >>> 24;
+            if (sourceAlpha == 255 && mode == Layer.NORMAL)
+            {
+                target[i] = src; // covers the pixel completely
+                continue;
+            }
+            int alpha = sourceAlpha + targetAlpha * (255 - sourceAlpha) / 255;
+            int color = 0;
+            for (int shift = 0; shift < 24; shift += 8)
+            {
+                int s = (src >> shift) & 0xff;
+                int d = (dst >> shift) & 0xff;
+                // the blended color is used where the layers below are opaque, the plain color elsewhere
+                int mixed = (s * (255 - targetAlpha) + blendChannel(s, d, mode) * targetAlpha) / 255;
+                int c = (mixed * sourceAlpha + d * targetAlpha * (255 - sourceAlpha) / 255) / alpha;
+                color |= Math.min(c, 255) << shift;
+            }
+            target[i] = (alpha << 24) | color;
+        }
+    }
+
+    private static int blendChannel(int s, int d, int mode)
+    {
+        switch (mode) {
+            case Layer.MULTIPLY:
+                return s * d / 255;
+            case Layer.SCREEN:
+                return s + d - s * d / 255;
+            case Layer.OVERLAY:
+                return d < 128 ? 2 * s * d / 255 : 255 - 2 * (255 - s) * (255 - d) / 255;
+            case Layer.DARKEN:
+                return Math.min(s, d);
+            case Layer.LIGHTEN:
+                return Math.max(s, d);
+            default:
+                return s;
+        }
+    }
+
+    // deletes the scratch files of the layer images and the composite, the stack cannot be used after this
+    public void dispose()
+    {
+        for (Layer layer : layers)
+        {
+            MappedDataBuffer.disposeImage(layer.getImage());
+        }
+        MappedDataBuffer.disposeImage(composite);
+        composite = null;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= layers.size())
+        {
+            throw new IllegalArgumentException("No layer " + index + ", there are " + layers.size());
+        }
+    }
+
+    // a transparent image, kept in a scratch file for very large canvases like the canvas image
+    static BufferedImage createLayerImage(int width, int height)
+    {
+        if (MappedDataBuffer.shouldMap(width, height))
+        {
+            return MappedDataBuffer.createImage(width, height, 0);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+}
@@ -0,0 +1,121 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+
+// the strokes other clients of a session are drawing right now (see CanvasSession), one per client
+// they are drawn over the canvas like the shape preview and are not part of it, when the finished stroke
+// arrives it is drawn into the canvas and the live stroke is removed
+// all methods are called on the EDT, they return the canvas area that has to be repainted
+public class LiveStrokes
+{
+    private static class Stroke
+    {
+        IntList points = new IntList();
+        Color color;
+        BasicStroke line;
+        Rectangle bounds = new Rectangle();
+    }
+
+    private Map<Integer, Stroke> strokes = new HashMap<>();
+    private int[] xPoints = new int[0], yPoints = new int[0]; // reused for drawing
+
+    // adds points to the stroke of a client, args are the tool and the x, y pairs like in CanvasOp.STROKE,
+    // only the new part of the stroke is returned for repainting
+    public Rectangle add(int sender, int[] args, Color color, int size)
+    {
+        Stroke stroke = strokes.get(sender);
+        if (stroke == null)
+        {
+            stroke = new Stroke();
+            // the eraser is shown in the background color, the real stroke decides what it erases
+            stroke.color = args[0] == 5 ? Color.WHITE : color;
+            stroke.line = new BasicStroke(size, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+            strokes.put(sender, stroke);
+        }
+        Rectangle changed = null;
+        int count = stroke.points.size();
+        if (count > 0) // the new part starts at the last point of the old one
+        {
+            changed = new Rectangle(stroke.points.get(count - 2), stroke.points.get(count - 1), 0, 0);
+        }
+        for (int i = 1; i + 1 < args.length; i += 2)
+        {
+            stroke.points.add(args[i]);
+            stroke.points.add(args[i + 1]);
+            if (changed == null)
+            {
+                changed = new Rectangle(args[i], args[i + 1], 0, 0);
+            }
+            else
+            {
+                changed.add(args[i], args[i + 1]);
+            }
+        }
+        if (changed == null)
+        {
+            return null;
+        }
+        int pad = (int) Math.ceil(stroke.line.getLineWidth() / 2) + 1;
+        changed.grow(pad, pad);
+        changed.width++;
+        changed.height++;
+        stroke.bounds = count == 0 ? changed : stroke.bounds.union(changed);
+        return changed;
+    }
+
+    // removes the stroke of a client, null if it had none
+    public Rectangle remove(int sender)
+    {
+        Stroke stroke = strokes.remove(sender);
+        return stroke == null ? null : stroke.bounds;
+    }
+
+    // removes all strokes, null if there were none
+    public Rectangle clear()
+    {
+        Rectangle area = null;
+        for (Stroke stroke : strokes.values())
+        {
+            area = area == null ? stroke.bounds : area.union(stroke.bounds);
+        }
+        strokes.clear();
+        return area;
+    }
+
+    public boolean isEmpty()
+    {
+        return strokes.isEmpty();
+    }
+
+    // draws the strokes, g2d is scaled to canvas pixels
+    public void paint(Graphics2D g2d)
+    {
+        for (Stroke stroke : strokes.values())
+        {
+            int count = stroke.points.size() / 2;
+            if (xPoints.length < count)
+            {
+                xPoints = new int[count];
+                yPoints = new int[count];
+            }
+            for (int i = 0; i < count; i++)
+            {
+                xPoints[i] = stroke.points.get(2 * i);
+                yPoints[i] = stroke.points.get(2 * i + 1);
+            }
+            g2d.setColor(stroke.color);
+            g2d.setStroke(stroke.line);
+            if (count == 1)
+            {
+                g2d.drawLine(xPoints[0], yPoints[0], xPoints[0], yPoints[0]);
+            }
+            else
+            {
+                g2d.drawPolyline(xPoints, yPoints, count);
+            }
+        }
+    }
+}
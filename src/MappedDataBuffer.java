@@ -0,0 +1,355 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+// this class keeps the pixels of a very large canvas in a memory-mapped scratch file instead of the heap
+// the pixels are stored in 256 x 256 tiles, groups of tiles are mapped only when they are used
+// (painting the visible part of the canvas or drawing a stroke) and the groups that were not used
+// recently are unmapped, so the heap stays small even for gigapixel images
+// Java2D can draw into and from images using this buffer, only more slowly than with a normal image,
+// the code that copies rows (ParallelRaster, PixelTile) and BrushStroke read and write whole tile rows
+// with getRow(), setRow() and fillRow()
+// the pixels are read and written without a lock, several threads can draw into different parts at the same time,
+// only mapping a segment is synchronized
+// Java2D addresses the pixels of a raster with an int index (getElem(), setElem()), so an image can have at most
+// Integer.MAX_VALUE pixels, about 2.1 gigapixels (46340 x 46340), larger images are refused
+public class MappedDataBuffer extends DataBuffer
+{
+    // images with more pixels than this are kept in a scratch file, can be changed with -Dpaintapp.outOfCorePixels
+    public static final long OUT_OF_CORE_PIXELS = Long.getLong("paintapp.outOfCorePixels", 64L * 1024 * 1024);
+    private static final int TILE = 256; // tile width and height
+    private static final int TILE_PIXELS = TILE * TILE;
+    private static final int TILES_PER_SEGMENT = 16; // tiles mapped together, 4 MB
+    private static final int MAX_SEGMENTS = 256; // at most 1 GB of the file is mapped at the same time
+
+    private int width, height;
+    private int tilesX; // number of tile columns
+    private int mask; // the stored value is the pixel XOR this mask, so an empty (zero) file can mean white
+    private Path file;
+    private FileChannel channel;
+    private AtomicReferenceArray<IntBuffer> segments; // the mapped segments by number, null if not mapped
+    // set by every access, the clock hand clears it and unmaps the segments that were not used since (see map()),
+    // a store that is lost between threads only changes which segment is unmapped
+    private boolean[] used;
+    private Queue<Integer> mappedSegments = new ArrayDeque<>(); // the clock, oldest first, guarded by this
+
+    private MappedDataBuffer(int width, int height, int emptyValue, Path file) throws IOException
+    {
+        super(TYPE_INT, checkedSize(width, height));
+        this.width = width;
+        this.height = height;
+        this.mask = emptyValue;
+        this.file = file;
+        tilesX = (width + TILE - 1) / TILE;
+        int tilesY = (height + TILE - 1) / TILE;
+        long tiles = (long) tilesX * tilesY;
+        int segmentCount = (int) ((tiles + TILES_PER_SEGMENT - 1) / TILES_PER_SEGMENT);
+        segments = new AtomicReferenceArray<>(segmentCount);
+        used = new boolean[segmentCount];
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // the file is sparse, disk space is only used for the tiles that are written
+        channel.truncate(0);
+        channel.position((long) segmentCount * TILES_PER_SEGMENT * TILE_PIXELS * 4 - 1);
+        channel.write(ByteBuffer.wrap(new byte[1]));
+        file.toFile().deleteOnExit();
+    }
+
+    // true if the image with this size should be kept in a scratch file
+    public static boolean shouldMap(long width, long height)
+    {
+        return width * height > OUT_OF_CORE_PIXELS;
+    }
+
+    public static boolean isMapped(BufferedImage image)
+    {
+        return image.getRaster().getDataBuffer() instanceof MappedDataBuffer;
+    }
+
+    // deletes the scratch file of an image that is not used anymore, other images (and null) are left to the GC
+    public static void disposeImage(BufferedImage image)
+    {
+        if (image != null && isMapped(image))
+        {
+            ((MappedDataBuffer) image.getRaster().getDataBuffer()).dispose();
+        }
+    }
+
+    // creates an ARGB image in a new scratch file, all pixels have the given color
+    // this costs no time, because the empty file is read as that color
+    public static BufferedImage createImage(int width, int height, int argb)
+    {
+        return createImage(width, height, argb, (DirectColorModel) ColorModel.getRGBdefault());
+    }
+
+    // creates an opaque RGB image in a new scratch file, like TYPE_INT_RGB,
+    // image readers can decode 3 band images (JPG, PNG without alpha) directly into it
+    public static BufferedImage createRgbImage(int width, int height)
+    {
+        return createImage(width, height, 0, new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff));
+    }
+
+    // creates a copy of a mapped image by copying its scratch file
+    public static BufferedImage copyOf(BufferedImage image)
+    {
+        MappedDataBuffer source = (MappedDataBuffer) image.getRaster().getDataBuffer();
+        BufferedImage copy = createImage(source.width, source.height, source.mask, (DirectColorModel) image.getColorModel());
+        MappedDataBuffer target = (MappedDataBuffer) copy.getRaster().getDataBuffer();
+        try {
+            long size = source.channel.size();
+            for (long position = 0; position < size; )
+            {
+                position += source.channel.transferTo(position, size - position, target.channel.position(position));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return copy;
+    }
+
+    // decodes the first image of the reader into a scratch file
+    public static BufferedImage read(ImageReader reader) throws IOException
+    {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        int bands = type.getNumBands();
+        if (bands == 3 || bands == 4)
+        {
+            // the reader writes the decoded pixels straight into the mapped image
+            BufferedImage image = bands == 4 ? createImage(width, height, 0) : createRgbImage(width, height);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setDestination(image);
+            reader.read(0, param);
+            return image;
+        }
+        // other types (gray, palette) are decoded in bands of rows and converted
+        BufferedImage image = createImage(width, height, 0, (DirectColorModel) ColorModel.getRGBdefault());
+        int rows = Math.max(1, (int) (OUT_OF_CORE_PIXELS / 16 / width));
+        int[] argb = null;
+        for (int y = 0; y < height; y += rows)
+        {
+            int bandHeight = Math.min(rows, height - y);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, bandHeight));
+            BufferedImage band = reader.read(0, param);
+            argb = band.getRGB(0, 0, width, bandHeight, argb, 0, width);
+            image.setRGB(0, y, width, bandHeight, argb, 0, width);
+        }
+        return image;
+    }
+
+    private static BufferedImage createImage(int width, int height, int emptyValue, DirectColorModel colorModel)
+    {
+        try {
+            Path file = Files.createTempFile("paintapp-canvas", ".tiles");
+            MappedDataBuffer buffer = new MappedDataBuffer(width, height, emptyValue, file);
+            SinglePixelPackedSampleModel sampleModel =
+                    new SinglePixelPackedSampleModel(TYPE_INT, width, height, colorModel.getMasks());
+            WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+            return new BufferedImage(colorModel, raster, false, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create the canvas scratch file", e);
+        }
+    }
+
+    // reads length ARGB pixels of one row of a mapped image into the array at offset, like getRGB but a tile row
+    // at a time instead of pixel by pixel
+    public static void getRow(BufferedImage image, int x, int y, int length, int[] row, int offset)
+    {
+        WritableRaster raster = image.getRaster();
+        int alpha = image.getColorModel().hasAlpha() ? 0 : 0xff000000; // an RGB image is read as opaque, like getRGB
+        ((MappedDataBuffer) raster.getDataBuffer()).readRow(x - raster.getSampleModelTranslateX(),
+                y - raster.getSampleModelTranslateY(), length, row, offset, alpha);
+    }
+
+    // writes length ARGB pixels of one row from the array at offset, like setRGB
+    public static void setRow(BufferedImage image, int x, int y, int length, int[] row, int offset)
+    {
+        WritableRaster raster = image.getRaster();
+        int bits = image.getColorModel().hasAlpha() ? -1 : 0x00ffffff; // an RGB image does not store the alpha
+        ((MappedDataBuffer) raster.getDataBuffer()).writeRow(x - raster.getSampleModelTranslateX(),
+                y - raster.getSampleModelTranslateY(), length, row, offset, bits);
+    }
+
+    // sets length pixels of one row of a mapped image to the ARGB color
+    public static void fillRow(BufferedImage image, int x, int y, int length, int argb)
+    {
+        WritableRaster raster = image.getRaster();
+        int bits = image.getColorModel().hasAlpha() ? -1 : 0x00ffffff;
+        ((MappedDataBuffer) raster.getDataBuffer()).fillRow(x - raster.getSampleModelTranslateX(),
+                y - raster.getSampleModelTranslateY(), length, argb & bits);
+    }
+
+    private void readRow(int x, int y, int length, int[] row, int offset, int alpha)
+    {
+        while (length > 0)
+        {
+            int tile = (y / TILE) * tilesX + x / TILE;
+            int run = Math.min(length, TILE - x % TILE); // the pixels up to the end of the tile are next to each other
+            segment(tile / TILES_PER_SEGMENT).get(indexInSegment(tile, x, y), row, offset, run);
+            for (int i = offset; i < offset + run; i++)
+            {
+                row[i] = (row[i] ^ mask) | alpha;
+            }
+            x += run;
+            offset += run;
+            length -= run;
+        }
+    }
+
+    private void writeRow(int x, int y, int length, int[] row, int offset, int bits)
+    {
+        while (length > 0)
+        {
+            int tile = (y / TILE) * tilesX + x / TILE;
+            int run = Math.min(length, TILE - x % TILE);
+            IntBuffer buffer = segment(tile / TILES_PER_SEGMENT);
+            int index = indexInSegment(tile, x, y);
+            for (int i = 0; i < run; i++)
+            {
+                buffer.put(index + i, (row[offset + i] & bits) ^ mask);
+            }
+            x += run;
+            offset += run;
+            length -= run;
+        }
+    }
+
+    private void fillRow(int x, int y, int length, int value)
+    {
+        while (length > 0)
+        {
+            int tile = (y / TILE) * tilesX + x / TILE;
+            int run = Math.min(length, TILE - x % TILE);
+            IntBuffer buffer = segment(tile / TILES_PER_SEGMENT);
+            int index = indexInSegment(tile, x, y);
+            for (int i = 0; i < run; i++)
+            {
+                buffer.put(index + i, value ^ mask);
+            }
+            x += run;
+            length -= run;
+        }
+    }
+
+    @Override
+    public int getElem(int bank, int i)
+    {
+        int y = i / width;
+        int x = i - y * width;
+        int tile = (y / TILE) * tilesX + x / TILE;
+        return segment(tile / TILES_PER_SEGMENT).get(indexInSegment(tile, x, y)) ^ mask;
+    }
+
+    @Override
+    public void setElem(int bank, int i, int value)
+    {
+        int y = i / width;
+        int x = i - y * width;
+        int tile = (y / TILE) * tilesX + x / TILE;
+        segment(tile / TILES_PER_SEGMENT).put(indexInSegment(tile, x, y), value ^ mask);
+    }
+
+    // the scratch file is deleted when the image is not used anymore
+    public synchronized void dispose()
+    {
+        for (int segment : mappedSegments)
+        {
+            segments.set(segment, null);
+        }
+        mappedSegments.clear();
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // returns the mapped group of tiles, maps it if needed
+    private IntBuffer segment(int segment)
+    {
+        IntBuffer buffer = segments.get(segment);
+        if (buffer == null)
+        {
+            buffer = map(segment);
+        }
+        if (!used[segment])
+        {
+            used[segment] = true;
+        }
+        return buffer;
+    }
+
+    // maps a segment, when MAX_SEGMENTS are mapped the clock hand goes over them and unmaps the first one
+    // that was not used since it last passed, a thread that still uses it keeps the mapping until it is done,
+    // the mapping is released when the buffer is garbage collected
+    private synchronized IntBuffer map(int segment)
+    {
+        IntBuffer buffer = segments.get(segment);
+        if (buffer != null)
+        {
+            return buffer; // another thread mapped it first
+        }
+        while (mappedSegments.size() >= MAX_SEGMENTS)
+        {
+            int oldest = mappedSegments.remove();
+            if (used[oldest])
+            {
+                used[oldest] = false;
+                mappedSegments.add(oldest);
+            }
+            else
+            {
+                segments.set(oldest, null);
+            }
+        }
+        try {
+            long position = (long) segment * TILES_PER_SEGMENT * TILE_PIXELS * 4;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) TILES_PER_SEGMENT * TILE_PIXELS * 4)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map the canvas scratch file", e);
+        }
+        segments.set(segment, buffer);
+        mappedSegments.add(segment);
+        return buffer;
+    }
+
+    // position of the pixel inside its segment, the pixels of one tile are stored row by row
+    private static int indexInSegment(int tile, int x, int y)
+    {
+        return (tile % TILES_PER_SEGMENT) * TILE_PIXELS + (y % TILE) * TILE + x % TILE;
+    }
+
+    private static int checkedSize(int width, int height)
+    {
+        long size = (long) width * height;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Image is too large: " + width + " x " + height
+                    + ", Java2D can address at most " + Integer.MAX_VALUE + " pixels");
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,354 @@
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// the Open dialog: the images of a folder as a grid of thumbnails, the recent files beside it
+// the grid is a JList with cells of a fixed size, so only the visible cells are rendered, the renderer asks for
+// the thumbnails of the cells it draws and they are made on background threads (see ThumbnailCache)
+// a request whose cell was scrolled out of view before its turn is skipped, so scrolling through a folder
+// of thousands of images only decodes the cells the user stops at
+public class OpenBrowser extends JDialog
+{
+    private static final int CELL_WIDTH = ThumbnailCache.SIZE + 16;
+    private static final int CELL_HEIGHT = ThumbnailCache.SIZE + 28; // room for the name
+    private static final int MEMORY_THUMBNAILS = 1024; // thumbnails kept in memory while the dialog is open
+    private static final String[] EXTENSIONS = {"jpg", "jpeg", "png", PaintDocument.EXTENSION};
+    private static ThumbnailCache cache = new ThumbnailCache(); // shared by all dialogs of the application
+
+    private DefaultListModel<File> model = new DefaultListModel<>();
+    private JList<File> grid = new JList<>(model);
+    private JTextField pathField = new JTextField();
+    private File directory;
+    private File chosen;
+    private ExecutorService loader;
+
+    // only used on the EDT
+    private Map<File, Icon> thumbnails = new LinkedHashMap<File, Icon>(256, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Icon> eldest)
+        {
+            return size() > MEMORY_THUMBNAILS;
+        }
+    };
+    private Set<File> requested = new HashSet<>(); // thumbnails waiting for a loader thread
+
+    // read by the loader threads to skip requests that are not needed anymore
+    private volatile int generation; // changes with the folder
+    private volatile int firstVisible;
+    private volatile int lastVisible = -1;
+
+    // shows the dialog and returns the chosen image or document, null if it was canceled
+    public static File choose(Component parent)
+    {
+        OpenBrowser browser = new OpenBrowser(SwingUtilities.getWindowAncestor(parent));
+        browser.setVisible(true);
+        return browser.chosen;
+    }
+
+    private OpenBrowser(Window owner)
+    {
+        super(owner, "Open", ModalityType.APPLICATION_MODAL);
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        loader = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Thumbnail loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        grid.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        grid.setVisibleRowCount(-1); // as many columns as fit
+        grid.setFixedCellWidth(CELL_WIDTH);
+        grid.setFixedCellHeight(CELL_HEIGHT);
+        grid.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        grid.setCellRenderer(new ThumbnailRenderer());
+        grid.addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                if (e.getClickCount() == 2 && grid.getSelectedValue() != null)
+                {
+                    open(grid.getSelectedValue());
+                }
+            }
+        });
+        JScrollPane gridScroll = new JScrollPane(grid);
+        gridScroll.getVerticalScrollBar().setUnitIncrement(CELL_HEIGHT / 4);
+        gridScroll.getViewport().addChangeListener(new ChangeListener()
+        {
+            @Override
+            public void stateChanged(ChangeEvent e)
+            {
+                updateVisibleRange();
+            }
+        });
+
+        JList<File> recentList = new JList<>(RecentFiles.get().toArray(new File[0]));
+        recentList.setCellRenderer(new DefaultListCellRenderer()
+        {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focus)
+            {
+                super.getListCellRendererComponent(list, ((File) value).getName(), index, selected, focus);
+                setToolTipText(((File) value).getPath());
+                return this;
+            }
+        });
+        recentList.addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                if (e.getClickCount() == 2 && recentList.getSelectedValue() != null)
+                {
+                    open(recentList.getSelectedValue());
+                }
+            }
+        });
+        JScrollPane recentScroll = new JScrollPane(recentList);
+        recentScroll.setBorder(BorderFactory.createTitledBorder("Recent"));
+        recentScroll.setPreferredSize(new Dimension(180, 0));
+
+        JButton upBtn = new JButton("Up");
+        upBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                File parent = directory.getAbsoluteFile().getParentFile();
+                if (parent != null)
+                {
+                    showDirectory(parent);
+                }
+            }
+        });
+        pathField.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                open(new File(pathField.getText().trim()));
+            }
+        });
+        JPanel top = new JPanel(new BorderLayout(4, 0));
+        top.add(upBtn, BorderLayout.WEST);
+        top.add(pathField, BorderLayout.CENTER);
+
+        JButton openBtn = new JButton("Open");
+        openBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                if (grid.getSelectedValue() != null)
+                {
+                    open(grid.getSelectedValue());
+                }
+            }
+        });
+        JButton cancelBtn = new JButton("Cancel");
+        cancelBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                dispose();
+            }
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(openBtn);
+        buttons.add(cancelBtn);
+
+        addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosed(WindowEvent e)
+            {
+                loader.shutdownNow(); // the thumbnails that are not made yet are not needed anymore
+            }
+        });
+
+        JPanel content = new JPanel(new BorderLayout(8, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        content.add(top, BorderLayout.NORTH);
+        content.add(recentScroll, BorderLayout.WEST);
+        content.add(gridScroll, BorderLayout.CENTER);
+        content.add(buttons, BorderLayout.SOUTH);
+        setContentPane(content);
+        getRootPane().setDefaultButton(openBtn);
+        setSize(860, 600);
+        setLocationRelativeTo(owner);
+        showDirectory(RecentFiles.getDirectory());
+    }
+
+    // a folder is shown, a file is chosen and closes the dialog
+    private void open(File file)
+    {
+        if (file.isDirectory())
+        {
+            showDirectory(file);
+        }
+        else if (file.isFile())
+        {
+            chosen = file;
+            dispose();
+        }
+    }
+
+    // lists the subfolders and the images and documents of the folder, the folders first
+    private void showDirectory(File folder)
+    {
+        File[] files = folder.listFiles(file -> (file.isDirectory() && !file.isHidden()) || isSupported(file));
+        if (files == null)
+        {
+            JOptionPane.showMessageDialog(this, "Cannot read the folder " + folder.getPath());
+            return;
+        }
+        Arrays.sort(files, (a, b) -> a.isDirectory() != b.isDirectory() ? (a.isDirectory() ? -1 : 1)
+                : a.getName().compareToIgnoreCase(b.getName()));
+        directory = folder;
+        generation++; // the requests for the old folder are skipped
+        requested.clear();
+        pathField.setText(folder.getAbsolutePath());
+        model.clear();
+        model.addAll(List.of(files));
+        grid.ensureIndexIsVisible(0);
+        updateVisibleRange();
+    }
+
+    private void updateVisibleRange()
+    {
+        firstVisible = grid.getFirstVisibleIndex();
+        lastVisible = grid.getLastVisibleIndex();
+    }
+
+    private static boolean isSupported(File file)
+    {
+        String name = file.getName().toLowerCase();
+        for (String extension : EXTENSIONS)
+        {
+            if (name.endsWith("." + extension))
+            {
+                return file.isFile();
+            }
+        }
+        return false;
+    }
+
+    // the thumbnail of the cell, null until it is made, the request is skipped if the cell is not visible anymore
+    private Icon getThumbnail(File file, int index)
+    {
+        if (thumbnails.containsKey(file))
+        {
+            return thumbnails.get(file);
+        }
+        if (index < firstVisible || index > lastVisible)
+        {
+            updateVisibleRange(); // the cell is painted, so the range is out of date (the grid was just laid out)
+        }
+        if (requested.add(file))
+        {
+            int requestGeneration = generation;
+            loader.execute(() -> {
+                BufferedImage thumbnail = null;
+                boolean skipped = requestGeneration != generation || index < firstVisible || index > lastVisible;
+                if (!skipped)
+                {
+                    thumbnail = cache.get(file);
+                }
+                BufferedImage made = thumbnail;
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration != generation)
+                    {
+                        return; // another folder is shown
+                    }
+                    requested.remove(file);
+                    if (!skipped)
+                    {
+                        thumbnails.put(file, made != null ? new ImageIcon(made) : null); // null is not tried again
+                        Rectangle cell = grid.getCellBounds(index, index);
+                        if (cell != null)
+                        {
+                            grid.repaint(cell);
+                        }
+                    }
+                });
+            });
+        }
+        return null;
+    }
+
+    // a cell of the grid: the thumbnail with the name below it
+    private class ThumbnailRenderer extends DefaultListCellRenderer
+    {
+        private Icon placeholder = new Icon()
+        {
+            @Override
+            public void paintIcon(Component c, Graphics g, int x, int y)
+            {
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawRect(x + 8, y + 8, ThumbnailCache.SIZE - 17, ThumbnailCache.SIZE - 17);
+            }
+
+            @Override
+            public int getIconWidth()
+            {
+                return ThumbnailCache.SIZE;
+            }
+
+            @Override
+            public int getIconHeight()
+            {
+                return ThumbnailCache.SIZE;
+            }
+        };
+
+        ThumbnailRenderer()
+        {
+            setHorizontalAlignment(CENTER);
+            setVerticalTextPosition(BOTTOM);
+            setHorizontalTextPosition(CENTER);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focus)
+        {
+            File file = (File) value;
+            super.getListCellRendererComponent(list, file.getName(), index, selected, focus);
+            Icon icon;
+            if (file.isDirectory())
+            {
+                icon = UIManager.getIcon("FileView.directoryIcon");
+            }
+            else if (file.getName().toLowerCase().endsWith("." + PaintDocument.EXTENSION))
+            {
+                icon = UIManager.getIcon("FileView.fileIcon"); // documents have no thumbnail
+            }
+            else
+            {
+                icon = getThumbnail(file, index);
+            }
+            setIcon(icon != null ? icon : placeholder);
+            setToolTipText(file.getPath());
+            return this;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// this class is a write-ahead journal of the drawing operations, so the work since the last save
+// survives a crash of the JVM or a power loss
+// every finished operation is appended to an in-memory buffer, a background thread writes the buffer
+// to the file and forces it to the disk, operations that arrive while the disk is busy are written
+// together with the next force (group commit), so a fast user does not wait for one fsync per operation
+// the journal starts with the base the operations are applied to (an empty canvas, a document or an image),
+// it is started again when the canvas gets a new base, for example when the document is saved
+//
+// layout:  header   "PJNL", version, base type, base file, canvas width and height
+//          records  length, CRC-32, operation (binary form of CanvasOp)
+// a record that is cut off or has a wrong CRC ends the journal, it is the last write before the crash
+public class OperationJournal
+{
+    public static final int BASE_EMPTY = 0; // an empty canvas of the given size
+    public static final int BASE_DOCUMENT = 1;
+    public static final int BASE_IMAGE = 2;
+
+    private static final int MAGIC = 0x504a4e4c; // "PJNL"
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD = 1 << 26;
+
+    private File file;
+    private FileChannel channel;
+    private FileLock lock; // only one running application writes the journal
+    private long position; // end of the last complete record
+    private int baseType = BASE_EMPTY;
+    private File base;
+    private int width, height;
+    private List<CanvasOp> ops = new ArrayList<>(); // operations found when the journal was opened
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // records not written yet
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    private ByteArrayOutputStream record = new ByteArrayOutputStream(); // reused to encode one operation
+    private DataOutputStream recordOut = new DataOutputStream(record);
+    private CRC32 crc = new CRC32();
+    private boolean writing; // true while the writer thread is writing a batch
+    private boolean closed;
+    private IOException error; // the last write error, the journal stops writing after it
+    private Thread writer;
+
+    private OperationJournal(File file, FileChannel channel, FileLock lock)
+    {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    // opens the journal and reads the operations of the last session, the file is locked so a second
+    // running application cannot use it, null is returned in that case
+    public static OperationJournal open(File file) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            Files.createDirectories(parent.toPath());
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null)
+        {
+            channel.close();
+            return null;
+        }
+        OperationJournal journal = new OperationJournal(file, channel, lock);
+        try {
+            journal.read();
+        } catch (IOException e) {
+            e.printStackTrace(); // a damaged journal cannot be recovered, it is started again
+            journal.ops.clear();
+            journal.position = 0;
+        }
+        journal.writer = new Thread(journal::runWriter, "Journal writer");
+        journal.writer.setDaemon(true);
+        journal.writer.start();
+        return journal;
+    }
+
+    // true if the journal has operations of a session that was not closed
+    public boolean hasOperations()
+    {
+        return !ops.isEmpty();
+    }
+
+    // the operations found when the journal was opened, in the order they were done
+    public List<CanvasOp> getOperations()
+    {
+        return ops;
+    }
+
+    public int getBaseType()
+    {
+        return baseType;
+    }
+
+    // the document or image file the operations are applied to, null for an empty canvas
+    public File getBase()
+    {
+        return base;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    // true if the journal has no header yet
+    public boolean isEmpty()
+    {
+        return position == 0;
+    }
+
+    // appends the operation, it is on the disk soon after, without waiting for it
+    public void append(CanvasOp op)
+    {
+        synchronized (this)
+        {
+            if (closed || error != null)
+            {
+                return;
+            }
+            try {
+                record.reset();
+                op.write(recordOut);
+                crc.reset();
+                crc.update(record.toByteArray());
+                pendingOut.writeInt(record.size());
+                pendingOut.writeInt((int) crc.getValue());
+                record.writeTo(pendingOut);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // cannot happen, the streams write into memory
+            }
+            notifyAll(); // wake up the writer thread
+        }
+    }
+
+    // starts the journal again with a new base, the operations before are not needed anymore
+    public synchronized void restart(int baseType, File base, int width, int height)
+    {
+        if (closed)
+        {
+            return;
+        }
+        waitForWriter();
+        pending.reset();
+        this.baseType = baseType;
+        this.base = base;
+        this.width = width;
+        this.height = height;
+        ops.clear();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(baseType);
+            out.writeUTF(base == null ? "" : base.getAbsolutePath());
+            out.writeInt(width);
+            out.writeInt(height);
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            position = 0;
+            while (buffer.hasRemaining())
+            {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+            error = null;
+        } catch (IOException e) {
+            error = e;
+            e.printStackTrace();
+        }
+    }
+
+    // waits until the operations appended before are on the disk
+    public synchronized void flush()
+    {
+        while ((pending.size() > 0 || writing) && error == null && !closed)
+        {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // writes the waiting operations and closes the file, the journal is deleted if delete is true
+    // (the user ended the session on purpose, so there is nothing to recover)
+    public void close(boolean delete)
+    {
+        flush();
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            lock.release();
+            channel.close();
+            if (delete)
+            {
+                Files.deleteIfExists(file.toPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // writes the buffered records, every batch is forced to the disk once
+    private void runWriter()
+    {
+        while (true)
+        {
+            byte[] batch;
+            long at;
+            synchronized (this)
+            {
+                while (pending.size() == 0 && !closed)
+                {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                {
+                    return;
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                at = position;
+                writing = true;
+            }
+            IOException failed = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                long end = at;
+                while (buffer.hasRemaining())
+                {
+                    end += channel.write(buffer, end);
+                }
+                channel.force(false); // one fsync for all operations of the batch
+            } catch (IOException e) {
+                failed = e;
+                e.printStackTrace();
+            }
+            synchronized (this)
+            {
+                writing = false;
+                if (failed == null)
+                {
+                    position = at + batch.length;
+                }
+                else
+                {
+                    error = failed;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitForWriter()
+    {
+        while (writing)
+        {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // reads the header and the records, a broken record at the end is cut off
+    private void read() throws IOException
+    {
+        long size = channel.size();
+        if (size == 0)
+        {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+        while (data.hasRemaining() && channel.read(data, data.position()) >= 0)
+        {
+        }
+        data.flip();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array(), 0, data.limit()));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        {
+            throw new IOException("Not a journal: " + file.getName());
+        }
+        baseType = in.readUnsignedByte();
+        String path = in.readUTF();
+        base = path.isEmpty() ? null : new File(path);
+        width = in.readInt();
+        height = in.readInt();
+        long end = data.limit() - in.available(); // end of the header
+        CRC32 check = new CRC32();
+        while (in.available() >= 8)
+        {
+            int length = in.readInt();
+            int expected = in.readInt();
+            if (length <= 0 || length > MAX_RECORD || length > in.available())
+            {
+                break; // cut off by the crash
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            check.reset();
+            check.update(bytes);
+            if ((int) check.getValue() != expected)
+            {
+                break;
+            }
+            try {
+                ops.add(CanvasOp.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+            } catch (IOException e) {
+                e.printStackTrace();
+                break; // a record this version cannot apply, the operations before it are recovered
+            }
+            end += 8 + length;
+        }
+        position = end;
+        channel.truncate(end); // new records are appended after the last good one
+    }
+}
@@ -1,11 +1,23 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
 import javax.swing.*;
 
 public class PaintApp extends JFrame
 {
     private PaintCanvas canvas;
     private PaintToolbar toolBar;
+    private OperationJournal journal; // operations since the last save, recovered after a crash
+    private CanvasServer server; // the server of the session this PaintApp hosts, null if it does not host one
+    private static final int AUTOSAVE_DELAY = 30 * 1000; // milliseconds between autosaves of the document
+    // a startup run prints the time to the first frame and exits, it is used to measure startup
+    // and to record the class data sharing archive (see the appcds profile in app/pom.xml)
+    private static final boolean STARTUP_RUN = Boolean.getBoolean("paintapp.startupRun");
+    private static final File JOURNAL_FILE = new File(System.getProperty("user.home"),
+            ".paintapp" + File.separator + "session.journal");
 
     public PaintApp()
     {
@@ -20,6 +32,7 @@ public class PaintApp extends JFrame
         JMenu fileMenu = new JMenu("File");
         JMenuItem openItem = new JMenuItem("Open");
         JMenuItem saveItem = new JMenuItem("Save");
+        JMenuItem saveDocumentItem = new JMenuItem("Save Document");
         JMenuItem exitItem = new JMenuItem("Exit");
 
         openItem.addActionListener(new ActionListener() {
@@ -36,27 +49,251 @@ public class PaintApp extends JFrame
             }
         });
 
+        saveDocumentItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.saveDocument();
+            }
+        });
+
         exitItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                closeJournal();
                 System.exit(0);
             }
         });
 
         fileMenu.add(openItem);
         fileMenu.add(saveItem);
+        fileMenu.add(saveDocumentItem);
         fileMenu.add(exitItem);
         menuBar.add(fileMenu);
+
+        JMenu viewMenu = new JMenu("View");
+        JCheckBoxMenuItem metricsItem = new JCheckBoxMenuItem("Show Metrics");
+        metricsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        metricsItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setMetricsOverlayVisible(metricsItem.isSelected());
+            }
+        });
+        JMenuItem zoomInItem = new JMenuItem("Zoom In");
+        zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK));
+        zoomInItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setZoom(canvas.getZoom() * 2);
+            }
+        });
+        JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+        zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK));
+        zoomOutItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setZoom(canvas.getZoom() / 2);
+            }
+        });
+        JMenuItem actualSizeItem = new JMenuItem("Actual Size");
+        actualSizeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, InputEvent.CTRL_DOWN_MASK));
+        actualSizeItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setZoom(1);
+            }
+        });
+        viewMenu.add(zoomInItem);
+        viewMenu.add(zoomOutItem);
+        viewMenu.add(actualSizeItem);
+        viewMenu.addSeparator();
+        viewMenu.add(metricsItem);
+        menuBar.add(viewMenu);
+
+        JMenu filterMenu = new JMenu("Filters");
+        for (int type = 0; type < ImageFilter.NAMES.length; type++)
+        {
+            int filterType = type;
+            // grayscale has no settings, it is applied at once
+            JMenuItem filterItem = new JMenuItem(ImageFilter.NAMES[type] + (type == ImageFilter.GRAYSCALE ? "" : "..."));
+            filterItem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (filterType == ImageFilter.GRAYSCALE)
+                    {
+                        canvas.applyFilter(new ImageFilter(filterType, 0, 0));
+                    }
+                    else
+                    {
+                        new FilterDialog(PaintApp.this, canvas, filterType).setVisible(true);
+                    }
+                }
+            });
+            filterMenu.add(filterItem);
+        }
+        menuBar.add(filterMenu);
+
+        // several PaintApps draw on the same image, one hosts the server or it runs on its own (see CanvasServer)
+        JMenu sessionMenu = new JMenu("Session");
+        JMenuItem hostItem = new JMenuItem("Host Session");
+        JMenuItem joinItem = new JMenuItem("Join Session...");
+        JMenuItem leaveItem = new JMenuItem("Leave Session");
+        leaveItem.setEnabled(false);
+        hostItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    server = new CanvasServer(CanvasServer.DEFAULT_PORT);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    JOptionPane.showMessageDialog(PaintApp.this, "The session could not be started: " + ex.getMessage());
+                    return;
+                }
+                joinSession("localhost", server.getPort());
+            }
+        });
+        joinItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String address = JOptionPane.showInputDialog(PaintApp.this, "Server (host:port)",
+                        "localhost:" + CanvasServer.DEFAULT_PORT);
+                if (address == null)
+                {
+                    return;
+                }
+                int colon = address.lastIndexOf(':');
+                try {
+                    joinSession(colon < 0 ? address.trim() : address.substring(0, colon).trim(),
+                            colon < 0 ? CanvasServer.DEFAULT_PORT : Integer.parseInt(address.substring(colon + 1).trim()));
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(PaintApp.this, "Invalid port: " + address);
+                }
+            }
+        });
+        leaveItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                leaveSession();
+            }
+        });
+        canvas.addPropertyChangeListener("session", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                boolean inSession = e.getNewValue() != null;
+                hostItem.setEnabled(!inSession);
+                joinItem.setEnabled(!inSession);
+                leaveItem.setEnabled(inSession);
+            }
+        });
+        sessionMenu.add(hostItem);
+        sessionMenu.add(joinItem);
+        sessionMenu.add(leaveItem);
+        menuBar.add(sessionMenu);
         setJMenuBar(menuBar);
 
+        // the same metrics can be watched with a JMX client like JConsole
+        canvas.getMetrics().register("canvas");
+
         add(toolBar, BorderLayout.NORTH);
         add(new JScrollPane(canvas), BorderLayout.CENTER);
+        add(new LayerPanel(canvas), BorderLayout.EAST);
+
+        // once the canvas is saved as a document, its changes are appended to the file regularly
+        Timer autosaveTimer = new Timer(AUTOSAVE_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.saveDocumentChanges();
+            }
+        });
+        autosaveTimer.start();
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeJournal();
+            }
+        });
+
+        if (STARTUP_RUN)
+        {
+            canvas.addPropertyChangeListener("firstFrame", new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent e) {
+                    System.out.println("Time to first frame: " + canvas.getMetrics().getTimeToFirstFrameMillis() + " ms");
+                    System.exit(0);
+                }
+            });
+        }
 
         setVisible(true);
+        if (!STARTUP_RUN) // a startup run must not recover or replace the journal of the last session
+        {
+            openJournal(); // after the canvas has its size
+        }
+    }
+
+    // replays the journal left by a session that did not end normally and keeps journaling into it
+    private void openJournal()
+    {
+        try {
+            journal = OperationJournal.open(JOURNAL_FILE);
+            if (journal == null)
+            {
+                return; // another running PaintApp uses the journal
+            }
+            if (journal.hasOperations())
+            {
+                try {
+                    canvas.recoverSession(journal);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(this, "The last session could not be recovered: " + e.getMessage());
+                    journal.close(true);
+                    journal = OperationJournal.open(JOURNAL_FILE); // start a new journal
+                }
+            }
+            canvas.setJournal(journal);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void joinSession(String host, int port)
+    {
+        try {
+            canvas.setSession(CanvasSession.connect(canvas, host, port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not join the session at " + host + ":" + port + ": " + e.getMessage());
+            leaveSession();
+        }
+    }
+
+    // leaves the shared session, a hosted server is stopped and the other clients lose their connection
+    private void leaveSession()
+    {
+        canvas.setSession(null);
+        if (server != null)
+        {
+            server.close();
+            server = null;
+        }
+    }
+
+    // the user ends the session, there is nothing to recover the next time
+    private void closeJournal()
+    {
+        if (journal != null)
+        {
+            canvas.setJournal(null);
+            journal.close(true);
+            journal = null;
+        }
     }
 
     public static void main(String[] args)
     {
+        IconLoader.preload(PaintToolbar.ICON_NAMES); // decoded while the window is created
         SwingUtilities.invokeLater(new Runnable()
         {
             public void run() {
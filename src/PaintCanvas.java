@@ -3,114 +3,1146 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
-import javax.imageio.ImageIO;
+import java.util.concurrent.ExecutionException;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class PaintCanvas extends JPanel
 {
-    private BufferedImage canvasImage; // stores the drawing on the canvas
+    // a local operation of a session, it is tentative until the server sends it back in its order (see CanvasSession)
+    private static class LocalOp
+    {
+        int sequence; // the number CanvasSession.send() gave it
+        CanvasOp op;
+        Color color;
+        int size;
+        boolean drawn = true; // false if it did not change the canvas, then it has no undo state
+        boolean waiting; // an undo or redo, it is done when the server sends it back (see undo())
+        CanvasOp loggedAfter; // a local operation that is not shared and came with it, like the size of a clear
+    }
+
+    private BufferedImage canvasImage; // stores the drawing on the canvas, the background layer
+    private LayerStack layers = new LayerStack(); // raster layers, drawing goes into the active one
     private Color selectedColor = Color.BLACK; // brush color
     private int brushSize = 20; // brush size
-    private Stack<CanvasState> undoStack = new Stack<>(); // Stack storing the canvas state for undo functionality
-    private Stack<CanvasState> redoStack = new Stack<>(); // Stack storing the canvas state for redo functionality
-    private List<Shape> shapes = new ArrayList<>(); // list storing drawn shapes
-    private int activeTool = 0; // currently active tool, 0=Free draw, 1=Line, 2=Rectangle, 3=Circle, 4=Triangle, 5=Eraser
+    private UndoHistory history = new UndoHistory(); // tile based undo/redo history
+    private ShapeStore shapes = new ShapeStore(); // drawn shapes, stored as columns of ints
+    private ShapeGrid shapeGrid = new ShapeGrid(shapes); // spatial index of the shapes, used by the eraser
+    private IntList hits = new IntList(); // reused result list for the eraser queries
+    private IntList addedShapes = new IntList(), removedShapes = new IntList(); // reused lists for undo and redo
+    private Rectangle shapeBounds = new Rectangle(); // reused bounds of one shape
+    private ShapeLayer shapeLayer; // all shapes drawn once into a cached transparent image
+    private int activeTool = 0; // currently active tool, 0=Free draw, 1=Line, 2=Rectangle, 3=Circle, 4=Triangle, 5=Eraser, 6=Fill
     private int x1, y1, x2, y2; // coordinates of the starting and ending points of the shape
+    private boolean drawing; // false if the last mouse press was ignored
+    private ProgressiveImageLoader imageLoader; // set while an opened image is still being decoded
+    private Rectangle dirtyRegion = new Rectangle(); // area changed since the last repaint, empty if nothing changed
+    private boolean repaintScheduled; // true if the dirty area will be repainted with the next frame
+    private Runnable flushTask = new Runnable()
+    {
+        public void run() {
+            flushDirtyRegion();
+        }
+    };
+    private static final String[] COMPRESSION_NAMES = {"Fastest", "Normal", "Smallest", "None"};
+    private static final int[] COMPRESSION_LEVELS = {1, 6, 9, 0}; // deflate levels of the names above
+    private int pngCompressionLevel = 6; // used when the image is saved
+    private BrushStroke stroke = new BrushStroke(); // draws free draw and eraser strokes, used by the render worker
+    private Rectangle strokeDirty = new Rectangle(); // area changed by one batch of samples, used by the render worker
+    private int lastX, lastY; // last mouse position of the current stroke
+    private int strokeTool; // tool of the current stroke, 0=Free draw or 5=Eraser
+    private IntList strokePoints = new IntList(); // tool and positions of the current stroke, for the operation log
+    private List<CanvasOp> unsavedOps = new ArrayList<>(); // operations since the document was saved
+    private Color loggedColor; // color and brush size of the last logged operation
+    private int loggedSize;
+    private PaintDocument document; // the document file the canvas was saved to or opened from, null if there is none
+    private OperationJournal journal; // crash recovery journal of the operations since the last save, can be null
+    private CanvasSession session; // shares the operations with other PaintApps, null outside a session
+    private boolean applyingRemote; // true while an operation of another client is drawn, it is not sent back
+    private boolean redrawingTentative; // true while the tentative operations are taken back and drawn again, nothing is logged
+    private int finishedOps; // operations that reached logOperation(), also the ones that were not logged
+    private LiveStrokes liveStrokes = new LiveStrokes(); // strokes other clients are drawing right now
+    private List<Runnable> pendingRemoteOps = new ArrayList<>(); // operations of others that arrived during a mouse drag
+    private List<LocalOp> tentativeOps = new ArrayList<>(); // local operations the server has not sent back yet, oldest first
+    private List<Runnable> deferredActions = new ArrayList<>(); // local actions that wait for tentativeOps to be confirmed
+    private CanvasMetrics metrics = new CanvasMetrics(history); // latency and cost of drawing, painting and undo
+    private boolean metricsOverlay; // true if the metrics are drawn over the canvas
+    private Timer metricsTimer; // repaints the metrics overlay while it is shown
+    public static final double MIN_ZOOM = 1.0 / (1 << ImagePyramid.MAX_LEVEL);
+    public static final double MAX_ZOOM = 8;
+    private double zoom = 1; // panel pixels per canvas pixel, always a power of two
+    private ImagePyramid pyramid = new ImagePyramid(); // reduced copies of canvasImage for zooming out
+    private DisplayCache displayCache = new DisplayCache(); // the visible part of the canvas in the screen format
+    private ImageFilter previewFilter; // filter shown over the visible part of the canvas, null if none
+    private BufferedImage previewImage; // the filtered visible part, made again when the view changes
+    private Rectangle previewArea = new Rectangle(); // area of previewImage in the image it was filtered from
+    private double previewZoom;
+    private boolean firstFramePainted;
+    private Rectangle previewBounds; // canvas area of the dragged shape, null while no shape is dragged
+    private BasicStroke previewStroke; // stroke of the dragged shape, made again when the brush size changes
+    private IntList visibleShapes = new IntList(); // reused result list of the shapes inside the painted area
+    private Point panStart; // screen position of the last mouse position while panning with the middle button
+    public static final int DEFAULT_FILL_TOLERANCE = 32;
+    private int fillTolerance = DEFAULT_FILL_TOLERANCE; // how much a color can differ from the clicked one and still be filled
+    // all drawing into canvasImage happens on this thread, the EDT only queues the mouse positions,
+    // methods that use canvasImage on the EDT (undo, redo, clear, open, save) wait for it first
+    private RenderWorker renderWorker = new RenderWorker("PaintCanvas renderer")
+    {
+        @Override
+        protected void processSamples(int[] samples, int count)
+        {
+            for (int i = 0; i < count; i += 2)
+            {
+                // place dabs on the canvasImage from the last position to the sample
+                stroke.moveTo(samples[i], samples[i + 1]);
+                if (i == 0)
+                {
+                    strokeDirty.setBounds(stroke.getDirtyArea());
+                }
+                else
+                {
+                    strokeDirty.add(stroke.getDirtyArea());
+                }
+            }
+            markDirty(strokeDirty); // publish the finished area, it is repainted with the next frame
+            metrics.inputDrawn(count / 2);
+        }
+    };
 
     public PaintCanvas(int width, int height)
     {
-        initializeCanvasImage(width, height);
-        setBackground(Color.WHITE);
-        setPreferredSize(new Dimension(width, height)); // sets the preferred size of the canvas
+        initializeCanvasImage(width, height);
+        shapeLayer = new ShapeLayer(width, height, shapes, shapeGrid);
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(width, height)); // sets the preferred size of the canvas
+        history.setMetrics(metrics);
+
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mousePressed(MouseEvent e) // when the user presses the mouse button
+            {
+                if (SwingUtilities.isMiddleMouseButton(e)) // the middle button moves the view
+                {
+                    panStart = e.getLocationOnScreen();
+                    drawing = false;
+                    return;
+                }
+                x1 = toCanvas(e.getX()); // save starting coordinates, in canvas pixels
+                y1 = toCanvas(e.getY());
+                drawing = isDecoded(x1, y1, x1, y1);
+                if (!drawing) // the opened image is not decoded under the brush yet
+                {
+                    return;
+                }
+                if (activeTool == 6) // the fill is done with the press, the release does nothing
+                {
+                    drawing = false;
+                    fillAt(x1, y1, fillTolerance);
+                }
+                else if (activeTool == 0 || activeTool == 5) // if the active tool is free draw or eraser
+                {
+                    beginStroke(activeTool, x1, y1);
+                }
+                // the other tools show a preview of the shape while the mouse is dragged,
+                // the shape is added and saved for undo when the mouse is released
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) // when the user releases the mouse button
+            {
+                panStart = null;
+                if (!drawing)
+                {
+                    return;
+                }
+                drawing = false;
+                x2 = toCanvas(e.getX()); // save ending coordinates
+                y2 = toCanvas(e.getY());
+                if (activeTool == 0 || activeTool == 5)
+                {
+                    endStroke();
+                }
+                // if the tool is not an eraser, free draw is already on the canvas and does not need a shape
+                if (activeTool != 5 && activeTool != 0)
+                {
+                    clearShapePreview();
+                    // create a new shape based on the starting and ending coordinates, selected color and brush thickness
+                    commitShape(activeTool, x1, y1, x2, y2);
+                }
+                applyPendingRemoteOperations();
+            }
+        });
+
+        addMouseMotionListener(new MouseMotionAdapter()
+        {
+            @Override
+            public void mouseDragged(MouseEvent e) // when the user drags the mouse, draw the shape in real-time
+            {
+                if (panStart != null)
+                {
+                    pan(e.getLocationOnScreen());
+                }
+                else if (drawing && (activeTool == 0 || activeTool == 5)) // if the active tool is free draw or eraser
+                {
+                    int x = toCanvas(e.getX());
+                    int y = toCanvas(e.getY());
+                    if (isDecoded(lastX, lastY, x, y)) // the stroke waits at the edge of the decoded rows
+                    {
+                        strokeTo(x, y);
+                    }
+                }
+                else if (drawing && activeTool >= 1 && activeTool <= 4)
+                {
+                    updateShapePreview(toCanvas(e.getX()), toCanvas(e.getY()));
+                }
+            }
+        });
+
+        addMouseWheelListener(new MouseWheelListener()
+        {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e)
+            {
+                if (e.isControlDown()) // control and the wheel zoom around the mouse position
+                {
+                    setZoom(e.getWheelRotation() < 0 ? zoom * 2 : zoom / 2, e.getPoint());
+                    return;
+                }
+                // without control the scroll pane scrolls, it does not get the event itself
+                // because the canvas listens to the wheel now
+                JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, PaintCanvas.this);
+                if (scrollPane != null)
+                {
+                    scrollPane.dispatchEvent(SwingUtilities.convertMouseEvent(PaintCanvas.this, e, scrollPane));
+                }
+            }
+        });
+    }
+
+    @Override
+    // draws the background image and the shape layer inside the repainted area of the panel
+    protected void paintComponent(Graphics g)
+    {
+        long start = System.nanoTime();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) // no clip, the whole panel is painted
+        {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        if (isLoading())
+        {
+            // the preview under the decoded parts changes as a whole, it is not cached
+            displayCache.invalidateAll();
+            super.paintComponent(g);
+            paintCanvas((Graphics2D) g, clip);
+        }
+        else if (previewFilter != null)
+        {
+            // the filter preview is drawn over the canvas, the cache keeps the canvas without it
+            super.paintComponent(g);
+            paintCanvas((Graphics2D) g, clip);
+        }
+        else
+        {
+            // the cache is in the screen format, a frame copies it without converting the canvas pixels,
+            // only the areas marked as changed are drawn into it from the canvas
+            displayCache.paint(g, clip, getVisibleRect(), zoom, getGraphicsConfiguration(), getBackground(),
+                    this::paintCanvas);
+        }
+        if (previewBounds != null)
+        {
+            paintShapePreview(g);
+        }
+        if (!liveStrokes.isEmpty())
+        {
+            Graphics2D g2d = (Graphics2D) g.create();
+            g2d.scale(zoom, zoom);
+            liveStrokes.paint(g2d);
+            g2d.dispose();
+        }
+        if (metricsOverlay)
+        {
+            paintMetrics(g);
+        }
+        metrics.framePainted(start, System.nanoTime());
+        if (!firstFramePainted)
+        {
+            firstFramePainted = true;
+            firePropertyChange("firstFrame", false, true); // the startup time is known now
+        }
+    }
+
+    // draws the layers and the shapes inside the clip, the panel background is already filled
+    private void paintCanvas(Graphics2D g, Rectangle clip)
+    {
+        if (zoom == 1)
+        {
+            paintImage(g, clip);
+            // the shapes are already drawn in the shape layer, so the cost does not depend on the number of shapes
+            g.drawImage(shapeLayer.getImage(), clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+        }
+        else
+        {
+            paintZoomed(g, clip);
+        }
+    }
+
+    // draws the canvas image at the zoom, zoomed out the pyramid level of the zoom is copied pixel by pixel,
+    // zoomed in the canvas pixels are enlarged, the shapes are drawn from their coordinates at the zoom
+    // instead of scaling the shape layer, so their lines stay sharp
+    private void paintZoomed(Graphics g, Rectangle clip)
+    {
+        Rectangle area = toCanvas(clip); // canvas pixels inside the clip
+        Graphics2D g2d = (Graphics2D) g.create();
+        if (zoom < 1 && !isLoading())
+        {
+            int level = Integer.numberOfTrailingZeros((int) Math.round(1 / zoom));
+            BufferedImage reduced = pyramid.getLevel(layers.getComposite(canvasImage), level);
+            g2d.setColor(Color.LIGHT_GRAY); // the panel can be larger than the zoomed out canvas
+            g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g2d.drawImage(reduced, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+            if (previewFilter != null)
+            {
+                // the level is filtered with the filter scaled to it, a pixel of the level is a pixel of the view
+                paintFilterPreview(g2d, reduced, getVisibleRect(), previewFilter.scaled(zoom));
+            }
+            g2d.scale(zoom, zoom);
+        }
+        else
+        {
+            g2d.scale(zoom, zoom);
+            paintImage(g2d, area);
+        }
+        shapeGrid.queryRect(area, visibleShapes);
+        visibleShapes.sort(); // ids are in drawing order
+        for (int i = 0; i < visibleShapes.size(); i++)
+        {
+            shapes.draw(visibleShapes.get(i), g2d);
+        }
+        visibleShapes.clear();
+        g2d.dispose();
+    }
+
+    // draws the part of the blended layers inside the clip, in canvas pixels
+    private void paintImage(Graphics g, Rectangle clip)
+    {
+        BufferedImage composite = layers.getComposite(canvasImage); // the canvas image if there are no layers
+        if (isLoading())
+        {
+            // the parts of the opened image that are not decoded yet show the scaled up preview
+            Graphics2D g2d = (Graphics2D) g.create();
+            BufferedImage preview = imageLoader.getPreview();
+            if (preview != null)
+            {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(preview, 0, 0, canvasImage.getWidth(), canvasImage.getHeight(), null);
+            }
+            g2d.clip(imageLoader.getDecodedArea());
+            g2d.drawImage(composite, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+            g2d.dispose();
+        }
+        else
+        {
+            // copy only the part of the image inside the clip
+            g.drawImage(composite, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+            if (previewFilter != null)
+            {
+                paintFilterPreview(g, composite, toCanvas(getVisibleRect()), previewFilter);
+            }
+        }
+    }
+
+    // draws the filtered area of the image over it, the area is filtered again when the view moved,
+    // the preview shows the filter on the blended layers, applying it changes only the active layer
+    private void paintFilterPreview(Graphics g, BufferedImage image, Rectangle area, ImageFilter filter)
+    {
+        area = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        if (area.isEmpty())
+        {
+            return;
+        }
+        if (previewImage == null || !previewArea.equals(area) || previewZoom != zoom)
+        {
+            previewImage = filter.preview(image, area);
+            previewArea = area;
+            previewZoom = zoom;
+        }
+        g.drawImage(previewImage, previewArea.x, previewArea.y, null);
+    }
+
+    // shows the filter over the visible part of the canvas without changing the canvas, null ends the preview
+    public void setFilterPreview(ImageFilter filter)
+    {
+        previewFilter = filter;
+        previewImage = null;
+        repaint();
+    }
+
+    // filters the whole active layer, the tiles are saved for undo before they are changed
+    public void applyFilter(ImageFilter filter)
+    {
+        if (deferWhileTentative(() -> applyFilter(filter)))
+        {
+            return;
+        }
+        renderWorker.await();
+        if (isLoading())
+        {
+            imageLoader.await(); // the filter reads the pixels around every pixel
+        }
+        saveStateToUndoStack();
+        BufferedImage target = activeImage();
+        Rectangle area = new Rectangle(0, 0, target.getWidth(), target.getHeight());
+        renderWorker.submit(() -> {
+            history.touch(target, area.x, area.y, area.width, area.height);
+            filter.apply(target, area);
+            markDirty(area);
+        });
+        logOperation(new CanvasOp(CanvasOp.FILTER, filter.getType(), filter.getAmount(), filter.getAmount2()));
+    }
+
+    // draws the shape that is dragged over the canvas, it is not part of the canvas until the mouse is released
+    private void paintShapePreview(Graphics g)
+    {
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.scale(zoom, zoom);
+        g2d.setColor(selectedColor);
+        if (previewStroke == null || previewStroke.getLineWidth() != brushSize)
+        {
+            previewStroke = new BasicStroke(brushSize); // the stroke the shape gets when it is added
+        }
+        g2d.setStroke(previewStroke);
+        ShapeStore.drawShape(g2d, activeTool, x1, y1, x2, y2);
+        g2d.dispose();
+    }
+
+    // moves the end of the dragged shape, only the areas of the old and the new preview are repainted
+    private void updateShapePreview(int x, int y)
+    {
+        x2 = x;
+        y2 = y;
+        Rectangle old = previewBounds;
+        previewBounds = ShapeStore.getBounds(activeTool, x1, y1, x2, y2, brushSize, new Rectangle());
+        repaintCanvasArea(old == null ? previewBounds : old.union(previewBounds));
+    }
+
+    private void clearShapePreview()
+    {
+        if (previewBounds != null)
+        {
+            repaintCanvasArea(previewBounds);
+            previewBounds = null;
+        }
+    }
+
+    // repaints an area given in canvas pixels, nothing if it is null
+    private void repaintCanvasArea(Rectangle area)
+    {
+        if (area == null)
+        {
+            return;
+        }
+        repaint(zoom == 1 ? area : toView(area));
+    }
+
+    // draws the metrics in a box at the top left corner of the visible part of the canvas
+    private void paintMetrics(Graphics g)
+    {
+        List<String> lines = metrics.getOverlayLines();
+        FontMetrics fontMetrics = g.getFontMetrics();
+        int width = 0;
+        for (String line : lines)
+        {
+            width = Math.max(width, fontMetrics.stringWidth(line));
+        }
+        Rectangle visible = getVisibleRect();
+        int lineHeight = fontMetrics.getHeight();
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(visible.x + 8, visible.y + 8, width + 12, lines.size() * lineHeight + 8);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.size(); i++)
+        {
+            g.drawString(lines.get(i), visible.x + 14, visible.y + 12 + i * lineHeight + fontMetrics.getAscent());
+        }
+    }
+
+    public CanvasMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // shows or hides the metrics over the canvas, they are updated twice a second while shown
+    public void setMetricsOverlayVisible(boolean visible)
+    {
+        metricsOverlay = visible;
+        if (metricsTimer == null)
+        {
+            metricsTimer = new Timer(500, e -> repaint(getVisibleRect()));
+        }
+        if (visible)
+        {
+            metricsTimer.start();
+        }
+        else
+        {
+            metricsTimer.stop();
+        }
+        repaint(getVisibleRect());
+    }
+
+    // this method marks an area of the canvas as changed,
+    // all areas changed before the next frame are joined and repainted together,
+    // it can be called from the render worker as well as from the EDT
+    private void markDirty(int x, int y, int width, int height)
+    {
+        layers.invalidate(x, y, width, height); // the layers are blended again in the area
+        pyramid.invalidate(x, y, width, height); // the zoomed out levels are reduced again when they are shown
+        displayCache.invalidate(x, y, width, height);
+        synchronized (dirtyRegion)
+        {
+            addDirtyArea(x, y, width, height);
+        }
+    }
+
+    private void addDirtyArea(int x, int y, int width, int height)
+    {
+        if (dirtyRegion.isEmpty())
+        {
+            dirtyRegion.setBounds(x, y, width, height);
+        }
+        else // join the areas without creating new objects
+        {
+            int right = Math.max(dirtyRegion.x + dirtyRegion.width, x + width);
+            int bottom = Math.max(dirtyRegion.y + dirtyRegion.height, y + height);
+            dirtyRegion.x = Math.min(dirtyRegion.x, x);
+            dirtyRegion.y = Math.min(dirtyRegion.y, y);
+            dirtyRegion.width = right - dirtyRegion.x;
+            dirtyRegion.height = bottom - dirtyRegion.y;
+        }
+        if (!repaintScheduled)
+        {
+            repaintScheduled = true;
+            SwingUtilities.invokeLater(flushTask);
+        }
+    }
+
+    private void markDirty(Rectangle area)
+    {
+        markDirty(area.x, area.y, area.width, area.height);
+    }
+
+    // repaints the joined changed area
+    private void flushDirtyRegion()
+    {
+        synchronized (dirtyRegion)
+        {
+            repaintScheduled = false;
+            if (!dirtyRegion.isEmpty())
+            {
+                repaint(zoom == 1 ? dirtyRegion : toView(dirtyRegion));
+                dirtyRegion.setBounds(0, 0, 0, 0);
+            }
+        }
+    }
+
+    public double getZoom()
+    {
+        return zoom;
+    }
+
+    // zooms around the center of the visible area
+    public void setZoom(double zoom)
+    {
+        Rectangle visible = getVisibleRect();
+        setZoom(zoom, new Point(visible.x + visible.width / 2, visible.y + visible.height / 2));
+    }
+
+    // changes the zoom so the canvas pixel at the anchor (in panel coordinates) stays where it is on the screen,
+    // the zoom is rounded to a power of two, so zooming out can use a level of the pyramid as it is
+    public void setZoom(double zoom, Point anchor)
+    {
+        int exponent = (int) Math.round(Math.log(zoom) / Math.log(2));
+        zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, Math.pow(2, exponent)));
+        if (zoom == this.zoom)
+        {
+            return;
+        }
+        Rectangle visible = getVisibleRect();
+        double canvasX = anchor.x / this.zoom; // canvas position under the anchor
+        double canvasY = anchor.y / this.zoom;
+        this.zoom = zoom;
+        updatePreferredSize();
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        if (viewport != null)
+        {
+            viewport.getParent().validate(); // the new size is needed to scroll to the anchor
+            int x = (int) Math.round(canvasX * zoom) - (anchor.x - visible.x);
+            int y = (int) Math.round(canvasY * zoom) - (anchor.y - visible.y);
+            Dimension extent = viewport.getExtentSize();
+            x = Math.max(0, Math.min(x, getWidth() - extent.width));
+            y = Math.max(0, Math.min(y, getHeight() - extent.height));
+            viewport.setViewPosition(new Point(x, y));
+        }
+        repaint();
+    }
+
+    // moves the visible area with the mouse while the middle button is held
+    private void pan(Point screenPosition)
+    {
+        Rectangle visible = getVisibleRect();
+        visible.translate(panStart.x - screenPosition.x, panStart.y - screenPosition.y);
+        scrollRectToVisible(visible);
+        panStart = screenPosition;
+    }
+
+    // canvas coordinate of a panel coordinate
+    private int toCanvas(int coordinate)
+    {
+        return zoom == 1 ? coordinate : (int) Math.floor(coordinate / zoom);
+    }
+
+    // canvas pixels covered by an area of the panel
+    private Rectangle toCanvas(Rectangle area)
+    {
+        int left = (int) Math.floor(area.x / zoom);
+        int top = (int) Math.floor(area.y / zoom);
+        int right = (int) Math.ceil((area.x + area.width) / zoom);
+        int bottom = (int) Math.ceil((area.y + area.height) / zoom);
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    // panel pixels covered by an area of the canvas
+    private Rectangle toView(Rectangle area)
+    {
+        int left = (int) Math.floor(area.x * zoom);
+        int top = (int) Math.floor(area.y * zoom);
+        int right = (int) Math.ceil((area.x + area.width) * zoom);
+        int bottom = (int) Math.ceil((area.y + area.height) * zoom);
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    // the panel shows the canvas image at the zoom
+    private void updatePreferredSize()
+    {
+        setPreferredSize(new Dimension((int) Math.ceil(canvasImage.getWidth() * zoom),
+                (int) Math.ceil(canvasImage.getHeight() * zoom)));
+        revalidate();
+    }
+
+    // removes the shapes touched by the eraser brush on the way between two mouse positions
+    private void eraseShapesAlong(int fromX, int fromY, int toX, int toY, double radius)
+    {
+        double length = Math.hypot(toX - fromX, toY - fromY);
+        int steps = (int) Math.ceil(length / Math.max(radius, 1)); // the queried circles overlap
+        for (int i = 1; i <= steps; i++)
+        {
+            eraseShapesAt(fromX + (toX - fromX) * i / steps, fromY + (toY - fromY) * i / steps, radius);
+        }
+    }
+
+    // the methods below draw on the canvas like the mouse does, they are used by the mouse listeners
+    // and by code that draws without a window (BatchRenderer), they must be called from one thread
+
+    // starts a free draw (tool 0) or eraser (tool 5) stroke at the given position as a new undoable operation
+    public void beginStroke(int tool, int x, int y)
+    {
+        beginTentativeEdit();
+        saveStateToUndoStack();
+        strokeTool = tool;
+        // the eraser paints the background white and makes the pixels of a layer transparent
+        Color color = tool != 5 ? selectedColor : layers.getActive().isBackground() ? Color.WHITE : new Color(0, true);
+        int size = brushSize;
+        BufferedImage target = activeImage();
+        renderWorker.submit(() -> {
+            // the stroke keeps one drawing context for all dabs until it ends
+            stroke.begin(target, history, color, size, x, y);
+            markDirty(stroke.getDirtyArea());
+        });
+        if (tool == 5)
+        {
+            eraseShapesAt(x, y, brushSize / 2.0); // shapes are kept on the calling thread
+        }
+        if (session != null && !applyingRemote)
+        {
+            session.strokeStarted(tool, x, y, selectedColor, brushSize); // the others see the stroke while it is drawn
+        }
+        strokePoints.clear();
+        strokePoints.add(tool);
+        strokePoints.add(x);
+        strokePoints.add(y);
+        lastX = x;
+        lastY = y;
+    }
+
+    // continues the stroke to the given position
+    public void strokeTo(int x, int y)
+    {
+        // only queue the position, the render worker draws the dabs
+        metrics.inputAdded();
+        renderWorker.addSample(x, y);
+        if (strokeTool == 5)
+        {
+            eraseShapesAlong(lastX, lastY, x, y, brushSize / 2.0);
+        }
+        if (session != null && !applyingRemote)
+        {
+            session.strokeSample(x, y);
+        }
+        strokePoints.add(x);
+        strokePoints.add(y);
+        lastX = x;
+        lastY = y;
+    }
+
+    public void endStroke()
+    {
+        renderWorker.submit(stroke::end); // release the drawing context of the stroke
+        logOperation(new CanvasOp(CanvasOp.STROKE, strokePoints.toArray()));
+    }
+
+    // draws a line, rectangle, circle or triangle (tools 1 to 4) as one undoable operation
+    public void commitShape(int type, int x1, int y1, int x2, int y2)
+    {
+        beginTentativeEdit();
+        saveStateToUndoStack();
+        logOperation(new CanvasOp(CanvasOp.SHAPE, type, x1, y1, x2, y2));
+        addShape(x1, y1, x2, y2, selectedColor, brushSize, type);
+    }
+
+    // fills the area of similar color around the position with the selected color (tool 6) as one undoable operation,
+    // the outlines of the shapes are borders of the area, tolerance is how much a channel can differ (0 to 255)
+    public void fillAt(int x, int y, int tolerance)
+    {
+        renderWorker.await(); // like undo the fill reads and writes canvasImage on this thread
+        if (isLoading())
+        {
+            imageLoader.await(); // the area can reach into the part that is not decoded yet
+        }
+        BufferedImage layer = shapeLayer.getCurrentImage();
+        if (layer.getWidth() != canvasImage.getWidth() || layer.getHeight() != canvasImage.getHeight())
+        {
+            layer = null;
+        }
+        FloodFill fill = FloodFill.find(activeImage(), layer, x, y, selectedColor.getRGB(), tolerance);
+        if (fill == null)
+        {
+            return; // nothing would change, so there is no undoable operation
+        }
+        beginTentativeEdit();
+        saveStateToUndoStack();
+        renderWorker.await(); // the new state is started on the worker
+        logOperation(new CanvasOp(CanvasOp.FILL, x, y, tolerance));
+        markDirty(fill.apply(history));
+    }
+
+    // adds a finished operation to the operation log of the document,
+    // in a session a local operation is sent and logged when the server sends it back (see confirmOperations()),
+    // so the log has the operations in the order of the server, like the canvas after the reconciliation
+    private void logOperation(CanvasOp op)
+    {
+        finishedOps++;
+        if (redrawingTentative)
+        {
+            return; // the operation is logged once, when it is confirmed
+        }
+        if (session != null && !applyingRemote && CanvasSession.isShared(op))
+        {
+            LocalOp local = new LocalOp();
+            local.sequence = session.send(op, selectedColor, brushSize);
+            local.op = op;
+            local.color = selectedColor;
+            local.size = brushSize;
+            tentativeOps.add(local);
+            return;
+        }
+        if (!applyingRemote && !tentativeOps.isEmpty())
+        {
+            // filters and layer changes wait for the tentative operations, this is part of the last one
+            tentativeOps.get(tentativeOps.size() - 1).loggedAfter = op;
+            return;
+        }
+        recordOperation(op, selectedColor, brushSize);
+    }
+
+    // logs a tentative operation that stays on the canvas
+    private void recordOperation(LocalOp local)
+    {
+        if (local.drawn && !local.waiting)
+        {
+            recordOperation(local.op, local.color, local.size);
+        }
+        if (local.loggedAfter != null)
+        {
+            recordOperation(local.loggedAfter, local.color, local.size);
+        }
+    }
+
+    // writes the operation into the log and the journal,
+    // a change of the color or the brush size is logged before the operation that uses it
+    private void recordOperation(CanvasOp op, Color color, int size)
+    {
+        if (op.getType() == CanvasOp.STROKE || op.getType() == CanvasOp.SHAPE || op.getType() == CanvasOp.FILL)
+        {
+            if (!color.equals(loggedColor))
+            {
+                addLoggedOperation(new CanvasOp(CanvasOp.COLOR, color.getRGB()));
+                loggedColor = color;
+            }
+            if (size != loggedSize)
+            {
+                addLoggedOperation(new CanvasOp(CanvasOp.BRUSH_SIZE, size));
+                loggedSize = size;
+            }
+        }
+        addLoggedOperation(op);
+    }
+
+    private void addLoggedOperation(CanvasOp op)
+    {
+        unsavedOps.add(op);
+        if (journal != null)
+        {
+            journal.append(op); // written to the disk in the background
+        }
+    }
+
+    // the journal gets every finished operation from now on, a new journal starts with the canvas as it is
+    public void setJournal(OperationJournal journal)
+    {
+        this.journal = journal;
+        if (journal != null && journal.isEmpty())
+        {
+            if (document != null && !hasUnsavedChanges())
+            {
+                journal.restart(OperationJournal.BASE_DOCUMENT, document.getFile(), 0, 0);
+            }
+            else
+            {
+                journal.restart(OperationJournal.BASE_EMPTY, null, canvasImage.getWidth(), canvasImage.getHeight());
+            }
+        }
+    }
+
+    // the finished operations of the canvas are sent to the session from now on, null leaves the session
+    public void setSession(CanvasSession session)
+    {
+        CanvasSession old = this.session;
+        if (old != null && old != session)
+        {
+            old.close();
+        }
+        this.session = session;
+        for (LocalOp local : tentativeOps)
+        {
+            recordOperation(local); // they stay on the canvas in this order
+        }
+        tentativeOps.clear(); // nothing is reordered outside a session
+        renderWorker.submit(history::clearAsideRedo); // the last tentative operation cleared the redo states
+        renderWorker.submit(history::restoreAsideRedo);
+        runDeferredActions();
+        repaintCanvasArea(liveStrokes.clear());
+        firePropertyChange("session", old, session);
+    }
+
+    public CanvasSession getSession()
+    {
+        return session;
+    }
+
+    // the connection of the session ended without the user leaving it
+    void sessionClosed(CanvasSession closed)
+    {
+        if (session == closed)
+        {
+            setSession(null);
+        }
+    }
+
+    // shows points of a stroke another client is drawing, args are the tool and the points like in CanvasOp.STROKE
+    void showRemoteSamples(int sender, int[] args, Color color, int size)
+    {
+        repaintCanvasArea(liveStrokes.add(sender, args, color, size));
+    }
+
+    // draws a finished operation of another client with its color and brush size, like the journal replays them
+    // it is undone like a local operation, if the mouse is dragged it waits until the mouse is released
+    // the server put it before the local operations it has not sent back yet, so they are undone and drawn again
+    // after it, then every canvas of the session has the operations in the order of the server
+    void applyRemoteOperation(int sender, CanvasOp op, Color color, int size)
+    {
+        if (drawing)
+        {
+            pendingRemoteOps.add(() -> applyRemoteOperation(sender, op, color, size));
+            return;
+        }
+        applyingRemote = true;
+        try {
+            redrawingTentative = true;
+            for (int i = tentativeOps.size() - 1; i >= 0; i--)
+            {
+                if (tentativeOps.get(i).drawn)
+                {
+                    undo();
+                }
+            }
+            // the history is now the one of the operations in the order of the server, with their redo states
+            renderWorker.submit(history::restoreAsideRedo);
+            redrawingTentative = false;
+            drawOperation(op, color, size); // the only operation that is logged
+            redrawingTentative = true;
+            renderWorker.submit(history::setAsideRedo);
+            for (LocalOp local : tentativeOps)
+            {
+                if (!local.waiting)
+                {
+                    local.drawn = drawOperation(local.op, local.color, local.size);
+                }
+            }
+            if (!hasDrawnTentative())
+            {
+                renderWorker.submit(history::restoreAsideRedo); // nothing was drawn over them
+            }
+        } finally {
+            applyingRemote = false;
+            redrawingTentative = false;
+        }
+        if (op.getType() == CanvasOp.STROKE)
+        {
+            repaintCanvasArea(liveStrokes.remove(sender)); // the stroke is in the canvas now
+        }
+    }
+
+    // applies an operation with a color and brush size that are not the selected ones, true if it changed the canvas
+    private boolean drawOperation(CanvasOp op, Color color, int size)
+    {
+        Color localColor = selectedColor;
+        int localSize = brushSize;
+        selectedColor = color;
+        brushSize = size;
+        int finished = finishedOps;
+        try {
+            op.apply(this);
+        } finally {
+            selectedColor = localColor;
+            brushSize = localSize;
+        }
+        return finishedOps > finished; // an operation that changes nothing is not logged (like an empty fill)
+    }
+
+    // the server sent back the local operations up to the sequence number, they are in their final order
+    // and are logged now, an undo or redo was logged when it was done
+    void confirmOperations(int sequence)
+    {
+        boolean confirmedEdit = false;
+        while (!tentativeOps.isEmpty() && tentativeOps.get(0).sequence <= sequence)
+        {
+            LocalOp local = tentativeOps.remove(0);
+            confirmedEdit |= local.drawn && !local.waiting;
+            recordOperation(local);
+        }
+        if (confirmedEdit)
+        {
+            renderWorker.submit(history::clearAsideRedo); // the confirmed operation cleared the redo states
+        }
+        if (!drawing && !hasDrawnTentative())
+        {
+            renderWorker.submit(history::restoreAsideRedo);
+        }
+        if (!drawing)
+        {
+            runDeferredActions();
+        }
+    }
+
+    // a local operation in a session is drawn before the server put it in order, the redo states of the operations
+    // before it are set aside, so an undo or redo of another client that the server puts before it still finds them
+    private void beginTentativeEdit()
+    {
+        if (session != null && !applyingRemote)
+        {
+            renderWorker.submit(history::setAsideRedo);
+        }
+    }
 
-        addMouseListener(new MouseAdapter()
+    private boolean hasDrawnTentative()
+    {
+        for (LocalOp local : tentativeOps)
         {
-            @Override
-            public void mousePressed(MouseEvent e) // when the user presses the mouse button
+            if (local.drawn && !local.waiting)
             {
-                x1 = e.getX(); // save starting coordinates
-                y1 = e.getY();
-                saveStateToUndoStack(); // save canvas state to the undo stack
-                redoStack.clear();
+                return true;
             }
+        }
+        return false;
+    }
 
-            @Override
-            public void mouseReleased(MouseEvent e) // when the user releases the mouse button
-            {
-                x2 = e.getX(); // save ending coordinates
-                y2 = e.getY();
-                if (activeTool != 5) // if the tool is not an eraser
-                {
-                    shapes.add(new Shape(x1, y1, x2, y2, selectedColor, new BasicStroke(brushSize), activeTool));
-                    drawShapeOnCanvas(shapes.get(shapes.size() - 1)); // create a new shape based on the starting
-                    // and ending coordinates, selected color, brush thickness, and draw it on the canvas
-                    repaint();
-                }
-            }
-        });
+    // filters and layer changes are not shared, while local operations or a sent undo or redo are tentative they wait,
+    // so the undo states on top of the history are the ones of the tentative operations, true if the action waits
+    private boolean deferWhileTentative(Runnable action)
+    {
+        if (tentativeOps.isEmpty() || applyingRemote)
+        {
+            return false;
+        }
+        deferredActions.add(action);
+        return true;
+    }
 
-        addMouseMotionListener(new MouseMotionAdapter()
+    private void runDeferredActions()
+    {
+        while (tentativeOps.isEmpty() && !deferredActions.isEmpty())
         {
-            @Override
-            public void mouseDragged(MouseEvent e) // when the user drags the mouse, draw the shape in real-time
-            {
-                if (activeTool == 0 || activeTool == 5) // if the active tool is free draw or eraser
+            deferredActions.remove(0).run();
+        }
+    }
+
+    private void applyPendingRemoteOperations()
+    {
+        List<Runnable> pending = new ArrayList<>(pendingRemoteOps);
+        pendingRemoteOps.clear();
+        for (Runnable op : pending)
+        {
+            op.run();
+        }
+        runDeferredActions();
+    }
+
+    // puts the canvas back into the state the journal of an earlier session describes,
+    // call it before setJournal(), so the operations are not added to the journal again
+    public void recoverSession(OperationJournal journal) throws IOException
+    {
+        switch (journal.getBaseType()) {
+            case OperationJournal.BASE_DOCUMENT:
+                openDocument(journal.getBase());
+                break;
+            case OperationJournal.BASE_IMAGE:
+                openImage(journal.getBase());
+                if (imageLoader != null)
                 {
-                    Graphics2D g = canvasImage.createGraphics(); // create a graphics context to draw on the image
-                    g.setColor(activeTool == 5 ? Color.WHITE : selectedColor);
-                    // draw a filled oval on the canvasImage at the cursor's location
-                    g.fillOval(e.getX() - brushSize / 2, e.getY() - brushSize / 2, brushSize, brushSize);
-                    g.dispose(); // release system resources associated with the Graphics2D object
-                    if (activeTool == 5)
-                    {
-                        eraseShapesAt(e.getX(), e.getY());
-                    }
-                    repaint(); // refresh the screen to show changes
+                    imageLoader.await(); // the operations are drawn on the decoded image
                 }
+                break;
+            default:
+                resizeCanvasImage(journal.getWidth(), journal.getHeight());
+                break;
+        }
+        shapeLayer.setDeferred(true); // the shapes are drawn once at the end instead of after every operation
+        try {
+            for (CanvasOp op : journal.getOperations())
+            {
+                op.apply(this);
             }
-        });
+        } finally {
+            shapeLayer.setDeferred(false);
+        }
+        repaint();
     }
 
-    @Override
-    // draws the background image and all shapes on the panel
-    protected void paintComponent(Graphics g)
+    // stops the background threads of the canvas, it cannot be used after this
+    public void dispose()
     {
-        super.paintComponent(g);
-        g.drawImage(canvasImage, 0, 0, null);
-        Graphics2D g2d = (Graphics2D) g; // convert Graphics object to Graphics2D object
-        for (Shape shape : shapes) // iterate through the shapes collection
+        if (imageLoader != null)
+        {
+            imageLoader.cancel();
+        }
+        if (metricsTimer != null)
         {
-            shape.draw(g2d); // draw the shape on the panel
+            metricsTimer.stop();
         }
+        if (session != null)
+        {
+            session.close();
+        }
+        metrics.unregister();
+        displayCache.flush();
+        renderWorker.await(); // the images are not drawn into anymore
+        renderWorker.shutdown();
+        if (imageLoader != null)
+        {
+            imageLoader.await();
+        }
+        // the scratch files of a very large canvas are deleted now, not when the JVM exits
+        MappedDataBuffer.disposeImage(canvasImage);
+        history.clear();
+        layers.dispose();
+        pyramid.dispose();
+        shapeLayer.dispose();
     }
 
-    private void eraseShapesAt(int x, int y)
+    // adds a finished shape and draws it on the shape layer
+    // package-private like the other hot paths below, so the benchmarks can call them
+    void addShape(int x1, int y1, int x2, int y2, Color color, int strokeWidth, int type)
     {
-        List<Shape> shapesToRemove = new ArrayList<>(); // list for removing shapes
-        for (Shape shape : shapes) {
-            if (shape.contains(x, y))
-            {
-                shapesToRemove.add(shape);
-            }
+        int id = shapes.add(x1, y1, x2, y2, color, strokeWidth, type);
+        shapeGrid.add(id);
+        shapeLayer.add(id);
+        markDirty(shapes.getBounds(id, shapeBounds)); // repaint only the area of the new shape
+    }
+
+    // removes the shapes touched by the eraser brush
+    void eraseShapesAt(int x, int y, double radius)
+    {
+        long start = System.nanoTime();
+        shapeGrid.queryCircle(x, y, radius, hits); // only the shapes near the eraser are tested
+        metrics.recordEraserHitTest(System.nanoTime() - start);
+        if (hits.isEmpty())
+        {
+            return;
+        }
+        for (int i = 0; i < hits.size(); i++)
+        {
+            shapeGrid.remove(hits.get(i));
+            shapes.remove(hits.get(i));
         }
-        shapes.removeAll(shapesToRemove); // all shapes contained in the shapesToRemove list
-        // will be removed from the main shapes list
+        for (int i = 0; i < hits.size(); i++) // the index is up to date, now the shape layer can be drawn again
+        {
+            shapes.getBounds(hits.get(i), shapeBounds);
+            shapeLayer.invalidate(shapeBounds); // draw the area of the erased shape again without it
+            markDirty(shapeBounds); // the area of the erased shape has to be repainted
+        }
+        hits.clear();
     }
 
     private void initializeCanvasImage(int width, int height)
     {
-        canvasImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = canvasImage.createGraphics(); // we can draw on the image using methods available in Graphics2D
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, canvasImage.getWidth(), canvasImage.getHeight()); // draw a rectangle
-        // with dimensions corresponding to the entire image area and fill it white
-        g2d.dispose(); // release the graphics context resources
+        if (MappedDataBuffer.shouldMap(width, height)) // very large canvases are kept in a scratch file
+        {
+            canvasImage = MappedDataBuffer.createImage(width, height, Color.WHITE.getRGB());
+        }
+        else
+        {
+            // the new image is filled white in parallel bands of rows
+            canvasImage = ParallelRaster.createFilled(width, height, Color.WHITE);
+        }
+        canvasImageReplaced();
+    }
+
+    // called after canvasImage was replaced by another image object,
+    // the layers get the size of the new image and the composite and the pyramid are made again
+    private void canvasImageReplaced()
+    {
+        layers.resize(canvasImage.getWidth(), canvasImage.getHeight());
+        layers.invalidateAll();
+        pyramid.invalidate(0, 0, canvasImage.getWidth(), canvasImage.getHeight());
+        displayCache.invalidateAll();
+    }
+
+    // the image that drawing goes into, the image of the active layer
+    private BufferedImage activeImage()
+    {
+        Layer layer = layers.getActive();
+        return layer.isBackground() ? canvasImage : layer.getImage();
     }
 
     public void saveImage()
@@ -120,6 +1152,13 @@ public class PaintCanvas extends JPanel
         FileNameExtensionFilter filter = new FileNameExtensionFilter("PNG Images (*.png)", "png");
         fileChooser.setFileFilter(filter);
         fileChooser.setSelectedFile(new File("image.png"));
+        // compression setting, faster saving makes bigger files
+        JComboBox<String> compressionBox = new JComboBox<>(COMPRESSION_NAMES);
+        compressionBox.setSelectedIndex(compressionIndex(pngCompressionLevel));
+        JPanel compressionPanel = new JPanel(new BorderLayout());
+        compressionPanel.add(new JLabel("Compression"), BorderLayout.NORTH);
+        compressionPanel.add(compressionBox, BorderLayout.SOUTH);
+        fileChooser.setAccessory(compressionPanel);
 
         int userSelection = fileChooser.showSaveDialog(this); // display the save file dialog
 
@@ -130,77 +1169,467 @@ public class PaintCanvas extends JPanel
             {
                 fileToSave = new File(fileToSave.getAbsolutePath() + ".png");
             }
+            pngCompressionLevel = COMPRESSION_LEVELS[compressionBox.getSelectedIndex()];
+            saveImageInBackground(createFlattenedImage(), fileToSave); // the snapshot can be saved while the user keeps drawing
+        }
+    }
 
-            try {
-                ImageIO.write(canvasImage, "PNG", fileToSave); // the image is saved to the selected file
-                JOptionPane.showMessageDialog(this, "Image saved successfully to " + fileToSave.getAbsolutePath());
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Error saving image: " + e.getMessage());
+    // encodes and writes the image on a background thread, the progress is shown in a dialog that can cancel the save
+    private void saveImageInBackground(BufferedImage image, File file)
+    {
+        ProgressMonitor monitor = new ProgressMonitor(this, "Saving " + file.getName(), null, 0, image.getHeight());
+        monitor.setMillisToDecideToPopup(200);
+        PngWriter writer = new PngWriter(pngCompressionLevel);
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>()
+        {
+            private volatile boolean canceled; // the progress dialog is only read on the event thread
+
+            @Override
+            protected Void doInBackground() throws Exception
+            {
+                try {
+                    writer.write(image, file.toPath(), new PngWriter.ProgressListener()
+                    {
+                        @Override
+                        public void rowsWritten(int rows, int totalRows)
+                        {
+                            SwingUtilities.invokeLater(() ->
+                            {
+                                monitor.setProgress(rows);
+                                canceled = monitor.isCanceled();
+                            });
+                            if (canceled)
+                            {
+                                cancel(true); // interrupts the writer, the unfinished file is deleted
+                            }
+                        }
+                    });
+                } finally {
+                    MappedDataBuffer.disposeImage(image); // the snapshot of a very large canvas is a scratch file
+                }
+                return null;
+            }
+
+            @Override
+            protected void done()
+            {
+                monitor.close();
+                if (isCancelled())
+                {
+                    return;
+                }
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(PaintCanvas.this, "Image saved successfully to " + file.getAbsolutePath());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(PaintCanvas.this, "Error saving image: " + e.getCause().getMessage());
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    // index of the compression level in the list of choices
+    private static int compressionIndex(int level)
+    {
+        for (int i = 0; i < COMPRESSION_LEVELS.length; i++)
+        {
+            if (COMPRESSION_LEVELS[i] == level)
+            {
+                return i;
             }
         }
+        return 1;
+    }
+
+    public void setPngCompressionLevel(int level)
+    {
+        pngCompressionLevel = level;
+    }
+
+    // saves the canvas as a document, to the file it was saved to before or to a file chosen by the user
+    public void saveDocument()
+    {
+        File file = document == null ? null : document.getFile();
+        if (file == null)
+        {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Save Document");
+            fileChooser.setFileFilter(new FileNameExtensionFilter("Paint Documents (*.paint)", PaintDocument.EXTENSION));
+            fileChooser.setSelectedFile(new File("drawing." + PaintDocument.EXTENSION));
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+            {
+                return;
+            }
+            file = fileChooser.getSelectedFile();
+            if (!file.getName().toLowerCase().endsWith("." + PaintDocument.EXTENSION))
+            {
+                file = new File(file.getAbsolutePath() + "." + PaintDocument.EXTENSION);
+            }
+        }
+        try {
+            saveDocument(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error saving document: " + e.getMessage());
+        }
+    }
+
+    // saves the canvas as a document, if it is the file of the last save only the changes are appended to it
+    public void saveDocument(File file) throws IOException
+    {
+        renderWorker.await(); // the changed tiles are known when the queued drawing is done
+        if (isLoading())
+        {
+            imageLoader.await();
+        }
+        PaintDocument target = document;
+        if (target == null || !target.getFile().equals(file))
+        {
+            target = new PaintDocument(file);
+        }
+        // the changed tiles are only cleared when the save worked, a failed save is repeated with them
+        target.save(canvasImage, layers, history::getChangedTiles, history.getTileSize(), shapes, unsavedOps);
+        history.takeChangedTiles();
+        document = target;
+        unsavedOps.clear();
+        if (journal != null)
+        {
+            journal.restart(OperationJournal.BASE_DOCUMENT, file, 0, 0); // the saved operations do not have to be recovered
+        }
+    }
+
+    // saves the changes if the canvas has a document file, used for autosave
+    public void saveDocumentChanges()
+    {
+        if (document == null || !hasUnsavedChanges())
+        {
+            return;
+        }
+        try {
+            saveDocument(document.getFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // true if the canvas changed since the document was saved
+    public boolean hasUnsavedChanges()
+    {
+        return document == null || !unsavedOps.isEmpty() || document.isImageReplaced(canvasImage)
+                || history.hasChangedTiles();
+    }
+
+    // replaces the canvas with a document, the undo history starts again with the document
+    public void openDocument(File file) throws IOException
+    {
+        PaintDocument opened = PaintDocument.open(file);
+        ShapeStore openedShapes = new ShapeStore();
+        IdList ids = opened.readShapes(openedShapes);
+        BufferedImage image = opened.readImage();
+        LayerStack openedLayers = new LayerStack();
+        try {
+            opened.readLayers(openedLayers);
+        } catch (IOException | RuntimeException e) {
+            MappedDataBuffer.disposeImage(image);
+            openedLayers.dispose();
+            throw e;
+        }
+        if (imageLoader != null)
+        {
+            imageLoader.cancel();
+            imageLoader.await(); // its image is disposed below
+            imageLoader = null;
+        }
+        renderWorker.await();
+        history.clear(); // the states refer to the shapes of the old store
+        tentativeOps.clear(); // the local operations of a session cannot be taken back past the new image
+        history.takeChangedTiles();
+        shapes = openedShapes;
+        shapes.restore(ids);
+        shapeGrid = new ShapeGrid(shapes);
+        shapeGrid.rebuild(shapes.getIds());
+        MappedDataBuffer.disposeImage(canvasImage); // the old images are not in the history anymore
+        layers.dispose();
+        shapeLayer.dispose();
+        canvasImage = image;
+        layers = openedLayers;
+        canvasImageReplaced();
+        firePropertyChange("layers", null, layers);
+        shapeLayer = new ShapeLayer(image.getWidth(), image.getHeight(), shapes, shapeGrid);
+        shapeLayer.rebuild();
+        document = opened;
+        unsavedOps.clear();
+        if (journal != null)
+        {
+            journal.restart(OperationJournal.BASE_DOCUMENT, file, 0, 0);
+        }
+        loggedColor = null;
+        loggedSize = 0;
+        updatePreferredSize();
+        repaint();
+    }
+
+    // this method creates one image with the canvas and the shapes drawn on top of it
+    public BufferedImage createFlattenedImage()
+    {
+        renderWorker.await(); // strokes that are still queued are part of the image
+        if (isLoading())
+        {
+            imageLoader.await(); // the opened image has to be complete
+        }
+        long start = System.nanoTime();
+        BufferedImage image = ImageUtils.deepCopy(layers.getComposite(canvasImage));
+        metrics.recordDeepCopy(System.nanoTime() - start, 4L * image.getWidth() * image.getHeight());
+        Graphics2D g2d = image.createGraphics();
+        g2d.drawImage(shapeLayer.getImage(), 0, 0, null);
+        g2d.dispose();
+        return image;
     }
 
     public void openImage()
     {
-        JFileChooser fileChooser = new JFileChooser(); // open file dialog
-        FileNameExtensionFilter filter = new FileNameExtensionFilter("JPG & PNG Images", "jpg", "png");
-        fileChooser.setFileFilter(filter);
-        int returnValue = fileChooser.showOpenDialog(null); // display the open file dialog and wait for file selection
-        if (returnValue == JFileChooser.APPROVE_OPTION) // if the user approved the selection
+        // the open browser shows the images of a folder as thumbnails and the recent files
+        File selectedFile = OpenBrowser.choose(this);
+        if (selectedFile != null) // if the user chose a file
         {
-            File selectedFile = fileChooser.getSelectedFile(); // get the selected file
+            if (selectedFile.getName().toLowerCase().endsWith("." + PaintDocument.EXTENSION))
+            {
+                try {
+                    openDocument(selectedFile);
+                    RecentFiles.add(selectedFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(this, "Error opening document: " + e.getMessage());
+                }
+                return;
+            }
             try {
-                BufferedImage image = ImageIO.read(selectedFile);
-                canvasImage = ImageUtils.deepCopy(image); // clone the image and set it as canvasImage
-                setPreferredSize(new Dimension(canvasImage.getWidth(), canvasImage.getHeight()));
-                // set the canvas size to the image size
-                repaint();
+                openImage(selectedFile);
+                RecentFiles.add(selectedFile);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
-    // the method saves the current canvas state to the undo stack
-    private void saveStateToUndoStack()
+
+    // replaces the canvas image with the image file, the pixels are decoded in the background
+    public void openImage(File file) throws IOException
+    {
+        // only the size is read here, the pixels are decoded in the background
+        // (large images are kept in a memory-mapped scratch file)
+        ProgressiveImageLoader loader = new ProgressiveImageLoader(file);
+        if (imageLoader != null)
+        {
+            imageLoader.cancel(); // the image that is still loading is replaced
+        }
+        renderWorker.await(); // the history and the image are used on this thread now
+        history.recordImageReplaced(canvasImage, shapes.snapshot()); // the old image can be restored with undo
+        tentativeOps.clear(); // the local operations of a session cannot be taken back past the new image
+        canvasImage = loader.getImage();
+        canvasImageReplaced();
+        imageLoader = loader;
+        shapeLayer.reset(canvasImage.getWidth(), canvasImage.getHeight());
+        updatePreferredSize();
+        // set the canvas size to the image size
+        repaint();
+        startImageLoader(loader);
+        if (journal != null)
+        {
+            journal.restart(OperationJournal.BASE_IMAGE, file, 0, 0); // the operations before are part of the old image
+        }
+    }
+
+    // decodes the opened image, the visible part of the canvas first
+    private void startImageLoader(ProgressiveImageLoader loader)
+    {
+        loader.start(getVisibleRect(), new ProgressiveImageLoader.Listener()
+        {
+            @Override
+            public void areaDecoded(int x, int y, int width, int height)
+            {
+                markDirty(x, y, width, height); // the decoded rows are shown with the next frame
+            }
+
+            @Override
+            public void loadFinished(IOException error)
+            {
+                if (error != null)
+                {
+                    error.printStackTrace();
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (imageLoader == loader)
+                    {
+                        imageLoader = null;
+                        if (!ParallelRaster.isDirect(canvasImage) && !MappedDataBuffer.isMapped(canvasImage))
+                        {
+                            // a JPG is decoded as RGB, drawing and the screen cache work on ARGB pixels,
+                            // the pixel array is kept and only the alpha bits are set
+                            renderWorker.await();
+                            canvasImage = ParallelRaster.toArgb(canvasImage);
+                            canvasImageReplaced();
+                        }
+                        repaint(); // the preview is not shown anymore
+                        resizeCanvasImage(getWidth(), getHeight()); // the image was not grown while it was loading
+                    }
+                });
+            }
+        });
+    }
+
+    // true while the canvas image is an opened image that is still being decoded
+    private boolean isLoading()
+    {
+        return imageLoader != null && imageLoader.getImage() == canvasImage;
+    }
+
+    // true if the brush can be drawn from one position to the other, the parts of an opened image that are
+    // not decoded yet cannot: the loader writes its rows into the canvas image and would overwrite the stroke
+    private boolean isDecoded(int fromX, int fromY, int toX, int toY)
+    {
+        if (!isLoading())
+        {
+            return true;
+        }
+        int radius = brushSize / 2 + 1;
+        return imageLoader.isDecoded(new Rectangle(Math.min(fromX, toX) - radius, Math.min(fromY, toY) - radius,
+                Math.abs(toX - fromX) + 2 * radius + 1, Math.abs(toY - fromY) + 2 * radius + 1));
+    }
+    // the method starts a new undoable operation, the changed tiles are saved while drawing
+    void saveStateToUndoStack()
     {
-        // CanvasState object is added to the undo stack
-        undoStack.push(new CanvasState(ImageUtils.deepCopy(canvasImage), new ArrayList<>(shapes)));
+        long start = System.nanoTime();
+        IdList snapshot = shapes.snapshot(); // shapes belong to the EDT, the snapshot is passed to the worker
+        long snapshotTime = System.nanoTime() - start;
+        Layer layer = layers.getActive().isBackground() ? null : layers.getActive(); // only this layer is saved
+        renderWorker.submit(() -> {
+            long begin = System.nanoTime();
+            history.beginEdit(layer == null ? canvasImage : layer.getImage(), snapshot, layer);
+            metrics.recordUndoSave(snapshotTime + System.nanoTime() - begin); // time on both threads, without the wait between
+        });
     }
 
     // undo operation
     public void undo()
     {
-        if (!undoStack.isEmpty())
+        if (sendUndoOrRedo(CanvasOp.UNDO))
         {
-            // CanvasState object will be saved to the redo stack
-            redoStack.push(new CanvasState(ImageUtils.deepCopy(canvasImage), new ArrayList<>(shapes)));
-            CanvasState state = undoStack.pop(); // get the last state from the undo stack
-            canvasImage = state.getCanvasImage();
-            shapes = state.getShapes();
-            repaint(); // display the new canvas state
+            return;
+        }
+        renderWorker.await(); // finish the queued drawing before the tiles are restored
+        IdList oldShapes = shapes.snapshot();
+        CanvasState state = history.undo(canvasImage, oldShapes); // the saved tiles are written back into canvasImage
+        if (state != null)
+        {
+            restoreState(state, oldShapes);
+            logOperation(new CanvasOp(CanvasOp.UNDO));
         }
     }
     // redo operation
     public void redo()
     {
-        if (!redoStack.isEmpty())
+        if (sendUndoOrRedo(CanvasOp.REDO))
+        {
+            return;
+        }
+        renderWorker.await();
+        // the history saves the current state before performing redo
+        // so it is possible to undo the redo operation later
+        IdList oldShapes = shapes.snapshot();
+        CanvasState state = history.redo(canvasImage, oldShapes);
+        if (state != null)
+        {
+            restoreState(state, oldShapes);
+            logOperation(new CanvasOp(CanvasOp.REDO));
+        }
+    }
+
+    // in a session undo and redo are shared: they are only sent, and every canvas does them when the server
+    // sends them back, in its order, so all canvases take back the same operation, true if it was sent
+    // until then it waits like a tentative operation, local actions after it wait for it (see deferWhileTentative())
+    private boolean sendUndoOrRedo(int type)
+    {
+        if (session == null || applyingRemote)
+        {
+            return false;
+        }
+        LocalOp local = new LocalOp();
+        local.op = new CanvasOp(type);
+        local.sequence = session.send(local.op, selectedColor, brushSize);
+        local.color = selectedColor;
+        local.size = brushSize;
+        local.drawn = false;
+        local.waiting = true;
+        tentativeOps.add(local);
+        return true;
+    }
+
+    private void restoreState(CanvasState state, IdList oldShapes)
+    {
+        shapes.restore(state.getShapes()); // restore the shapes
+        if (state.getCanvasImage() != null) // the whole image was replaced by this operation
+        {
+            canvasImage = state.getCanvasImage();
+            canvasImageReplaced();
+            shapeGrid.rebuild(shapes.getIds());
+            shapeLayer.reset(canvasImage.getWidth(), canvasImage.getHeight());
+            repaint(); // display the new canvas state
+            return;
+        }
+        // repaint only the restored tiles and the shapes that were added or removed
+        Rectangle tiles = state.getBounds();
+        if (tiles != null)
+        {
+            markDirty(tiles);
+        }
+        // both id lists are sorted and share most of their chunks, so only the changed chunks are compared
+        IdList.diff(oldShapes, state.getShapes(), addedShapes, removedShapes);
+        for (int i = 0; i < addedShapes.size(); i++) // the shapes were added back
+        {
+            shapeGrid.add(addedShapes.get(i));
+        }
+        for (int i = 0; i < removedShapes.size(); i++)
+        {
+            shapeGrid.remove(removedShapes.get(i));
+        }
+        // the index is up to date, now the shape layer can be drawn again
+        invalidateShapes(addedShapes);
+        invalidateShapes(removedShapes);
+        addedShapes.clear();
+        removedShapes.clear();
+    }
+
+    // draws the areas of the shapes on the shape layer again and repaints them
+    private void invalidateShapes(IntList ids)
+    {
+        for (int i = 0; i < ids.size(); i++)
         {
-            // save the current state before performing redo
-            // so it is possible to undo the redo operation later
-            undoStack.push(new CanvasState(ImageUtils.deepCopy(canvasImage), new ArrayList<>(shapes)));
-            CanvasState state = redoStack.pop(); // get the state from the top of the redo stack
-            canvasImage = state.getCanvasImage(); // restore the canvas state and shapes
-            shapes = state.getShapes();
-            repaint();
+            shapes.getBounds(ids.get(i), shapeBounds);
+            shapeLayer.invalidate(shapeBounds);
+            markDirty(shapeBounds);
         }
     }
 
+    // the memory used by the undo history can be limited, the oldest operations are removed first
+    public void setUndoMemoryBudget(long bytes)
+    {
+        renderWorker.submit(() -> history.setMemoryBudget(bytes)); // the history is used by the render worker
+    }
+
     // methods to set field values in the class instance
     public void setSelectedColor(Color color)
     {
         selectedColor = color;
     }
 
+    public void setFillTolerance(int tolerance)
+    {
+        fillTolerance = tolerance;
+    }
+
     public void setBrushSize(int size)
     {
         brushSize = size;
@@ -213,16 +1642,112 @@ public class PaintCanvas extends JPanel
 
     public void clearCanvas()
     {
+        beginTentativeEdit();
+        renderWorker.await();
+        history.recordImageReplaced(canvasImage, shapes.snapshot()); // clearing can be undone
         shapes.clear();
-        initializeCanvasImage(getWidth(), getHeight()); // initialize a new canvas image, setting width and height to current
+        shapeGrid.clear();
+        // initialize a new canvas image, setting width and height to the current size of the panel in canvas pixels,
+        // zoomed out the panel can be larger than the canvas, then the canvas keeps its size
+        Dimension size = zoom < 1 ? new Dimension(canvasImage.getWidth(), canvasImage.getHeight())
+                : toCanvas(new Rectangle(0, 0, getWidth(), getHeight())).getSize();
+        initializeCanvasImage(size.width, size.height);
+        shapeLayer.reset(canvasImage.getWidth(), canvasImage.getHeight());
+        logOperation(new CanvasOp(CanvasOp.CLEAR));
+        // the cleared image has the size of the panel, a replay in a smaller window grows it to this size
+        logOperation(new CanvasOp(CanvasOp.RESIZE, canvasImage.getWidth(), canvasImage.getHeight()));
         repaint();
     }
 
-    private void drawShapeOnCanvas(Shape shape)
+    // the raster layers, bottom first, index 0 is the background (the canvas image)
+    public LayerStack getLayers()
+    {
+        return layers;
+    }
+
+    // adds a transparent layer above the active layer, drawing goes into it
+    public void addLayer()
+    {
+        if (deferWhileTentative(this::addLayer))
+        {
+            return;
+        }
+        renderWorker.await(); // strokes drawn so far go into the layer that was active
+        layers.add(canvasImage.getWidth(), canvasImage.getHeight());
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_ADD));
+        layersChanged();
+    }
+
+    public void removeLayer(int index)
+    {
+        if (deferWhileTentative(() -> removeLayer(index)))
+        {
+            return;
+        }
+        renderWorker.await(); // undo states of the layer write into its image, which is not shown any more
+        layers.remove(index);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_REMOVE, index));
+        layersChanged();
+    }
+
+    public void selectLayer(int index)
+    {
+        if (deferWhileTentative(() -> selectLayer(index)))
+        {
+            return;
+        }
+        renderWorker.await();
+        layers.setActive(index);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_SELECT, index));
+        firePropertyChange("layers", null, layers); // the composite does not change
+    }
+
+    public void moveLayer(int from, int to)
+    {
+        if (deferWhileTentative(() -> moveLayer(from, to)))
+        {
+            return;
+        }
+        renderWorker.await();
+        layers.move(from, to);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_MOVE, from, to));
+        layersChanged();
+    }
+
+    public void setLayerVisible(int index, boolean visible)
+    {
+        renderWorker.await();
+        layers.get(index).setVisible(visible);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_VISIBLE, index, visible ? 1 : 0));
+        layersChanged();
+    }
+
+    // opacity in percent
+    public void setLayerOpacity(int index, int opacity)
+    {
+        renderWorker.await();
+        layers.get(index).setOpacity(opacity);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_OPACITY, index, layers.get(index).getOpacity()));
+        layersChanged();
+    }
+
+    // one of the blend modes of Layer
+    public void setLayerBlendMode(int index, int mode)
+    {
+        renderWorker.await();
+        layers.get(index).setBlendMode(mode);
+        logOperation(new CanvasOp(CanvasOp.LAYER, CanvasOp.LAYER_BLEND, index, mode));
+        layersChanged();
+    }
+
+    // the order or a property of a layer changed, the whole composite is blended again
+    private void layersChanged()
     {
-        Graphics2D g2d = canvasImage.createGraphics(); // Graphics2D object that allows drawing on the canvas image
-        shape.draw(g2d);
-        g2d.dispose(); // release resources
+        layers.invalidateAll();
+        pyramid.invalidate(0, 0, canvasImage.getWidth(), canvasImage.getHeight());
+        displayCache.invalidateAll();
+        repaint();
+        firePropertyChange("layers", null, layers);
     }
 
     @Override
@@ -242,17 +1767,38 @@ public class PaintCanvas extends JPanel
 
     private void resizeCanvasImage(int width, int height)
     {
+        if (isLoading())
+        {
+            return; // the loader decodes into the current image, it is grown when the loader is finished
+        }
+        if (zoom < 1)
+        {
+            return; // the panel is larger than the zoomed out canvas only because the viewport is, it is not drawn on
+        }
+        width = toCanvas(width + (int) zoom - 1); // the panel size in canvas pixels, rounded up
+        height = toCanvas(height + (int) zoom - 1);
+        growCanvas(width, height);
+    }
+
+    // makes the canvas image at least width x height canvas pixels, the new areas are white
+    // the new size is logged, so a replay of the journal has the room the later operations were drawn in
+    public void growCanvas(int width, int height)
+    {
+        renderWorker.await();
+        if (isLoading())
+        {
+            imageLoader.await(); // the loader decodes into the current image
+        }
         // if the new dimensions are larger than the current canvas dimensions
         if (canvasImage.getWidth() < width || canvasImage.getHeight() < height)
         {
-            // create a new image
-            BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2d = newImage.createGraphics();
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, newImage.getWidth(), newImage.getHeight());
-            g2d.drawImage(canvasImage, 0, 0, null); // copy the contents of the current canvas image to the new image
-            g2d.dispose();
-            canvasImage = newImage; // the canvas image reference is replaced with the new image reference
+            // the pixel array is reused when it has room for the new size, otherwise the image is copied in parallel
+            BufferedImage old = canvasImage;
+            canvasImage = ParallelRaster.grow(canvasImage, width, height, Color.WHITE);
+            canvasImageReplaced();
+            MappedDataBuffer.disposeImage(old); // a very large image was copied into a new scratch file
+            shapeLayer.reset(canvasImage.getWidth(), canvasImage.getHeight());
+            logOperation(new CanvasOp(CanvasOp.RESIZE, canvasImage.getWidth(), canvasImage.getHeight()));
         }
     }
 }
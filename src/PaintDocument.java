@@ -0,0 +1,839 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// this class saves and opens the native document format of the canvas (.paint)
+// unlike a flattened PNG, a document keeps the shapes, the raster layers and a log of the drawing operations,
+// the canvas image and every layer above it are stored as square tiles that are compressed on their own
+// the file is only appended to: a save writes the tiles that changed since the last save,
+// the new shapes and the new operations, and then an index that tells where the newest version
+// of every tile is, so saving a small change of a large document writes only a few tiles
+// when the file holds more old tile versions than live data, the next save writes it again from the start
+//
+// layout:  header    "PDOC", version
+//          records   tiles (column, row, length, deflated ARGB pixels), shape blocks, operation blocks
+//          index     size of the image, the active layer, the properties of every layer and the position
+//                    of every tile of the canvas image and the layers, shape and operation blocks,
+//                    ids of the shapes on the canvas, number of old bytes
+//          trailer   position of the index, "PEND"
+// version 1 documents have no layers, their index has only the tiles of the canvas image
+public class PaintDocument
+{
+    public static final String EXTENSION = "paint";
+
+    private static final int MAGIC = 0x50444f43; // "PDOC"
+    private static final int TRAILER_MAGIC = 0x50454e44; // "PEND"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 12;
+    private static final int TILE_SIZE = 256;
+    private static final long MIN_WASTE = 1 << 20; // old data below this size is never compacted
+    private static final int SCAN_CHUNK = 1 << 16; // bytes read at a time while searching for an older trailer
+
+    private File file;
+    private int width, height, columns, rows;
+    private List<TileTable> tables = new ArrayList<>(); // the canvas image first, then the layers above it, bottom first
+    private int activeLayer; // index of the active layer read from the index, 0 is the background
+    private List<long[]> shapeBlocks = new ArrayList<>(); // position, length, first id, number of shapes
+    private List<long[]> opBlocks = new ArrayList<>(); // position, length, number of operations
+    private int savedShapes; // shapes with smaller ids are already in the file
+    private IdList ids = new IdList(); // shapes on the canvas, read from the index
+    private long fileEnd; // new records are appended here
+    private long indexLength; // size of the newest index and trailer, they become old data with the next save
+    private long wastedBytes; // old versions of tiles and old indexes
+
+    // the newest record of every tile of the canvas image or of one layer, index = row * columns + column
+    private static class TileTable
+    {
+        Layer layer; // the layer the tiles were saved from or read into, null for the canvas image
+        BufferedImage savedImage; // image of the last save, all tiles of another image are written
+        String name = ""; // properties of the layer, read from the index
+        boolean visible = true;
+        int opacity = 100;
+        int blendMode = Layer.NORMAL;
+        long[] offsets; // file position of every tile record
+        int[] lengths; // size of those records, 0 if the tile was never saved (white or transparent)
+
+        TileTable(Layer layer, int tiles)
+        {
+            this.layer = layer;
+            offsets = new long[tiles];
+            lengths = new int[tiles];
+        }
+    }
+
+    // a document that is not saved yet, the first save writes the whole file
+    public PaintDocument(File file)
+    {
+        this.file = file;
+    }
+
+    // reads the index of a document file, the image, the layers and the shapes are read with
+    // readImage(), readLayers() and readShapes()
+    public static PaintDocument open(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (size < HEADER_SIZE + TRAILER_SIZE || header.getInt() != MAGIC)
+            {
+                throw new IOException("Not a paint document: " + file.getName());
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION)
+            {
+                throw new IOException("Unsupported document version: " + file.getName());
+            }
+            // the newest trailer is at the end, a save that failed halfway can leave a part of its records
+            // after it, then the last complete trailer before them is used and the next save writes over them
+            for (long end = findTrailer(channel, size); end > 0; end = findTrailer(channel, end - 1))
+            {
+                PaintDocument document = readTrailer(file, channel, end, version);
+                if (document != null)
+                {
+                    return document;
+                }
+            }
+            throw new IOException("The document is damaged: " + file.getName());
+        }
+    }
+
+    // the end of the last trailer magic at or before the position, 0 if there is none
+    private static long findTrailer(FileChannel channel, long end) throws IOException
+    {
+        while (end >= HEADER_SIZE + TRAILER_SIZE)
+        {
+            long start = Math.max(HEADER_SIZE + TRAILER_SIZE - 4, end - SCAN_CHUNK);
+            ByteBuffer data = read(channel, start, (int) (end - start));
+            for (int i = data.limit() - 4; i >= 0; i--)
+            {
+                if (data.getInt(i) == TRAILER_MAGIC)
+                {
+                    return start + i + 4;
+                }
+            }
+            end = start + 3; // a magic can span two chunks
+        }
+        return 0;
+    }
+
+    // reads the index of the trailer that ends at the position, null if the trailer or the index is not valid
+    private static PaintDocument readTrailer(File file, FileChannel channel, long end, int version) throws IOException
+    {
+        ByteBuffer trailer = read(channel, end - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        if (indexOffset < HEADER_SIZE || indexOffset > end - TRAILER_SIZE)
+        {
+            return null;
+        }
+        ByteBuffer index = read(channel, indexOffset, (int) (end - TRAILER_SIZE - indexOffset));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+        PaintDocument document = new PaintDocument(file);
+        try {
+            document.readIndex(in, version);
+        } catch (IOException e) {
+            return null;
+        }
+        if (in.available() > 0)
+        {
+            return null;
+        }
+        // the index of an older version cannot be appended to, the next save writes the file in this version
+        document.fileEnd = version == VERSION ? end : 0;
+        document.indexLength = end - indexOffset;
+        return document;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    // saves the canvas image, the layers above it and the shapes,
+    // only the changed tiles are written for the images that are the ones of the last save,
+    // changedTiles gives them for the canvas image (null) and for every layer, in the tile size of the
+    // undo history (see UndoHistory.getChangedTiles), ops are the operations since the last save,
+    // they are added to the operation log
+    public void save(BufferedImage image, LayerStack layers, Function<Layer, BitSet> changedTiles, int changedTileSize,
+                     ShapeStore shapes, List<CanvasOp> ops) throws IOException
+    {
+        ids = shapes.snapshot(); // written into the index
+        boolean compact = wastedBytes > MIN_WASTE && wastedBytes > fileEnd - wastedBytes;
+        if (fileEnd == 0 || compact)
+        {
+            writeAll(image, layers, shapes, ops);
+        }
+        else
+        {
+            List<long[]> oldOpBlocks = new ArrayList<>(opBlocks);
+            try {
+                append(image, layers, changedTiles, changedTileSize, shapes, ops);
+            } catch (IOException | RuntimeException e) {
+                // the tables may point to records that were not written, the next save writes the whole file
+                opBlocks = oldOpBlocks;
+                fileEnd = 0;
+                throw e;
+            }
+        }
+        for (int i = 0; i < tables.size(); i++)
+        {
+            tables.get(i).savedImage = i == 0 ? image : layers.get(i).getImage();
+        }
+        savedShapes = shapes.capacity();
+    }
+
+    // true if the image has changed since the last save even if no drawing operation changed it (open, clear, grow)
+    public boolean isImageReplaced(BufferedImage image)
+    {
+        return tables.isEmpty() || image != tables.get(0).savedImage;
+    }
+
+    // reads the canvas image, the tiles are decompressed in parallel
+    public BufferedImage readImage() throws IOException
+    {
+        BufferedImage image = MappedDataBuffer.shouldMap(width, height)
+                ? MappedDataBuffer.createImage(width, height, Color.WHITE.getRGB())
+                : ParallelRaster.createFilled(width, height, Color.WHITE);
+        readTiles(tables.get(0), image, Color.WHITE.getRGB());
+        tables.get(0).savedImage = image;
+        return image;
+    }
+
+    // reads the layers above the canvas image into a stack that has only the background,
+    // the properties of all layers and the active layer are set as they were saved
+    public void readLayers(LayerStack stack) throws IOException
+    {
+        for (int i = 0; i < tables.size(); i++)
+        {
+            TileTable table = tables.get(i);
+            Layer layer = stack.get(0);
+            if (i > 0)
+            {
+                BufferedImage image = LayerStack.createLayerImage(width, height);
+                try {
+                    readTiles(table, image, 0);
+                } catch (IOException | RuntimeException e) {
+                    MappedDataBuffer.disposeImage(image);
+                    throw e;
+                }
+                layer = new Layer(table.name, image);
+                stack.add(layer);
+                table.layer = layer;
+                table.savedImage = image;
+            }
+            layer.setVisible(table.visible);
+            layer.setOpacity(table.opacity);
+            layer.setBlendMode(table.blendMode);
+        }
+        stack.setActive(activeLayer);
+    }
+
+    // reads the shapes into an empty store, they get the same ids as when they were saved,
+    // returns the ids of the shapes that were on the canvas
+    public IdList readShapes(ShapeStore shapes) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            for (long[] block : shapeBlocks)
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        read(channel, block[0], (int) block[1]).array()));
+                for (int i = 0; i < block[3]; i++)
+                {
+                    if (shapes.read(in) != block[2] + i)
+                    {
+                        throw new IOException("The shapes of the document are damaged");
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // reads the whole operation log, oldest operation first
+    public List<CanvasOp> readOperations() throws IOException
+    {
+        List<CanvasOp> ops = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            for (long[] block : opBlocks)
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        read(channel, block[0], (int) block[1]).array()));
+                for (int i = 0; i < block[2]; i++)
+                {
+                    ops.add(CanvasOp.read(in));
+                }
+            }
+        }
+        return ops;
+    }
+
+    // writes the changed tiles, the new shapes, the new operations and a new index at the end of the file
+    private void append(BufferedImage image, LayerStack layers, Function<Layer, BitSet> changedTiles, int changedTileSize,
+                        ShapeStore shapes, List<CanvasOp> ops) throws IOException
+    {
+        boolean resized = image.getWidth() != width || image.getHeight() != height;
+        if (resized)
+        {
+            setSize(image.getWidth(), image.getHeight());
+        }
+        // the tables follow the layers: a moved layer keeps its table, a new or replaced image gets a new one
+        List<TileTable> next = new ArrayList<>();
+        List<BitSet> writes = new ArrayList<>();
+        for (int i = 0; i < layers.size(); i++)
+        {
+            Layer layer = i == 0 ? null : layers.get(i);
+            BufferedImage layerImage = i == 0 ? image : layer.getImage();
+            TileTable table = findTable(layer);
+            BitSet tiles;
+            if (table == null || resized || table.savedImage != layerImage)
+            {
+                table = new TileTable(layer, columns * rows);
+                tiles = new BitSet();
+                tiles.set(0, columns * rows);
+            }
+            else
+            {
+                tiles = documentTiles(changedTiles.apply(layer), changedTileSize);
+            }
+            next.add(table);
+            writes.add(tiles);
+        }
+        for (TileTable table : tables)
+        {
+            if (!next.contains(table)) // a removed layer or a replaced image, its tiles are old data now
+            {
+                for (int length : table.lengths)
+                {
+                    wastedBytes += length;
+                }
+            }
+        }
+        tables = next;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            // the old index stays valid until the new trailer is written,
+            // what a failed save left after it is removed, so the last trailer of the file is the valid one
+            channel.truncate(fileEnd);
+            long position = fileEnd;
+            wastedBytes += indexLength;
+            try {
+                for (int i = 0; i < tables.size(); i++)
+                {
+                    position = writeTiles(channel, position, i == 0 ? image : layers.get(i).getImage(),
+                            tables.get(i), writes.get(i));
+                }
+                position = writeShapes(channel, position, shapes, savedShapes);
+                position = writeOps(channel, position, ops);
+                position = writeIndex(channel, position, layers);
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    channel.truncate(fileEnd);
+                } catch (IOException truncateError) {
+                    e.addSuppressed(truncateError); // open() still finds the old trailer
+                }
+                throw e;
+            }
+            fileEnd = position;
+        }
+    }
+
+    // the table of the canvas image (layer null) or of a layer, null if the layer was not saved yet
+    private TileTable findTable(Layer layer)
+    {
+        if (layer == null)
+        {
+            return tables.isEmpty() ? null : tables.get(0);
+        }
+        for (int i = 1; i < tables.size(); i++)
+        {
+            if (tables.get(i).layer == layer)
+            {
+                return tables.get(i);
+            }
+        }
+        return null;
+    }
+
+    // the document tiles that contain the changed tiles of the undo history, which are smaller
+    private BitSet documentTiles(BitSet changedTiles, int changedTileSize)
+    {
+        BitSet tiles = new BitSet();
+        int changedColumns = (width + changedTileSize - 1) / changedTileSize;
+        for (int i = changedTiles.nextSetBit(0); i >= 0; i = changedTiles.nextSetBit(i + 1))
+        {
+            int left = i % changedColumns * changedTileSize;
+            int top = i / changedColumns * changedTileSize;
+            for (int row = top / TILE_SIZE; row <= Math.min(top + changedTileSize - 1, height - 1) / TILE_SIZE; row++)
+            {
+                for (int column = left / TILE_SIZE; column <= Math.min(left + changedTileSize - 1, width - 1) / TILE_SIZE; column++)
+                {
+                    tiles.set(row * columns + column);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    // writes the whole document into a new file, the operation log of the old file is copied
+    // the tables of the new file are built in another PaintDocument and only taken over when the file is in place,
+    // so after a failure the tables still describe the old file
+    private void writeAll(BufferedImage image, LayerStack layers, ShapeStore shapes, List<CanvasOp> ops) throws IOException
+    {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".part");
+        PaintDocument written = new PaintDocument(file);
+        written.ids = ids;
+        written.setSize(image.getWidth(), image.getHeight());
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                long position = write(channel, 0, header);
+                BitSet tiles = new BitSet();
+                tiles.set(0, written.columns * written.rows);
+                for (int i = 0; i < layers.size(); i++)
+                {
+                    TileTable table = new TileTable(i == 0 ? null : layers.get(i), written.columns * written.rows);
+                    written.tables.add(table);
+                    position = written.writeTiles(channel, position, i == 0 ? image : layers.get(i).getImage(), table, tiles);
+                }
+                position = written.writeShapes(channel, position, shapes, 0);
+                if (!opBlocks.isEmpty())
+                {
+                    try (FileChannel old = FileChannel.open(target, StandardOpenOption.READ))
+                    {
+                        for (long[] block : opBlocks)
+                        {
+                            ByteBuffer data = read(old, block[0], (int) block[1]);
+                            written.opBlocks.add(new long[] {position, block[1], block[2]});
+                            position = write(channel, position, data);
+                        }
+                    }
+                }
+                position = written.writeOps(channel, position, ops);
+                position = written.writeIndex(channel, position, layers);
+                channel.force(false);
+                written.fileEnd = position;
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteError) {
+                e.addSuppressed(deleteError);
+            }
+            fileEnd = 0; // the next save writes the whole file again
+            throw e;
+        }
+        width = written.width;
+        height = written.height;
+        columns = written.columns;
+        rows = written.rows;
+        tables = written.tables;
+        shapeBlocks = written.shapeBlocks;
+        opBlocks = written.opBlocks;
+        wastedBytes = written.wastedBytes;
+        fileEnd = written.fileEnd;
+        indexLength = written.indexLength;
+    }
+
+    // the size of the images, the tile tables are made for it
+    private void setSize(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    // compresses the tiles in parallel and writes them in order,
+    // transparent tiles of a layer are not written, a layer without a record is read as transparent
+    private long writeTiles(FileChannel channel, long position, BufferedImage image, TileTable table, BitSet tiles)
+            throws IOException
+    {
+        boolean layer = table.layer != null;
+        Deque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+        int inFlight = Runtime.getRuntime().availableProcessors() * 2;
+        int next = tiles.nextSetBit(0);
+        for (int tile = next; tile >= 0; tile = tiles.nextSetBit(tile + 1))
+        {
+            for (; next >= 0 && pending.size() < inFlight; next = tiles.nextSetBit(next + 1))
+            {
+                int index = next;
+                pending.add(CompletableFuture.supplyAsync(() -> compressTile(image, index, layer)));
+            }
+            ByteBuffer record = join(pending.remove());
+            wastedBytes += table.lengths[tile]; // the older version of the tile is not used anymore
+            if (record == null)
+            {
+                table.offsets[tile] = 0;
+                table.lengths[tile] = 0;
+                continue;
+            }
+            table.offsets[tile] = position;
+            table.lengths[tile] = record.remaining();
+            position = write(channel, position, record);
+        }
+        return position;
+    }
+
+    // the record of one tile, null if skipTransparent is set and all pixels of the tile are transparent
+    private ByteBuffer compressTile(BufferedImage image, int tile, boolean skipTransparent)
+    {
+        int x = tile % columns * TILE_SIZE;
+        int y = tile / columns * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, width - x);
+        int h = Math.min(TILE_SIZE, height - y);
+        int[] pixels = image.getRGB(x, y, w, h, null, 0, w);
+        if (skipTransparent && isTransparent(pixels))
+        {
+            return null;
+        }
+        ByteBuffer raw = ByteBuffer.allocate(pixels.length * 4);
+        raw.asIntBuffer().put(pixels);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED); // saving often matters more than the last few bytes
+        try {
+            deflater.setInput(raw.array());
+            deflater.finish();
+            ByteBuffer record = ByteBuffer.allocate(12 + raw.capacity() + raw.capacity() / 1000 + 64);
+            record.position(12);
+            while (!deflater.finished())
+            {
+                if (!record.hasRemaining())
+                {
+                    ByteBuffer larger = ByteBuffer.allocate(record.capacity() * 2);
+                    record.flip();
+                    larger.put(record);
+                    record = larger;
+                }
+                int count = deflater.deflate(record.array(), record.position(), record.remaining());
+                record.position(record.position() + count);
+            }
+            int length = record.position() - 12;
+            record.putInt(0, tile % columns).putInt(4, tile / columns).putInt(8, length);
+            record.flip();
+            return record;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean isTransparent(int[] pixels)
+    {
+        for (int pixel : pixels)
+        {
+            if (pixel != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // reads the tiles of a table into the image, the tiles are decompressed in parallel,
+    // tiles that were never saved get the fill color
+    private void readTiles(TileTable table, BufferedImage image, int fill) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            Deque<CompletableFuture<int[]>> pending = new ArrayDeque<>();
+            int inFlight = Runtime.getRuntime().availableProcessors() * 2;
+            int next = 0;
+            for (int tile = 0; tile < table.offsets.length; tile++)
+            {
+                // keep a few tiles decompressing while the oldest one is copied into the image
+                for (; next < table.offsets.length && pending.size() < inFlight; next++)
+                {
+                    int index = next;
+                    pending.add(CompletableFuture.supplyAsync(() -> readTile(channel, table, index, fill)));
+                }
+                int[] pixels = join(pending.remove());
+                int x = tile % columns * TILE_SIZE;
+                int y = tile / columns * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                image.setRGB(x, y, w, Math.min(TILE_SIZE, height - y), pixels, 0, w);
+            }
+        }
+    }
+
+    private int[] readTile(FileChannel channel, TileTable table, int tile, int fill)
+    {
+        int x = tile % columns * TILE_SIZE;
+        int y = tile / columns * TILE_SIZE;
+        int[] pixels = new int[Math.min(TILE_SIZE, width - x) * Math.min(TILE_SIZE, height - y)];
+        if (table.lengths[tile] == 0)
+        {
+            Arrays.fill(pixels, fill); // the tile was never saved
+            return pixels;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            ByteBuffer record = read(channel, table.offsets[tile], table.lengths[tile]);
+            if (record.getInt() != tile % columns || record.getInt() != tile / columns)
+            {
+                throw new IOException("The tiles of the document are damaged");
+            }
+            int length = record.getInt();
+            inflater.setInput(record.array(), 12, length);
+            byte[] raw = new byte[pixels.length * 4];
+            int done = 0;
+            while (done < raw.length && !inflater.finished())
+            {
+                int count = inflater.inflate(raw, done, raw.length - done);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                done += count;
+            }
+            if (done != raw.length)
+            {
+                throw new IOException("The tiles of the document are damaged");
+            }
+            ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+            return pixels;
+        } catch (IOException | DataFormatException e) {
+            throw new RuntimeException(e); // unwrapped by join()
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // writes the shapes with ids from the given one on as one block
+    private long writeShapes(FileChannel channel, long position, ShapeStore shapes, int from) throws IOException
+    {
+        int count = shapes.capacity() - from;
+        if (count == 0)
+        {
+            return position;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 28);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int id = from; id < shapes.capacity(); id++)
+        {
+            shapes.write(id, out);
+        }
+        shapeBlocks.add(new long[] {position, bytes.size(), from, count});
+        return write(channel, position, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private long writeOps(FileChannel channel, long position, List<CanvasOp> ops) throws IOException
+    {
+        if (ops.isEmpty())
+        {
+            return position;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (CanvasOp op : ops)
+        {
+            op.write(out);
+        }
+        opBlocks.add(new long[] {position, bytes.size(), ops.size()});
+        return write(channel, position, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    // writes the index with the properties of the layers and the trailer that points to it
+    private long writeIndex(FileChannel channel, long position, LayerStack layers) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(tables.size() * columns * rows * 12 + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(TILE_SIZE);
+        out.writeInt(tables.size());
+        out.writeInt(layers.getActiveIndex());
+        for (int i = 0; i < tables.size(); i++)
+        {
+            TileTable table = tables.get(i);
+            Layer layer = layers.get(i);
+            out.writeUTF(layer.getName());
+            out.writeBoolean(layer.isVisible());
+            out.writeByte(layer.getOpacity());
+            out.writeByte(layer.getBlendMode());
+            for (int tile = 0; tile < table.offsets.length; tile++)
+            {
+                out.writeLong(table.offsets[tile]);
+                out.writeInt(table.lengths[tile]);
+            }
+        }
+        out.writeInt(shapeBlocks.size());
+        for (long[] block : shapeBlocks)
+        {
+            out.writeLong(block[0]);
+            out.writeInt((int) block[1]);
+            out.writeInt((int) block[2]);
+            out.writeInt((int) block[3]);
+        }
+        out.writeInt(opBlocks.size());
+        for (long[] block : opBlocks)
+        {
+            out.writeLong(block[0]);
+            out.writeInt((int) block[1]);
+            out.writeInt((int) block[2]);
+        }
+        out.writeInt(ids.size());
+        int[] last = {0};
+        ids.forEach(id -> {
+            try {
+                CanvasOp.writeVarInt(out, id - last[0]); // the ids are sorted, the differences are small
+            } catch (IOException e) {
+                throw new RuntimeException(e); // cannot happen, the stream writes into memory
+            }
+            last[0] = id;
+        });
+        out.writeLong(wastedBytes);
+        out.writeLong(position); // trailer: where the index starts
+        out.writeInt(TRAILER_MAGIC);
+        indexLength = bytes.size();
+        return write(channel, position, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private void readIndex(DataInputStream in, int version) throws IOException
+    {
+        int width = in.readInt();
+        int height = in.readInt();
+        if (in.readInt() != TILE_SIZE || width <= 0 || height <= 0)
+        {
+            throw new IOException("Unsupported document tiles: " + file.getName());
+        }
+        setSize(width, height);
+        int count = 1;
+        if (version >= 2)
+        {
+            count = in.readInt();
+            activeLayer = in.readInt();
+            if (count < 1 || activeLayer < 0 || activeLayer >= count)
+            {
+                throw new IOException("The layers of the document are damaged: " + file.getName());
+            }
+        }
+        for (int i = 0; i < count; i++)
+        {
+            TileTable table = new TileTable(null, 0);
+            if (version >= 2)
+            {
+                table.name = in.readUTF();
+                table.visible = in.readBoolean();
+                table.opacity = in.readUnsignedByte();
+                table.blendMode = in.readUnsignedByte();
+                if (table.opacity > 100 || table.blendMode > Layer.LIGHTEN)
+                {
+                    throw new IOException("The layers of the document are damaged: " + file.getName());
+                }
+            }
+            if ((long) columns * rows * 12 > in.available())
+            {
+                throw new IOException("The index of the document is damaged: " + file.getName());
+            }
+            table.offsets = new long[columns * rows];
+            table.lengths = new int[columns * rows];
+            for (int tile = 0; tile < table.offsets.length; tile++)
+            {
+                table.offsets[tile] = in.readLong();
+                table.lengths[tile] = in.readInt();
+            }
+            tables.add(table);
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            shapeBlocks.add(new long[] {in.readLong(), in.readInt(), in.readInt(), in.readInt()});
+            savedShapes += (int) shapeBlocks.get(i)[3];
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            opBlocks.add(new long[] {in.readLong(), in.readInt(), in.readInt()});
+        }
+        count = in.readInt();
+        IdList ids = new IdList();
+        int id = 0;
+        for (int i = 0; i < count; i++)
+        {
+            id += CanvasOp.readVarInt(in);
+            if (id >= savedShapes)
+            {
+                throw new IOException("The shapes of the document are damaged");
+            }
+            ids.add(id);
+        }
+        this.ids = ids.snapshot();
+        wastedBytes = in.readLong();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of the document");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // writes the whole buffer at the position and returns the position after it
+    private static long write(FileChannel channel, long position, ByteBuffer buffer) throws IOException
+    {
+        long end = position + buffer.remaining();
+        while (buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+        return end;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException && e.getCause().getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause().getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
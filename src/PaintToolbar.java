@@ -13,6 +13,8 @@ public class PaintToolbar extends JToolBar
     private JButton clearBtn;
     private Color[] colors = {Color.BLACK, Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.ORANGE};
     private PaintCanvas canvas; // PaintCanvas is managed by the toolbar
+    // the icons in icons/, they can be loaded before the toolbar is created (see IconLoader)
+    public static final String[] ICON_NAMES = {"brush", "eraser", "line", "rectangle", "circle", "triangle"};
 
     public PaintToolbar(PaintCanvas canvas) // constructor takes PaintCanvas as an argument,
     // to be able to update the tools according to user actions on the canvas
@@ -40,8 +42,9 @@ public class PaintToolbar extends JToolBar
 
         add(brushSizeField);
 
-        ImageIcon brushIcon = new ImageIcon(ImageUtils.loadImage("icons/brush.png"));
-        JButton brushBtn = new JButton(brushIcon);
+        // the icons are decoded in the background, the buttons show them when they are ready
+        JButton brushBtn = new JButton();
+        IconLoader.setIcon(brushBtn, "brush", "Brush");
         brushBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -54,8 +57,8 @@ public class PaintToolbar extends JToolBar
         });
         add(brushBtn);
 
-        ImageIcon eraserIcon = new ImageIcon(ImageUtils.loadImage("icons/eraser.png"));
-        eraserBtn = new JButton(eraserIcon);
+        eraserBtn = new JButton();
+        IconLoader.setIcon(eraserBtn, "eraser", "Eraser");
         eraserBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -119,7 +122,8 @@ public class PaintToolbar extends JToolBar
         });
         add(clearBtn);
 
-        JButton lineBtn = new JButton(new ImageIcon(ImageUtils.loadImage("icons/line.png")));
+        JButton lineBtn = new JButton();
+        IconLoader.setIcon(lineBtn, "line", "Line");
         lineBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -130,7 +134,8 @@ public class PaintToolbar extends JToolBar
         });
         add(lineBtn);
 
-        JButton rectangleBtn = new JButton(new ImageIcon(ImageUtils.loadImage("icons/rectangle.png")));
+        JButton rectangleBtn = new JButton();
+        IconLoader.setIcon(rectangleBtn, "rectangle", "Rectangle");
         rectangleBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -141,7 +146,8 @@ public class PaintToolbar extends JToolBar
         });
         add(rectangleBtn);
 
-        JButton circleBtn = new JButton(new ImageIcon(ImageUtils.loadImage("icons/circle.png")));
+        JButton circleBtn = new JButton();
+        IconLoader.setIcon(circleBtn, "circle", "Circle");
         circleBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -152,7 +158,8 @@ public class PaintToolbar extends JToolBar
         });
         add(circleBtn);
 
-        JButton triangleBtn = new JButton(new ImageIcon(ImageUtils.loadImage("icons/triangle.png")));
+        JButton triangleBtn = new JButton();
+        IconLoader.setIcon(triangleBtn, "triangle", "Triangle");
         triangleBtn.addActionListener(new ActionListener()
         {
             @Override
@@ -162,6 +169,25 @@ public class PaintToolbar extends JToolBar
             }
         });
         add(triangleBtn);
+
+        JButton fillBtn = new JButton("Fill");
+        fillBtn.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                canvas.setActiveTool(6); // 6 is the fill id
+                eraserBtn.setBorderPainted(false);
+            }
+        });
+        add(fillBtn);
+
+        // how much a color can differ from the clicked color and still be filled
+        JSpinner toleranceSpinner = new JSpinner(new SpinnerNumberModel(PaintCanvas.DEFAULT_FILL_TOLERANCE, 0, 255, 1));
+        toleranceSpinner.setToolTipText("Fill tolerance");
+        toleranceSpinner.setMaximumSize(toleranceSpinner.getPreferredSize());
+        toleranceSpinner.addChangeListener(e -> canvas.setFillTolerance((Integer) toleranceSpinner.getValue()));
+        add(toleranceSpinner);
     }
 
     private void updateBrushSize()
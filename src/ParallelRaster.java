@@ -0,0 +1,312 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// this class contains the bulk operations on the canvas image (fill, copy, grow)
+// on TYPE_INT_ARGB images they work directly on the pixel array and are split
+// into bands of rows that are processed in parallel with fork/join,
+// other image types fall back to Graphics2D
+// canvas images created here can have more pixels in the array than they show (capacity),
+// so growing the canvas can reuse the existing array instead of copying the whole image
+public class ParallelRaster
+{
+    private static final int BAND_PIXELS = 1 << 16; // a band with fewer pixels is not split further
+    private static final int[] ARGB_MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000};
+
+    // work done for the rows from (inclusive) to (exclusive) of one band
+    interface RowRange
+    {
+        void process(int from, int to);
+    }
+
+    // splits the rows in halves until the bands are small enough, then processes them
+    private static class Bands extends RecursiveAction
+    {
+        private int from, to, rowLength;
+        private RowRange work;
+
+        Bands(int from, int to, int rowLength, RowRange work)
+        {
+            this.from = from;
+            this.to = to;
+            this.rowLength = rowLength;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ((long) (to - from) * rowLength <= BAND_PIXELS || to - from < 2)
+            {
+                work.process(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Bands(from, middle, rowLength, work), new Bands(middle, to, rowLength, work));
+        }
+    }
+
+    // creates a canvas image filled with the color
+    public static BufferedImage createFilled(int width, int height, Color color)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        fill(image, 0, 0, width, height, color.getRGB());
+        return image;
+    }
+
+    // fills a rectangle of the image with one ARGB value
+    public static void fill(BufferedImage image, int x, int y, int width, int height, int argb)
+    {
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + width, image.getWidth());
+        int bottom = Math.min(y + height, image.getHeight());
+        if (left >= right || top >= bottom)
+        {
+            return;
+        }
+        if (!isDirect(image))
+        {
+            Graphics2D g2d = image.createGraphics();
+            g2d.setComposite(AlphaComposite.Src); // replace the pixels, like the array version
+            g2d.setColor(new Color(argb, true));
+            g2d.fillRect(left, top, right - left, bottom - top);
+            g2d.dispose();
+            return;
+        }
+        int[] pixels = pixels(image);
+        int stride = stride(image);
+        int offset = offset(image);
+        run(top, bottom, right - left, (from, to) -> {
+            for (int row = from; row < to; row++)
+            {
+                int start = offset + row * stride;
+                Arrays.fill(pixels, start + left, start + right, argb);
+            }
+        });
+    }
+
+    // fills horizontal spans of the image with one ARGB value, spans holds y, left, right (exclusive) for every span
+    // (see FloodFill), the spans are split into groups that are filled in parallel
+    public static void fillSpans(BufferedImage image, IntList spans, int argb, int averageLength)
+    {
+        int count = spans.size() / 3;
+        if (!isDirect(image))
+        {
+            Graphics2D g2d = image.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.setColor(new Color(argb, true));
+            for (int i = 0; i < count; i++)
+            {
+                g2d.fillRect(spans.get(3 * i + 1), spans.get(3 * i), spans.get(3 * i + 2) - spans.get(3 * i + 1), 1);
+            }
+            g2d.dispose();
+            return;
+        }
+        int[] pixels = pixels(image);
+        int stride = stride(image);
+        int offset = offset(image);
+        run(0, count, averageLength, (from, to) -> {
+            for (int i = from; i < to; i++)
+            {
+                int start = offset + spans.get(3 * i) * stride;
+                Arrays.fill(pixels, start + spans.get(3 * i + 1), start + spans.get(3 * i + 2), argb);
+            }
+        });
+    }
+
+    // copies a rectangle from one image to the same position in another image
+    public static void copy(BufferedImage source, BufferedImage target, int x, int y, int width, int height)
+    {
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + width, Math.min(source.getWidth(), target.getWidth()));
+        int bottom = Math.min(y + height, Math.min(source.getHeight(), target.getHeight()));
+        if (left >= right || top >= bottom)
+        {
+            return;
+        }
+        if (!isDirect(source) || !isDirect(target))
+        {
+            Graphics2D g2d = target.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.drawImage(source, left, top, right, bottom, left, top, right, bottom, null);
+            g2d.dispose();
+            return;
+        }
+        int[] from = pixels(source);
+        int[] to = pixels(target);
+        int sourceStride = stride(source), targetStride = stride(target);
+        int sourceOffset = offset(source), targetOffset = offset(target);
+        run(top, bottom, right - left, (first, last) -> {
+            for (int row = first; row < last; row++)
+            {
+                System.arraycopy(from, sourceOffset + row * sourceStride + left,
+                        to, targetOffset + row * targetStride + left, right - left);
+            }
+        });
+    }
+
+    // makes the canvas image at least width x height, new areas are filled with the color
+    // if the pixel array of the image is big enough it is reused and nothing is copied,
+    // otherwise a bigger array is created with some room for the next resize
+    public static BufferedImage grow(BufferedImage image, int width, int height, Color color)
+    {
+        int newWidth = Math.max(width, image.getWidth());
+        int newHeight = Math.max(height, image.getHeight());
+        if (newWidth == image.getWidth() && newHeight == image.getHeight())
+        {
+            return image;
+        }
+        BufferedImage grown;
+        if (isDirect(image) && offset(image) == 0 && newWidth <= stride(image)
+                && (long) newHeight * stride(image) <= pixels(image).length)
+        {
+            grown = view((DataBufferInt) image.getRaster().getDataBuffer(), newWidth, newHeight, stride(image));
+        }
+        else if (MappedDataBuffer.shouldMap(newWidth, newHeight))
+        {
+            // very large canvases stay in a scratch file, its empty areas already have the color
+            grown = MappedDataBuffer.createImage(newWidth, newHeight, color.getRGB());
+            copy(image, grown, 0, 0, image.getWidth(), image.getHeight());
+            return grown;
+        }
+        else
+        {
+            // 25% more than needed, so growing the window step by step does not copy every time
+            int capacityWidth = newWidth + newWidth / 4;
+            int capacityHeight = newHeight + newHeight / 4;
+            DataBufferInt buffer = new DataBufferInt(capacityWidth * capacityHeight);
+            grown = view(buffer, newWidth, newHeight, capacityWidth);
+            copy(image, grown, 0, 0, image.getWidth(), image.getHeight());
+        }
+        // fill the areas on the right and below the old image
+        int argb = color.getRGB();
+        fill(grown, image.getWidth(), 0, newWidth - image.getWidth(), image.getHeight(), argb);
+        fill(grown, 0, image.getHeight(), newWidth, newHeight - image.getHeight(), argb);
+        return grown;
+    }
+
+    // returns the image as TYPE_INT_ARGB, the format all drawing is done in,
+    // a TYPE_INT_RGB image (a decoded JPG) keeps its pixel array, only the alpha bits are set in parallel,
+    // other images are copied, images in a scratch file are returned as they are
+    public static BufferedImage toArgb(BufferedImage image)
+    {
+        if (isDirect(image) || MappedDataBuffer.isMapped(image))
+        {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() != BufferedImage.TYPE_INT_RGB || image.getRaster().getParent() != null)
+        {
+            BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            copy(image, copy, 0, 0, width, height);
+            return copy;
+        }
+        DataBufferInt buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+        int[] pixels = buffer.getData();
+        int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+        run(0, height, width, (from, to) -> {
+            for (int row = from; row < to; row++)
+            {
+                for (int i = row * stride, end = i + width; i < end; i++)
+                {
+                    pixels[i] |= 0xff000000;
+                }
+            }
+        });
+        return view(buffer, width, height, stride);
+    }
+
+    // reads length ARGB pixels of one row into the array, from the pixel array if the image is direct
+    public static void getRow(BufferedImage image, int x, int y, int length, int[] row)
+    {
+        if (isDirect(image)) // much faster than getRGB
+        {
+            System.arraycopy(pixels(image), offset(image) + y * stride(image) + x, row, 0, length);
+        }
+        else if (MappedDataBuffer.isMapped(image)) // a tile row at a time
+        {
+            MappedDataBuffer.getRow(image, x, y, length, row, 0);
+        }
+        else
+        {
+            image.getRGB(x, y, length, 1, row, 0, length);
+        }
+    }
+
+    // writes length ARGB pixels of one row from the array
+    public static void setRow(BufferedImage image, int x, int y, int length, int[] row)
+    {
+        if (isDirect(image))
+        {
+            System.arraycopy(row, 0, pixels(image), offset(image) + y * stride(image) + x, length);
+        }
+        else if (MappedDataBuffer.isMapped(image))
+        {
+            MappedDataBuffer.setRow(image, x, y, length, row, 0);
+        }
+        else
+        {
+            image.setRGB(x, y, length, 1, row, 0, length);
+        }
+    }
+
+    // true if the image is TYPE_INT_ARGB and its pixel array can be used directly
+    public static boolean isDirect(BufferedImage image)
+    {
+        return image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    // pixel array of a direct image
+    public static int[] pixels(BufferedImage image)
+    {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // length of one row in the pixel array of a direct image
+    public static int stride(BufferedImage image)
+    {
+        return ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+    }
+
+    // index of pixel (0, 0) in the pixel array of a direct image, sub images start inside the array of their parent
+    public static int offset(BufferedImage image)
+    {
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride(image)
+                - raster.getSampleModelTranslateX();
+    }
+
+    // creates an image showing the first rows and columns of a bigger pixel array
+    private static BufferedImage view(DataBufferInt buffer, int width, int height, int stride)
+    {
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, stride, ARGB_MASKS, null);
+        // the default RGB color model is the one of TYPE_INT_ARGB, so the new image gets that type too
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    // processes the rows in parallel bands, also used by ImageFilter for its own units of work
+    static void run(int from, int to, int rowLength, RowRange work)
+    {
+        if ((long) (to - from) * rowLength <= BAND_PIXELS)
+        {
+            work.process(from, to); // small areas are not worth starting parallel tasks
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new Bands(from, to, rowLength, work));
+    }
+}
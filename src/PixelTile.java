@@ -0,0 +1,108 @@
+import java.awt.image.BufferedImage;
+
+// this class stores a copy of one rectangular tile of the canvas image,
+// it is used by the undo history to remember only the parts of the canvas that were changed
+public class PixelTile
+{
+    private int x, y; // position of the tile on the canvas
+    private int width, height; // size of the tile, smaller than the tile size at the image edges
+    private int[] pixels; // ARGB pixels of the tile, row by row
+
+    public PixelTile(int x, int y, int width, int height, int[] pixels)
+    {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    // this method copies a tile out of the image
+    public static PixelTile capture(BufferedImage image, int x, int y, int width, int height)
+    {
+        int[] pixels;
+        if (ParallelRaster.isDirect(image)) // copy the rows out of the pixel array, much faster than getRGB
+        {
+            pixels = new int[width * height];
+            int[] source = ParallelRaster.pixels(image);
+            int stride = ParallelRaster.stride(image);
+            int start = ParallelRaster.offset(image) + y * stride + x;
+            for (int row = 0; row < height; row++)
+            {
+                System.arraycopy(source, start + row * stride, pixels, row * width, width);
+            }
+        }
+        else if (MappedDataBuffer.isMapped(image))
+        {
+            pixels = new int[width * height];
+            for (int row = 0; row < height; row++)
+            {
+                MappedDataBuffer.getRow(image, x, y + row, width, pixels, row * width);
+            }
+        }
+        else
+        {
+            pixels = image.getRGB(x, y, width, height, null, 0, width);
+        }
+        return new PixelTile(x, y, width, height, pixels);
+    }
+
+    // this method writes the saved pixels back into the image
+    public void restore(BufferedImage image)
+    {
+        // the image can only grow, but we clip anyway so a tile never writes outside the image
+        int w = Math.min(width, image.getWidth() - x);
+        int h = Math.min(height, image.getHeight() - y);
+        if (w <= 0 || h <= 0)
+        {
+            return;
+        }
+        if (ParallelRaster.isDirect(image))
+        {
+            int[] target = ParallelRaster.pixels(image);
+            int stride = ParallelRaster.stride(image);
+            int start = ParallelRaster.offset(image) + y * stride + x;
+            for (int row = 0; row < h; row++)
+            {
+                System.arraycopy(pixels, row * width, target, start + row * stride, w);
+            }
+        }
+        else if (MappedDataBuffer.isMapped(image))
+        {
+            for (int row = 0; row < h; row++)
+            {
+                MappedDataBuffer.setRow(image, x, y + row, w, pixels, row * width);
+            }
+        }
+        else
+        {
+            image.setRGB(x, y, w, h, pixels, 0, width);
+        }
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    // memory used by the pixel data of the tile
+    public long getSizeInBytes()
+    {
+        return (long) pixels.length * 4;
+    }
+}
@@ -0,0 +1,280 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// this class saves an image as a PNG file without ImageIO
+// the image is split into bands of rows, every band is filtered and compressed
+// on its own thread into a deflate block, and the blocks are streamed to the file in order
+// through a FileChannel, so only a few bands are in memory at the same time
+// the file is written to a temporary file first, so a cancelled save does not leave a broken file
+public class PngWriter
+{
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int BAND_ROWS = 64; // rows compressed together in one task
+    private static final int WINDOW = 32 * 1024; // deflate window, the end of the previous band is used as dictionary
+    private static final int MAX_IDAT = 1 << 20; // maximum size of one IDAT chunk
+
+    // receives the number of rows that are already written
+    public interface ProgressListener
+    {
+        void rowsWritten(int rows, int totalRows);
+    }
+
+    private int compressionLevel; // 0 = no compression (fastest), 9 = best compression (slowest)
+    private int bandsInFlight = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    public PngWriter(int compressionLevel)
+    {
+        if (compressionLevel < 0 || compressionLevel > 9)
+        {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    // writes the image to the file, the thread can be interrupted to cancel the save
+    public void write(BufferedImage image, Path file, ProgressListener listener) throws IOException
+    {
+        Path temp = file.resolveSibling(file.getFileName() + ".part");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            writeImage(image, channel, listener);
+            channel.force(false);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void writeImage(BufferedImage image, FileChannel channel, ProgressListener listener) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        channel.write(ByteBuffer.wrap(SIGNATURE));
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height);
+        header.put((byte) 8); // 8 bits per channel
+        header.put((byte) 6); // RGBA
+        header.put((byte) 0).put((byte) 0).put((byte) 0); // deflate, adaptive filtering, no interlace
+        writeChunk(channel, "IHDR", header.array(), 0, 13);
+
+        // the compressed data is a zlib stream: header, deflate blocks of all bands, Adler-32 of the raw data
+        IdatStream idat = new IdatStream(channel);
+        idat.write(new byte[] {0x78, zlibFlags()}, 2);
+        Adler32 adler = new Adler32();
+        Deque<CompletableFuture<byte[][]>> pending = new ArrayDeque<>();
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        int nextBand = 0;
+        int rowsDone = 0;
+        while (rowsDone < height)
+        {
+            // keep a few bands compressing in the background while the oldest one is written
+            while (nextBand < bands && pending.size() < bandsInFlight)
+            {
+                int from = nextBand * BAND_ROWS;
+                int to = Math.min(from + BAND_ROWS, height);
+                boolean last = nextBand == bands - 1;
+                pending.add(CompletableFuture.supplyAsync(() -> compressBand(image, from, to, last)));
+                nextBand++;
+            }
+            byte[][] band;
+            try {
+                band = pending.remove().get();
+            } catch (InterruptedException e) {
+                pending.forEach(future -> future.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("PNG save was cancelled");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not compress the image", e.getCause());
+            }
+            adler.update(band[0]); // raw filtered rows
+            idat.write(band[1], band[1].length); // compressed rows
+            rowsDone = Math.min(rowsDone + BAND_ROWS, height);
+            if (listener != null)
+            {
+                listener.rowsWritten(rowsDone, height);
+            }
+        }
+        int checksum = (int) adler.getValue();
+        idat.write(new byte[] {(byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum}, 4);
+        idat.flush();
+        writeChunk(channel, "IEND", new byte[0], 0, 0);
+    }
+
+    // filters the rows of one band and compresses them, returns the raw and the compressed bytes
+    private byte[][] compressBand(BufferedImage image, int from, int to, boolean last)
+    {
+        byte[] raw = filterRows(image, from, to);
+        Deflater deflater = new Deflater(compressionLevel, true); // raw deflate, the zlib header is written once
+        try {
+            if (from > 0)
+            {
+                // the end of the previous band is the dictionary, so matches can reach across bands
+                int rowLength = 1 + image.getWidth() * 4;
+                int rows = Math.min(from, (WINDOW + rowLength - 1) / rowLength);
+                byte[] previous = filterRows(image, from - rows, from);
+                int length = Math.min(previous.length, WINDOW);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(raw);
+            byte[] buffer = new byte[Math.max(raw.length / 2, 1024)];
+            int size = 0;
+            if (last)
+            {
+                deflater.finish();
+            }
+            while (true)
+            {
+                if (size == buffer.length)
+                {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                // SYNC_FLUSH ends the block on a byte boundary, so the blocks of all bands can be joined
+                int space = buffer.length - size;
+                int count = deflater.deflate(buffer, size, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += count;
+                // a flush is complete when it did not fill the whole buffer
+                if (last ? deflater.finished() : count < space)
+                {
+                    break;
+                }
+            }
+            return new byte[][] {raw, Arrays.copyOf(buffer, size)};
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // converts rows of the image to PNG bytes, every row starts with its filter type
+    // the Sub filter is used, it stores the difference to the pixel on the left
+    private static byte[] filterRows(BufferedImage image, int from, int to)
+    {
+        int width = image.getWidth();
+        int rowLength = 1 + width * 4;
+        byte[] out = new byte[(to - from) * rowLength];
+        int[] row = new int[width];
+        boolean direct = ParallelRaster.isDirect(image);
+        int[] pixels = direct ? ParallelRaster.pixels(image) : null;
+        int stride = direct ? ParallelRaster.stride(image) : 0;
+        int offset = direct ? ParallelRaster.offset(image) : 0;
+        for (int y = from; y < to; y++)
+        {
+            if (direct)
+            {
+                System.arraycopy(pixels, offset + y * stride, row, 0, width);
+            }
+            else
+            {
+                ParallelRaster.getRow(image, 0, y, width, row); // a scratch file image is read a tile row at a time
+            }
+            int index = (y - from) * rowLength;
+            out[index++] = 1; // Sub filter
+            int previous = 0;
+            for (int x = 0; x < width; x++)
+            {
+                int argb = row[x];
+                out[index++] = (byte) ((argb >>> 16) - (previous >>> 16)); // red
+                out[index++] = (byte) ((argb >>> 8) - (previous >>> 8)); // green
+                out[index++] = (byte) (argb - previous); // blue
+                out[index++] = (byte) ((argb >>> 24) - (previous >>> 24)); // alpha
+                previous = argb;
+            }
+        }
+        return out;
+    }
+
+    // second byte of the zlib header, it tells the decoder how strong the compression was
+    private byte zlibFlags()
+    {
+        if (compressionLevel <= 1)
+        {
+            return 0x01;
+        }
+        if (compressionLevel <= 5)
+        {
+            return 0x5e;
+        }
+        return compressionLevel == 6 ? (byte) 0x9c : (byte) 0xda;
+    }
+
+    private static void writeChunk(FileChannel channel, String type, byte[] data, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + length);
+        buffer.putInt(length);
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        buffer.put(typeBytes);
+        buffer.put(data, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    // collects compressed bytes and writes them as IDAT chunks of limited size
+    private static class IdatStream
+    {
+        private FileChannel channel;
+        private byte[] chunk = new byte[MAX_IDAT];
+        private int size;
+
+        IdatStream(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void write(byte[] data, int length) throws IOException
+        {
+            int position = 0;
+            while (position < length)
+            {
+                int count = Math.min(length - position, chunk.length - size);
+                System.arraycopy(data, position, chunk, size, count);
+                size += count;
+                position += count;
+                if (size == chunk.length)
+                {
+                    flush();
+                }
+            }
+        }
+
+        void flush() throws IOException
+        {
+            if (size > 0)
+            {
+                writeChunk(channel, "IDAT", chunk, 0, size);
+                size = 0;
+            }
+        }
+    }
+}
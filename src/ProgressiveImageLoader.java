@@ -0,0 +1,311 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+// this class opens an image file in steps on a background thread, so the canvas can be used before
+// the whole file is decoded: first a small preview is decoded with subsampling and shown scaled up,
+// then the part of the image inside the viewport is decoded at full resolution, then the rest of the image
+// the pixels are decoded straight into the canvas image, row by row, and every decoded row can be drawn on
+public class ProgressiveImageLoader
+{
+    private static final int PREVIEW_SIZE = 1024; // longest side of the preview
+
+    // receives the progress of the loader, the methods are called on the loader thread
+    public interface Listener
+    {
+        // the area shows new pixels, the whole image is reported once when the preview is ready
+        void areaDecoded(int x, int y, int width, int height);
+
+        // called when the loader stops, error is null if the whole image was decoded
+        void loadFinished(IOException error);
+    }
+
+    private ImageInputStream input;
+    private ImageReader reader;
+    private int width, height;
+    private boolean direct; // true if the reader can decode into the image without converting the pixels
+    private BufferedImage image; // the canvas image that is filled
+    private volatile BufferedImage preview; // low resolution version of the image, null until it is decoded
+    private Rectangle[] regions = new Rectangle[0]; // parts of the image in the order they are decoded
+    private int[] rowsDecoded = new int[0]; // number of finished rows of every region
+    private int currentRegion; // region decoded by the reader at the moment
+    private Listener listener;
+    private volatile boolean cancelled;
+    private boolean started; // set and read on the thread that starts and cancels the loader
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    // opens the file and reads the size of the image, the pixels are decoded after start() is called
+    public ProgressiveImageLoader(File file) throws IOException
+    {
+        input = ImageIO.createImageInputStream(file);
+        Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext())
+        {
+            if (input != null)
+            {
+                input.close();
+            }
+            throw new IOException("Unsupported image file: " + file.getName());
+        }
+        reader = readers.next();
+        try {
+            reader.setInput(input);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            image = createImage(reader.getImageTypes(0).next().getNumBands());
+        } catch (IOException | RuntimeException e) {
+            reader.dispose();
+            input.close();
+            throw e;
+        }
+        reader.addIIOReadUpdateListener(new RowListener());
+    }
+
+    // starts decoding, the part of the image inside the viewport is decoded first
+    public void start(Rectangle viewport, Listener listener)
+    {
+        regions = createRegions(viewport.intersection(new Rectangle(0, 0, width, height)));
+        rowsDecoded = new int[regions.length];
+        this.listener = listener;
+        started = true;
+        Thread thread = new Thread(this::run, "Image loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // stops decoding, the rows that are not decoded yet stay empty
+    // the reader is locked to the loader thread while it decodes, so only the flag is set here,
+    // the loader thread aborts the reader with the next decoded rows or before the next region
+    public void cancel()
+    {
+        cancelled = true;
+        if (!started)
+        {
+            close(); // there is no loader thread that would release the file
+        }
+    }
+
+    // waits until the loader has stopped
+    public void await()
+    {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the image the file is decoded into, it has the full size from the beginning
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    public BufferedImage getPreview()
+    {
+        return preview;
+    }
+
+    // true if every pixel of the area already has its full resolution value, the parts outside the image do not count
+    public synchronized boolean isDecoded(Rectangle area)
+    {
+        Rectangle inside = area.intersection(new Rectangle(0, 0, width, height));
+        return inside.isEmpty() || getDecodedArea().contains(inside);
+    }
+
+    // the part of the image that already has its full resolution values
+    public synchronized Area getDecodedArea()
+    {
+        Area area = new Area();
+        for (int i = 0; i < regions.length; i++)
+        {
+            if (rowsDecoded[i] > 0)
+            {
+                area.add(new Area(new Rectangle(regions[i].x, regions[i].y, regions[i].width, rowsDecoded[i])));
+            }
+        }
+        return area;
+    }
+
+    private void run()
+    {
+        IOException error = null;
+        try {
+            decodePreview();
+            listener.areaDecoded(0, 0, width, height);
+            for (int i = 0; i < regions.length && !cancelled; i++)
+            {
+                decodeRegion(i);
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            close();
+            finished.countDown();
+        }
+        listener.loadFinished(cancelled ? null : error);
+    }
+
+    private void close()
+    {
+        reader.dispose();
+        try {
+            input.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // decodes every n-th pixel of every n-th row, which is much less work than the full image
+    private void decodePreview() throws IOException
+    {
+        int step = Math.max(1, (Math.max(width, height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        preview = reader.read(0, param);
+    }
+
+    private void decodeRegion(int index) throws IOException
+    {
+        Rectangle region = regions[index];
+        synchronized (this)
+        {
+            currentRegion = index;
+        }
+        if (direct)
+        {
+            // the reader writes into the canvas image, the row listener reports every finished row
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            param.setDestination(image);
+            param.setDestinationOffset(new Point(region.x, region.y));
+            reader.read(0, param);
+        }
+        else
+        {
+            // other types (gray, palette) are decoded in bands of rows and converted
+            int rows = Math.max(1, (int) (MappedDataBuffer.OUT_OF_CORE_PIXELS / 16 / region.width));
+            int[] argb = null;
+            for (int y = 0; y < region.height && !cancelled; y += rows)
+            {
+                int bandHeight = Math.min(rows, region.height - y);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(region.x, region.y + y, region.width, bandHeight));
+                BufferedImage band = reader.read(0, param);
+                argb = band.getRGB(0, 0, region.width, bandHeight, argb, 0, region.width);
+                image.setRGB(region.x, region.y + y, region.width, bandHeight, argb, 0, region.width);
+                rowsDone(index, y + bandHeight);
+                listener.areaDecoded(region.x, region.y + y, region.width, bandHeight);
+            }
+        }
+        if (!cancelled)
+        {
+            rowsDone(index, region.height);
+        }
+    }
+
+    private synchronized void rowsDone(int index, int rows)
+    {
+        rowsDecoded[index] = Math.max(rowsDecoded[index], rows);
+    }
+
+    // an empty image with the size of the file that the reader can decode into directly if possible
+    private BufferedImage createImage(int bands)
+    {
+        boolean mapped = MappedDataBuffer.shouldMap(width, height); // very large images are kept in a scratch file
+        direct = bands == 3 || bands == 4;
+        if (bands == 3)
+        {
+            return mapped ? MappedDataBuffer.createRgbImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return mapped ? MappedDataBuffer.createImage(width, height, 0)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    // the viewport first, then the full width rows above it, the parts left and right of it and the rows below it
+    private Rectangle[] createRegions(Rectangle viewport)
+    {
+        List<Rectangle> list = new ArrayList<>();
+        if (viewport.isEmpty())
+        {
+            list.add(new Rectangle(0, 0, width, height));
+        }
+        else
+        {
+            int bottom = viewport.y + viewport.height;
+            int right = viewport.x + viewport.width;
+            list.add(viewport);
+            list.add(new Rectangle(0, 0, width, viewport.y));
+            list.add(new Rectangle(0, viewport.y, viewport.x, viewport.height));
+            list.add(new Rectangle(right, viewport.y, width - right, viewport.height));
+            list.add(new Rectangle(0, bottom, width, height - bottom));
+            list.removeIf(Rectangle::isEmpty);
+        }
+        return list.toArray(new Rectangle[0]);
+    }
+
+    // counts the rows written by the reader, the rows of interlaced images are counted when the region is finished
+    private class RowListener implements IIOReadUpdateListener
+    {
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands)
+        {
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands)
+        {
+            if (cancelled)
+            {
+                source.abort(); // called on the loader thread, the read returns after this row
+                return;
+            }
+            if (periodX != 1 || periodY != 1 || theImage != image)
+            {
+                return; // the preview or an early pass of an interlaced image, its rows are not final yet
+            }
+            synchronized (ProgressiveImageLoader.this)
+            {
+                rowsDone(currentRegion, minY + height - regions[currentRegion].y);
+            }
+            listener.areaDecoded(minX, minY, width, height);
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage)
+        {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands)
+        {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+                                    int height, int periodX, int periodY, int[] bands)
+        {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail)
+        {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+// the images and documents opened last, newest first, kept in the user preferences between sessions
+// the Open browser shows them next to the folder (see OpenBrowser)
+public class RecentFiles
+{
+    private static final int MAX_FILES = 10;
+    private static final Preferences PREFERENCES = Preferences.userRoot().node("paintapp/recent");
+
+    // the recent files that still exist
+    public static List<File> get()
+    {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < MAX_FILES; i++)
+        {
+            String path = PREFERENCES.get("file" + i, null);
+            if (path != null && new File(path).isFile())
+            {
+                files.add(new File(path));
+            }
+        }
+        return files;
+    }
+
+    // puts the file at the top of the list
+    public static void add(File file)
+    {
+        List<File> files = get();
+        files.remove(file.getAbsoluteFile());
+        files.add(0, file.getAbsoluteFile());
+        for (int i = 0; i < MAX_FILES; i++)
+        {
+            if (i < files.size())
+            {
+                PREFERENCES.put("file" + i, files.get(i).getPath());
+            }
+            else
+            {
+                PREFERENCES.remove("file" + i);
+            }
+        }
+        PREFERENCES.put("directory", file.getAbsoluteFile().getParent());
+        try {
+            PREFERENCES.flush();
+        } catch (BackingStoreException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the folder of the file opened last, the home folder before anything was opened
+    public static File getDirectory()
+    {
+        File directory = new File(PREFERENCES.get("directory", System.getProperty("user.home")));
+        return directory.isDirectory() ? directory : new File(System.getProperty("user.home"));
+    }
+}
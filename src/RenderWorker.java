@@ -0,0 +1,131 @@
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// this class runs the drawing work of the canvas on a background thread,
+// so the Event Dispatch Thread only has to queue the mouse positions and can keep handling input
+// all tasks and samples are processed in the order they were added by one worker thread,
+// which keeps the undo history in the same order as the user's actions
+// mouse positions are collected in an int array and handed to processSamples() in batches
+public abstract class RenderWorker
+{
+    private BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private Thread thread;
+    private int[] samples = new int[512]; // x, y pairs added by the EDT
+    private int sampleCount; // number of ints used in samples
+    private int[] batch = new int[512]; // copy of the samples used by the worker thread
+    private boolean drainScheduled; // true if a task to process the samples is already queued
+    private int generation; // increased by submit(), a queued drain task of an older generation does nothing
+
+    public RenderWorker(String name)
+    {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true); // the worker does not keep the application running
+        thread.start();
+    }
+
+    // called on the worker thread with the queued x, y pairs, count is the number of ints
+    protected abstract void processSamples(int[] samples, int count);
+
+    // adds a task that runs after all tasks and samples added before it
+    public void submit(Runnable task)
+    {
+        synchronized (this)
+        {
+            if (drainScheduled)
+            {
+                // the queued drain task could run before the task with samples added after it (the next stroke),
+                // so it is cancelled and the samples added so far are processed in a task of their own
+                int[] copy = Arrays.copyOf(samples, sampleCount);
+                tasks.add(() -> processSamples(copy, copy.length));
+                sampleCount = 0;
+                drainScheduled = false;
+                generation++;
+            }
+            tasks.add(task);
+        }
+    }
+
+    // adds one mouse position, positions added before the next batch are processed together
+    public void addSample(int x, int y)
+    {
+        synchronized (this)
+        {
+            if (sampleCount + 2 > samples.length)
+            {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampleCount++] = x;
+            samples[sampleCount++] = y;
+            if (drainScheduled)
+            {
+                return;
+            }
+            drainScheduled = true;
+            int scheduled = generation;
+            tasks.add(() -> drainSamples(scheduled));
+        }
+    }
+
+    // waits until all tasks and samples added before this call are processed,
+    // after that the caller can use the canvas image safely until it adds new work
+    public void await()
+    {
+        if (Thread.currentThread() == thread)
+        {
+            return; // the worker is already the only thread using the image
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        tasks.add(done::countDown);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // stops the worker thread after the tasks added before, no tasks can be added after this
+    public void shutdown()
+    {
+        tasks.add(() -> Thread.currentThread().interrupt()); // the next take() ends the loop
+    }
+
+    private void drainSamples(int scheduled)
+    {
+        int count;
+        synchronized (this)
+        {
+            if (scheduled != generation)
+            {
+                return; // submit() has processed the samples of this task already
+            }
+            count = sampleCount;
+            if (batch.length < count)
+            {
+                batch = new int[samples.length];
+            }
+            System.arraycopy(samples, 0, batch, 0, count);
+            sampleCount = 0;
+            drainScheduled = false;
+        }
+        if (count > 0)
+        {
+            processSamples(batch, count);
+        }
+    }
+
+    private void run()
+    {
+        while (true)
+        {
+            try {
+                tasks.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // one failed task must not stop the drawing
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+// this class is a spatial index over the shapes of the canvas (a uniform grid)
+// the id of every shape is stored in the cells covered by its bounding box, so the eraser
+// only has to test the shapes near the cursor instead of all shapes on the canvas
+// the cells are hashed into a fixed table, so the grid works for any canvas size and negative coordinates
+public class ShapeGrid
+{
+    private static final int CELL_SIZE = 64; // width and height of one cell in pixels
+    private static final int TABLE_SIZE = 1 << 14; // number of buckets, must be a power of two
+    private static final int MAX_CELLS = 256; // shapes covering more cells are kept in the large shapes list
+
+    private ShapeStore store;
+    private int[][] buckets = new int[TABLE_SIZE][]; // shape ids of every bucket, created when the first shape is added
+    private int[] bucketSizes = new int[TABLE_SIZE];
+    private IntList largeShapes = new IntList(); // big shapes, they are tested in every query
+    private int[] visited = new int[256]; // number of the last query that visited each shape id
+    private int query; // number of the current query, used to visit each shape only once
+    private int size;
+    private Rectangle bounds = new Rectangle(); // reused bounds of the shape that is added or removed
+
+    public ShapeGrid(ShapeStore store)
+    {
+        this.store = store;
+    }
+
+    public void add(int id)
+    {
+        store.getBounds(id, bounds);
+        if (cellCount(bounds) > MAX_CELLS)
+        {
+            largeShapes.add(id);
+        }
+        else
+        {
+            for (int row = cell(bounds.y); row <= cell(bounds.y + bounds.height); row++)
+            {
+                for (int column = cell(bounds.x); column <= cell(bounds.x + bounds.width); column++)
+                {
+                    int index = bucket(column, row);
+                    int[] bucket = buckets[index];
+                    if (bucket == null)
+                    {
+                        bucket = new int[8];
+                        buckets[index] = bucket;
+                    }
+                    else if (bucketSizes[index] == bucket.length)
+                    {
+                        bucket = Arrays.copyOf(bucket, bucket.length * 2);
+                        buckets[index] = bucket;
+                    }
+                    // if two cells share one bucket the shape is added twice, the query skips repeats
+                    bucket[bucketSizes[index]++] = id;
+                }
+            }
+        }
+        size++;
+    }
+
+    // adds all shapes that are on the canvas now
+    public void addAll(IdList ids)
+    {
+        ids.forEach(this::add);
+    }
+
+    public void remove(int id)
+    {
+        store.getBounds(id, bounds); // shapes do not change, so the bounds are the same as in add()
+        if (cellCount(bounds) > MAX_CELLS)
+        {
+            largeShapes.removeValue(id);
+        }
+        else
+        {
+            for (int row = cell(bounds.y); row <= cell(bounds.y + bounds.height); row++)
+            {
+                for (int column = cell(bounds.x); column <= cell(bounds.x + bounds.width); column++)
+                {
+                    removeFromBucket(bucket(column, row), id);
+                }
+            }
+        }
+        size--;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(buckets, null);
+        Arrays.fill(bucketSizes, 0);
+        largeShapes.clear();
+        size = 0;
+    }
+
+    // replaces the content of the grid with the shapes that are on the canvas now
+    public void rebuild(IdList ids)
+    {
+        clear();
+        addAll(ids);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // this method finds the shapes touched by a circle (for example the eraser brush)
+    // and adds their ids to the result list, the result list is cleared first so it can be reused
+    public void queryCircle(int x, int y, double radius, IntList result)
+    {
+        startQuery(result);
+        int r = (int) Math.ceil(radius);
+        for (int row = cell(y - r); row <= cell(y + r); row++)
+        {
+            for (int column = cell(x - r); column <= cell(x + r); column++)
+            {
+                int index = bucket(column, row);
+                int[] bucket = buckets[index];
+                for (int i = 0; i < bucketSizes[index]; i++)
+                {
+                    collect(bucket[i], x, y, radius, result);
+                }
+            }
+        }
+        for (int i = 0; i < largeShapes.size(); i++)
+        {
+            collect(largeShapes.get(i), x, y, radius, result);
+        }
+    }
+
+    // this method finds the shapes whose bounds intersect the area
+    public void queryRect(Rectangle area, IntList result)
+    {
+        startQuery(result);
+        for (int row = cell(area.y); row <= cell(area.y + area.height); row++)
+        {
+            for (int column = cell(area.x); column <= cell(area.x + area.width); column++)
+            {
+                int index = bucket(column, row);
+                int[] bucket = buckets[index];
+                for (int i = 0; i < bucketSizes[index]; i++)
+                {
+                    collect(bucket[i], area, result);
+                }
+            }
+        }
+        for (int i = 0; i < largeShapes.size(); i++)
+        {
+            collect(largeShapes.get(i), area, result);
+        }
+    }
+
+    private void startQuery(IntList result)
+    {
+        result.clear();
+        query++;
+        if (visited.length < store.capacity())
+        {
+            visited = Arrays.copyOf(visited, Math.max(store.capacity(), visited.length * 2));
+        }
+    }
+
+    private void collect(int id, Rectangle area, IntList result)
+    {
+        if (visited[id] != query)
+        {
+            visited[id] = query;
+            if (store.intersects(id, area))
+            {
+                result.add(id);
+            }
+        }
+    }
+
+    private void collect(int id, int x, int y, double radius, IntList result)
+    {
+        if (visited[id] != query)
+        {
+            visited[id] = query;
+            if (store.intersectsCircle(id, x, y, radius))
+            {
+                result.add(id);
+            }
+        }
+    }
+
+    private void removeFromBucket(int index, int id)
+    {
+        int[] bucket = buckets[index];
+        for (int i = 0; i < bucketSizes[index]; i++)
+        {
+            if (bucket[i] == id)
+            {
+                bucket[i] = bucket[--bucketSizes[index]]; // the order inside a bucket does not matter
+                return;
+            }
+        }
+    }
+
+    private static int cell(int coordinate)
+    {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private static int cellCount(Rectangle bounds)
+    {
+        long columns = cell(bounds.x + bounds.width) - cell(bounds.x) + 1;
+        long rows = cell(bounds.y + bounds.height) - cell(bounds.y) + 1;
+        return (int) Math.min(columns * rows, Integer.MAX_VALUE);
+    }
+
+    // maps a cell to a bucket of the table
+    private static int bucket(int column, int row)
+    {
+        int hash = column * 73856093 ^ row * 19349663;
+        return hash & (TABLE_SIZE - 1);
+    }
+}
@@ -0,0 +1,143 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+// this class keeps all committed shapes drawn into one transparent image (retained scene)
+// a shape is drawn only once when it is added, and when shapes are removed (erase, undo, redo)
+// only the area of the removed shapes is cleared and drawn again from the spatial index,
+// so painting the panel costs one image copy no matter how many shapes there are
+public class ShapeLayer
+{
+    private BufferedImage layerImage; // transparent image with all shapes
+    private ShapeStore store;
+    private ShapeGrid shapeGrid; // used to find the shapes inside an area that has to be drawn again
+    private IntList found = new IntList(); // reused result list for the grid queries
+    private boolean deferred; // true while many operations are applied at once, the layer is drawn once at the end
+    private boolean stale; // a change was skipped while deferred
+
+    public ShapeLayer(int width, int height, ShapeStore store, ShapeGrid shapeGrid)
+    {
+        this.store = store;
+        this.shapeGrid = shapeGrid;
+        layerImage = createLayerImage(width, height);
+    }
+
+    public BufferedImage getImage()
+    {
+        return layerImage;
+    }
+
+    // draws a new shape on top of the layer
+    public void add(int id)
+    {
+        if (deferred)
+        {
+            stale = true;
+            return;
+        }
+        Graphics2D g2d = layerImage.createGraphics();
+        store.draw(id, g2d);
+        g2d.dispose();
+    }
+
+    // clears the area and draws again all shapes that are inside it
+    public void invalidate(Rectangle area)
+    {
+        Rectangle clip = area.intersection(new Rectangle(0, 0, layerImage.getWidth(), layerImage.getHeight()));
+        if (clip.isEmpty())
+        {
+            return;
+        }
+        if (deferred)
+        {
+            stale = true;
+            return;
+        }
+        Graphics2D g2d = layerImage.createGraphics();
+        g2d.setClip(clip);
+        g2d.setComposite(AlphaComposite.Clear); // make the area transparent again
+        g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g2d.setComposite(AlphaComposite.SrcOver);
+        shapeGrid.queryRect(clip, found);
+        found.sort(); // ids are in drawing order
+        for (int i = 0; i < found.size(); i++)
+        {
+            store.draw(found.get(i), g2d);
+        }
+        found.clear();
+        g2d.dispose();
+    }
+
+    // the layer image with all shapes, if changes were skipped while deferred it is drawn again first,
+    // used when the pixels of the shapes are needed in the middle of a replay (flood fill borders)
+    public BufferedImage getCurrentImage()
+    {
+        if (stale)
+        {
+            stale = false;
+            drawAll();
+        }
+        return layerImage;
+    }
+
+    // draws all shapes that are on the canvas again
+    public void rebuild()
+    {
+        if (deferred)
+        {
+            stale = true;
+            return;
+        }
+        drawAll();
+    }
+
+    private void drawAll()
+    {
+        Graphics2D g2d = layerImage.createGraphics();
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(0, 0, layerImage.getWidth(), layerImage.getHeight());
+        g2d.setComposite(AlphaComposite.SrcOver);
+        store.getIds().forEach(id -> store.draw(id, g2d)); // the ids are in drawing order
+        g2d.dispose();
+    }
+
+    // while deferred, changes only mark the layer as stale and it is drawn again when deferring ends,
+    // used when a journal is replayed, where shapes are added and erased many times over
+    public void setDeferred(boolean deferred)
+    {
+        this.deferred = deferred;
+        if (!deferred && stale)
+        {
+            stale = false;
+            rebuild();
+        }
+    }
+
+    // draws the whole layer again, a new layer image is created when the canvas size changed
+    public void reset(int width, int height)
+    {
+        if (layerImage.getWidth() != width || layerImage.getHeight() != height)
+        {
+            MappedDataBuffer.disposeImage(layerImage);
+            layerImage = createLayerImage(width, height);
+        }
+        rebuild();
+    }
+
+    // deletes the scratch file of a very large layer image, the layer cannot be used after this
+    public void dispose()
+    {
+        MappedDataBuffer.disposeImage(layerImage);
+    }
+
+    // a transparent image, kept in a scratch file for very large canvases like the canvas image
+    private static BufferedImage createLayerImage(int width, int height)
+    {
+        if (MappedDataBuffer.shouldMap(width, height))
+        {
+            return MappedDataBuffer.createImage(width, height, 0);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+}
@@ -0,0 +1,336 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// this class stores the shapes of the canvas as columns of ints instead of one object per shape
+// (structure of arrays), a shape is identified by its id, which is the index into the columns
+// colors and strokes are kept once in tables and the shapes store the table index
+// the columns are only appended to, so a shape keeps its data after it is removed from the canvas
+// and undo can bring it back by its id, ids grow with every new shape so they are also the drawing order
+// the shapes that are on the canvas now are the ids in an IdList, snapshots of it are kept in the undo history
+public class ShapeStore
+{
+    // shape types, the same numbers as the tools
+    public static final int LINE = 1;
+    public static final int RECTANGLE = 2;
+    public static final int CIRCLE = 3;
+    public static final int TRIANGLE = 4;
+
+    private int[] x1 = new int[256], y1 = new int[256], x2 = new int[256], y2 = new int[256]; // coordinates of the points defining the shape
+    private int[] type = new int[256];
+    private int[] colorIndex = new int[256]; // index into colors
+    private int[] strokeIndex = new int[256]; // index into strokes
+    private int count; // number of ids used
+
+    private List<Color> colors = new ArrayList<>(); // every color used by a shape, once
+    private Map<Integer, Integer> colorIndexes = new HashMap<>(); // ARGB value to index in colors
+    private List<BasicStroke> strokes = new ArrayList<>(); // every stroke used by a shape, once
+    private float[] strokeWidths = new float[16]; // line width of every stroke
+    private Map<Float, Integer> strokeIndexes = new HashMap<>(); // line width to index in strokes
+
+    private IdList ids = new IdList(); // shapes on the canvas now
+    private int[] xPoints = new int[3], yPoints = new int[3]; // reused corners of a triangle
+
+    // adds a new shape to the canvas and returns its id
+    public int add(int x1, int y1, int x2, int y2, Color color, float strokeWidth, int type)
+    {
+        int id = append(x1, y1, x2, y2, color, strokeWidth, type);
+        ids.add(id);
+        return id;
+    }
+
+    // writes the data of the shape, used by PaintDocument
+    public void write(int id, DataOutput out) throws IOException
+    {
+        out.writeInt(x1[id]);
+        out.writeInt(y1[id]);
+        out.writeInt(x2[id]);
+        out.writeInt(y2[id]);
+        out.writeByte(type[id]);
+        out.writeInt(colors.get(colorIndex[id]).getRGB());
+        out.writeFloat(strokeWidths[strokeIndex[id]]);
+    }
+
+    // reads a shape written by write() and gives it the next id, it is not put on the canvas,
+    // so shapes read in the order of their ids get the same ids again
+    public int read(DataInput in) throws IOException
+    {
+        int x1 = in.readInt();
+        int y1 = in.readInt();
+        int x2 = in.readInt();
+        int y2 = in.readInt();
+        int type = in.readUnsignedByte();
+        Color color = new Color(in.readInt(), true);
+        float strokeWidth = in.readFloat();
+        if (type < LINE || type > TRIANGLE)
+        {
+            throw new IOException("Unknown shape type: " + type);
+        }
+        return append(x1, y1, x2, y2, color, strokeWidth, type);
+    }
+
+    // stores the data of a new shape and returns its id
+    private int append(int x1, int y1, int x2, int y2, Color color, float strokeWidth, int type)
+    {
+        if (count == this.x1.length)
+        {
+            grow();
+        }
+        int id = count++;
+        this.x1[id] = x1;
+        this.y1[id] = y1;
+        this.x2[id] = x2;
+        this.y2[id] = y2;
+        this.type[id] = type;
+        colorIndex[id] = internColor(color);
+        strokeIndex[id] = internStroke(strokeWidth);
+        return id;
+    }
+
+    // removes the shape from the canvas, its data stays so undo can add it again
+    public boolean remove(int id)
+    {
+        return ids.remove(id);
+    }
+
+    public void clear()
+    {
+        ids.clear();
+    }
+
+    // the shapes on the canvas now, in drawing order
+    public IdList getIds()
+    {
+        return ids;
+    }
+
+    // a read-only copy of the shapes on the canvas, it is cheap because it shares the id chunks
+    public IdList snapshot()
+    {
+        return ids.snapshot();
+    }
+
+    // puts the shapes of a snapshot back on the canvas
+    public void restore(IdList snapshot)
+    {
+        ids = snapshot.mutableCopy();
+    }
+
+    public int size()
+    {
+        return ids.size();
+    }
+
+    public void draw(int id, Graphics2D g2d)
+    {
+        g2d.setColor(colors.get(colorIndex[id]));
+        g2d.setStroke(strokes.get(strokeIndex[id]));
+        drawShape(g2d, type[id], x1[id], y1[id], x2[id], y2[id], xPoints, yPoints);
+    }
+
+    // draws a shape that is not in the store, like the preview while it is dragged,
+    // with the color and stroke of g2d, it looks the same as the shape added with these values
+    public static void drawShape(Graphics2D g2d, int type, int x1, int y1, int x2, int y2)
+    {
+        drawShape(g2d, type, x1, y1, x2, y2, new int[3], new int[3]);
+    }
+
+    private static void drawShape(Graphics2D g2d, int type, int x1, int y1, int x2, int y2, int[] xPoints, int[] yPoints)
+    {
+        int left = Math.min(x1, x2);
+        int top = Math.min(y1, y2);
+        int width = Math.abs(x2 - x1);
+        int height = Math.abs(y2 - y1);
+        switch (type) {
+            case LINE:
+                g2d.drawLine(x1, y1, x2, y2);
+                break;
+            case RECTANGLE:
+                g2d.drawRect(left, top, width, height);
+                break;
+            case CIRCLE:
+                g2d.drawOval(left, top, width, height);
+                break;
+            case TRIANGLE:
+                xPoints[0] = x1;
+                xPoints[1] = (x1 + x2) / 2;
+                xPoints[2] = x2;
+                yPoints[0] = y2;
+                yPoints[1] = y1;
+                yPoints[2] = y2;
+                g2d.drawPolygon(xPoints, yPoints, 3);
+                break;
+        }
+    }
+
+    // writes the area covered by the shape, including the line thickness, into bounds
+    public Rectangle getBounds(int id, Rectangle bounds)
+    {
+        return getBounds(type[id], x1[id], y1[id], x2[id], y2[id], strokeWidths[strokeIndex[id]], bounds);
+    }
+
+    // the area a shape with these values would cover, for shapes that are not in the store
+    public static Rectangle getBounds(int type, int x1, int y1, int x2, int y2, float strokeWidth, Rectangle bounds)
+    {
+        int pad = padding(type, strokeWidth);
+        bounds.setBounds(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad,
+                Math.abs(x2 - x1) + 2 * pad + 1, Math.abs(y2 - y1) + 2 * pad + 1);
+        return bounds;
+    }
+
+    // checks if the shape can be visible inside the given area
+    public boolean intersects(int id, Rectangle area)
+    {
+        int pad = padding(id);
+        return Math.max(x1[id], x2[id]) + pad >= area.x && Math.min(x1[id], x2[id]) - pad < area.x + area.width
+                && Math.max(y1[id], y2[id]) + pad >= area.y && Math.min(y1[id], y2[id]) - pad < area.y + area.height;
+    }
+
+    // checks if the point is on the shape, used for hit testing
+    public boolean contains(int id, int x, int y)
+    {
+        return intersectsCircle(id, x, y, 0);
+    }
+
+    // checks if a circle with the given center and radius touches the shape,
+    // the eraser uses it with the brush radius
+    public boolean intersectsCircle(int id, int x, int y, double radius)
+    {
+        int ax = x1[id], ay = y1[id], bx = x2[id], by = y2[id];
+        int left = Math.min(ax, bx);
+        int top = Math.min(ay, by);
+        int width = Math.abs(bx - ax);
+        int height = Math.abs(by - ay);
+        switch (type[id]) {
+            case LINE:
+                return segmentDistance(x, y, ax, ay, bx, by) <= strokeWidths[strokeIndex[id]] / 2 + radius;
+            case RECTANGLE:
+                double dx = Math.max(Math.max(left - x, x - (left + width)), 0);
+                double dy = Math.max(Math.max(top - y, y - (top + height)), 0);
+                return dx * dx + dy * dy <= radius * radius;
+            case CIRCLE:
+                double a = width / 2.0 + radius; // semi-axes grown by the radius
+                double b = height / 2.0 + radius;
+                if (a <= 0 || b <= 0)
+                {
+                    return false;
+                }
+                double ex = (x - (left + width / 2.0)) / a;
+                double ey = (y - (top + height / 2.0)) / b;
+                return ex * ex + ey * ey <= 1;
+            case TRIANGLE: // the same points as in draw()
+                int mx = (ax + bx) / 2;
+                double d1 = cross(x, y, ax, by, mx, ay);
+                double d2 = cross(x, y, mx, ay, bx, by);
+                double d3 = cross(x, y, bx, by, ax, by);
+                boolean hasNegative = d1 < 0 || d2 < 0 || d3 < 0;
+                boolean hasPositive = d1 > 0 || d2 > 0 || d3 > 0;
+                boolean flat = ax == bx || ay == by; // a flat triangle has no inside
+                if (!flat && !(hasNegative && hasPositive)) // the point is inside
+                {
+                    return true;
+                }
+                return radius > 0 && (segmentDistance(x, y, ax, by, mx, ay) <= radius
+                        || segmentDistance(x, y, mx, ay, bx, by) <= radius
+                        || segmentDistance(x, y, bx, by, ax, by) <= radius);
+            default:
+                return false;
+        }
+    }
+
+    // number of ids used so far, all ids are smaller than this
+    public int capacity()
+    {
+        return count;
+    }
+
+    // how far the drawn line can reach outside the points of the shape
+    // the default BasicStroke has square caps and miter joins: a cap or a right angle corner reaches
+    // half the width times sqrt(2), a sharp corner of a triangle up to the miter limit (10) times half the width
+    private int padding(int id)
+    {
+        return padding(type[id], strokeWidths[strokeIndex[id]]);
+    }
+
+    private static int padding(int type, float strokeWidth)
+    {
+        float halfWidth = strokeWidth / 2;
+        switch (type) {
+            case CIRCLE:
+                return (int) Math.ceil(halfWidth) + 1;
+            case TRIANGLE:
+                return (int) Math.ceil(halfWidth * 10) + 1;
+            default:
+                return (int) Math.ceil(halfWidth * Math.sqrt(2)) + 1;
+        }
+    }
+
+    private int internColor(Color color)
+    {
+        Integer index = colorIndexes.get(color.getRGB());
+        if (index == null)
+        {
+            index = colors.size();
+            colors.add(color);
+            colorIndexes.put(color.getRGB(), index);
+        }
+        return index;
+    }
+
+    private int internStroke(float width)
+    {
+        Integer index = strokeIndexes.get(width);
+        if (index == null)
+        {
+            index = strokes.size();
+            strokes.add(new BasicStroke(width));
+            if (index == strokeWidths.length)
+            {
+                strokeWidths = Arrays.copyOf(strokeWidths, index * 2);
+            }
+            strokeWidths[index] = width;
+            strokeIndexes.put(width, index);
+        }
+        return index;
+    }
+
+    private void grow()
+    {
+        int capacity = x1.length * 2;
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+        type = Arrays.copyOf(type, capacity);
+        colorIndex = Arrays.copyOf(colorIndex, capacity);
+        strokeIndex = Arrays.copyOf(strokeIndex, capacity);
+    }
+
+    // distance from the point (px, py) to the segment from (ax, ay) to (bx, by)
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx, double by)
+    {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t)); // stay on the segment
+        double cx = ax + t * dx - px;
+        double cy = ay + t * dy - py;
+        return Math.sqrt(cx * cx + cy * cy);
+    }
+
+    // tells on which side of the edge from (ax, ay) to (bx, by) the point lies
+    private static double cross(double px, double py, double ax, double ay, double bx, double by)
+    {
+        return (px - bx) * (ay - by) - (ax - bx) * (py - by);
+    }
+}
@@ -0,0 +1,204 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// this class makes the thumbnails of the Open browser (see OpenBrowser) and keeps them in a directory on the disk
+// a thumbnail is decoded with source subsampling, the reader only keeps every n-th pixel of every n-th row,
+// so a large scan costs a fraction of a full decode and never needs its full size in memory
+// the file of a thumbnail is named after the path, the modification time and the length of the image,
+// an image that changed gets a new thumbnail and the old one is removed when the cache is full
+// the cache is bounded by its size on the disk, the thumbnails used least recently are removed first,
+// the last use is the modification time of the thumbnail file, so the order survives a restart
+// the methods can be called from several threads at the same time
+public class ThumbnailCache
+{
+    public static final int SIZE = 128; // a thumbnail fits into SIZE x SIZE pixels
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("paintapp.thumbnailCacheBytes", 64L * 1024 * 1024);
+
+    private File directory;
+    private long maxBytes;
+    private Map<String, Long> entries; // file name to size, least recently used first, read from the directory on first use
+    private long totalBytes;
+
+    public ThumbnailCache()
+    {
+        this(new File(System.getProperty("user.home"), ".paintapp" + File.separator + "thumbnails"), DEFAULT_MAX_BYTES);
+    }
+
+    public ThumbnailCache(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // the thumbnail of an image file, from the cache or decoded and added to it, null if the file is not an image
+    public BufferedImage get(File image)
+    {
+        String name = cacheName(image);
+        File cached = new File(directory, name);
+        if (touch(name, cached))
+        {
+            try {
+                BufferedImage thumbnail = ImageIO.read(cached);
+                if (thumbnail != null)
+                {
+                    return thumbnail;
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // the file is broken, the thumbnail is made again
+            }
+        }
+        BufferedImage thumbnail;
+        try {
+            thumbnail = decode(image);
+        } catch (IOException e) {
+            return null; // not an image that can be read, nothing is cached
+        }
+        if (thumbnail != null)
+        {
+            store(name, cached, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    // reads the image with a subsampling that leaves at least SIZE pixels on the longer side, then scales it down
+    static BufferedImage decode(File file) throws IOException
+    {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file))
+        {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext())
+            {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true); // the metadata is not needed
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int step = Math.max(1, Math.max(width, height) / SIZE);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return scale(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image)
+    {
+        double factor = Math.min(1, (double) SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = thumbnail.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(image, 0, 0, width, height, null);
+        g2d.dispose();
+        return thumbnail;
+    }
+
+    // true if the thumbnail is cached, it becomes the most recently used one
+    private synchronized boolean touch(String name, File cached)
+    {
+        loadEntries();
+        if (entries.get(name) == null) // get() moves the entry to the end
+        {
+            return false;
+        }
+        cached.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    // writes the thumbnail next to its final name first, so a thumbnail that is read is always complete
+    private void store(String name, File cached, BufferedImage thumbnail)
+    {
+        try {
+            Files.createDirectories(directory.toPath());
+            File temporary = File.createTempFile("thumbnail", ".tmp", directory);
+            try {
+                ImageIO.write(thumbnail, "png", temporary);
+                Files.move(temporary.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temporary.delete(); // only left if the move failed
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this)
+        {
+            loadEntries();
+            Long old = entries.put(name, cached.length());
+            totalBytes += cached.length() - (old != null ? old : 0);
+            evict();
+        }
+    }
+
+    // removes the least recently used thumbnails until the cache fits into its size
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext())
+        {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    // reads the thumbnails of earlier sessions, oldest use first
+    private void loadEntries()
+    {
+        if (entries != null)
+        {
+            return;
+        }
+        entries = new LinkedHashMap<>(256, 0.75f, true);
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".png"));
+        if (files == null)
+        {
+            return; // nothing cached yet
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files)
+        {
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        evict(); // the size may have been lowered
+    }
+
+    private static String cacheName(File image)
+    {
+        String key = image.getAbsolutePath() + "|" + image.lastModified() + "|" + image.length();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash)
+            {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(".png").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-1
+        }
+    }
+}
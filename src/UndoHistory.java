@@ -0,0 +1,349 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+// this class is used in the PaintCanvas class for undo and redo
+// the canvas is split into square tiles, and before an operation draws into a tile
+// a copy of that tile is saved (copy-on-write), so a brush stroke only costs the tiles it touched
+// the history has a memory budget, when it is exceeded the oldest states are removed
+public class UndoHistory
+{
+    public static final int DEFAULT_TILE_SIZE = 64;
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024; // 256 MB
+
+    private Deque<CanvasState> undoStack = new ArrayDeque<>(); // newest state is at the front
+    private Deque<CanvasState> redoStack = new ArrayDeque<>();
+    private Deque<CanvasState> asideRedo; // the redo states set aside while a session has tentative operations, or null
+    private CanvasState current; // state that is being recorded, changed tiles are added to it
+    private int tileSize;
+    private long memoryBudget;
+    private volatile long memoryUsed; // memory used by all states on both stacks, read by CanvasMetrics on other threads
+    // tiles changed since takeChangedTiles() in the canvas image (key null) and in every layer, index = row * changedColumns + column
+    private Map<Layer, BitSet> changedTiles = new HashMap<>();
+    private int changedColumns; // number of tile columns of the image the changed tiles belong to
+    private CanvasMetrics metrics; // times the tile copies, can be null
+
+    public UndoHistory()
+    {
+        this(DEFAULT_TILE_SIZE, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public UndoHistory(int tileSize, long memoryBudget)
+    {
+        if (tileSize <= 0)
+        {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+        this.memoryBudget = memoryBudget;
+    }
+
+    // this method starts a new undoable operation, the shapes are saved as they are now
+    // and the tiles will be saved later, when the operation is about to change them
+    // shapes is a snapshot from ShapeStore, it is kept as it is
+    public void beginEdit(BufferedImage image, IdList shapes)
+    {
+        beginEdit(image, shapes, null);
+    }
+
+    // starts an operation that draws into a layer above the background, only the tiles of that layer are saved
+    // and undo writes them back into the layer image of that time, layer is null for the canvas image
+    public void beginEdit(BufferedImage image, IdList shapes, Layer layer)
+    {
+        int columns = (image.getWidth() + tileSize - 1) / tileSize;
+        current = new CanvasState(shapes, tileSize, columns, layer);
+        push(undoStack, current);
+        clearRedo();
+    }
+
+    // this method records an operation that replaces the whole canvas image (open, clear)
+    // the old image is not used by the canvas anymore, so it is kept as it is without copying
+    public void recordImageReplaced(BufferedImage oldImage, IdList shapes)
+    {
+        current = null;
+        push(undoStack, new CanvasState(oldImage, shapes));
+        clearRedo();
+    }
+
+    // this method has to be called before drawing into the given area of the image,
+    // tiles of the area that were not saved yet in the current operation are copied
+    public void touch(BufferedImage image, int x, int y, int width, int height)
+    {
+        // clip the area to the image
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + width, image.getWidth());
+        int bottom = Math.min(y + height, image.getHeight());
+        if (left >= right || top >= bottom)
+        {
+            return;
+        }
+        markChanged(current == null ? null : current.getLayer(), image, left, top, right, bottom);
+        if (current == null)
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int row = top / tileSize; row <= (bottom - 1) / tileSize; row++)
+        {
+            for (int column = left / tileSize; column <= (right - 1) / tileSize; column++)
+            {
+                if (!current.hasTile(column, row))
+                {
+                    PixelTile tile = captureTile(image, column, row);
+                    current.addTile(column, row, tile);
+                    memoryUsed += tile.getSizeInBytes();
+                    bytes += tile.getSizeInBytes();
+                }
+            }
+        }
+        if (bytes > 0)
+        {
+            if (metrics != null)
+            {
+                metrics.recordTileCapture(System.nanoTime() - start, bytes);
+            }
+            evict();
+        }
+    }
+
+    // returns the tiles of the canvas image (layer null) or of a layer changed by drawing, undo and redo
+    // since the last call of takeChangedTiles(), the document saves only these tiles (see PaintDocument),
+    // index = row * columns + column, where columns is the number of tile columns of the image,
+    // the tiles of a replaced image are not included
+    public BitSet getChangedTiles(Layer layer)
+    {
+        BitSet tiles = changedTiles.get(layer);
+        return tiles == null ? new BitSet() : (BitSet) tiles.clone();
+    }
+
+    // starts new sets of changed tiles, called when the document has saved them
+    public void takeChangedTiles()
+    {
+        changedTiles.clear();
+    }
+
+    public boolean hasChangedTiles()
+    {
+        return !changedTiles.isEmpty();
+    }
+
+    public boolean canUndo()
+    {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo()
+    {
+        return !redoStack.isEmpty();
+    }
+
+    // undo operation, the saved tiles are written back into the image
+    // returns the restored state, its image is null if the image object did not change
+    public CanvasState undo(BufferedImage image, IdList shapes)
+    {
+        if (undoStack.isEmpty())
+        {
+            return null;
+        }
+        current = null;
+        CanvasState state = pop(undoStack);
+        push(redoStack, restore(state, image, shapes)); // the opposite state goes to the redo stack
+        return state;
+    }
+
+    // redo operation, works exactly like undo but in the other direction
+    public CanvasState redo(BufferedImage image, IdList shapes)
+    {
+        if (redoStack.isEmpty())
+        {
+            return null;
+        }
+        current = null;
+        CanvasState state = pop(redoStack);
+        push(undoStack, restore(state, image, shapes));
+        return state;
+    }
+
+    public void clear()
+    {
+        current = null;
+        while (!undoStack.isEmpty())
+        {
+            discard(pop(undoStack));
+        }
+        clearRedo();
+        clearAsideRedo();
+        asideRedo = null;
+        memoryUsed = 0;
+    }
+
+    // in a session the local operations are drawn before the server put them in order (see PaintCanvas.applyRemoteOperation()),
+    // the redo states they would clear are set aside, an undo or redo that the server puts before them still finds them,
+    // nothing happens if states are set aside already
+    public void setAsideRedo()
+    {
+        if (asideRedo == null)
+        {
+            asideRedo = redoStack;
+            redoStack = new ArrayDeque<>();
+        }
+    }
+
+    // puts the states that were set aside back, the redo states of the tentative operations are discarded
+    public void restoreAsideRedo()
+    {
+        if (asideRedo != null)
+        {
+            clearRedo();
+            redoStack = asideRedo;
+            asideRedo = null;
+        }
+    }
+
+    // discards the states that were set aside, an operation before the tentative ones cleared them
+    public void clearAsideRedo()
+    {
+        if (asideRedo != null)
+        {
+            while (!asideRedo.isEmpty())
+            {
+                discard(pop(asideRedo));
+            }
+        }
+    }
+
+    public void setMetrics(CanvasMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    public long getMemoryUsed()
+    {
+        return memoryUsed;
+    }
+
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    // this method applies the state to the image and returns the state needed to go back,
+    // the tiles of a layer state are written into the layer instead of the image
+    private CanvasState restore(CanvasState state, BufferedImage image, IdList shapes)
+    {
+        if (state.getCanvasImage() != null)
+        {
+            // the whole image was replaced, keep the current image object for the opposite direction
+            return new CanvasState(image, shapes);
+        }
+        Layer layer = state.getLayer();
+        if (layer != null)
+        {
+            image = layer.getImage(); // the layer image is replaced when the canvas grows, the layer stays
+        }
+        int columns = (image.getWidth() + tileSize - 1) / tileSize;
+        CanvasState opposite = new CanvasState(shapes, tileSize, columns, layer);
+        for (PixelTile tile : state.getTiles())
+        {
+            int column = tile.getX() / tileSize;
+            int row = tile.getY() / tileSize;
+            opposite.addTile(column, row, captureTile(image, column, row)); // save what is there now
+            tile.restore(image); // and put back what was there before
+            markChanged(layer, image, tile.getX(), tile.getY(), tile.getX() + tile.getWidth(), tile.getY() + tile.getHeight());
+        }
+        return opposite;
+    }
+
+    private void markChanged(Layer layer, BufferedImage image, int left, int top, int right, int bottom)
+    {
+        int columns = (image.getWidth() + tileSize - 1) / tileSize;
+        if (columns != changedColumns)
+        {
+            // the images were replaced, the document saves all of their tiles anyway
+            changedTiles.clear();
+            changedColumns = columns;
+        }
+        BitSet tiles = changedTiles.computeIfAbsent(layer, key -> new BitSet());
+        for (int row = top / tileSize; row <= (bottom - 1) / tileSize; row++)
+        {
+            tiles.set(row * columns + left / tileSize, row * columns + (right - 1) / tileSize + 1);
+        }
+    }
+
+    private PixelTile captureTile(BufferedImage image, int column, int row)
+    {
+        int x = column * tileSize;
+        int y = row * tileSize;
+        int w = Math.min(tileSize, image.getWidth() - x);
+        int h = Math.min(tileSize, image.getHeight() - y);
+        return PixelTile.capture(image, x, y, w, h);
+    }
+
+    private void push(Deque<CanvasState> stack, CanvasState state)
+    {
+        stack.push(state);
+        memoryUsed += state.getSizeInBytes();
+        evict();
+    }
+
+    private CanvasState pop(Deque<CanvasState> stack)
+    {
+        CanvasState state = stack.pop();
+        memoryUsed -= state.getSizeInBytes();
+        return state;
+    }
+
+    private void clearRedo()
+    {
+        while (!redoStack.isEmpty())
+        {
+            discard(pop(redoStack));
+        }
+    }
+
+    // a state that was removed from the stacks, the canvas never uses its replaced image again
+    private void discard(CanvasState state)
+    {
+        MappedDataBuffer.disposeImage(state.getCanvasImage()); // the scratch file of a very large image is deleted
+    }
+
+    // removes the oldest states until the history fits into the memory budget,
+    // the state that is being recorded is never removed
+    private void evict()
+    {
+        while (memoryUsed > memoryBudget)
+        {
+            CanvasState removed;
+            if (undoStack.size() > 1 || (undoStack.size() == 1 && undoStack.peekLast() != current))
+            {
+                removed = undoStack.removeLast();
+            }
+            else if (!redoStack.isEmpty())
+            {
+                removed = redoStack.removeLast();
+            }
+            else
+            {
+                break;
+            }
+            memoryUsed -= removed.getSizeInBytes();
+            discard(removed);
+        }
+    }
+}
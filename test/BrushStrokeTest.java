@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import org.junit.jupiter.api.Test;
+
+public class BrushStrokeTest
+{
+    // the pixel array path has to draw the same dab as Graphics2D.fillOval,
+    // otherwise a canvas in a mapped scratch file looks different from one on the heap
+    @Test
+    public void dabCoversTheSamePixelsAsFillOval()
+    {
+        for (int size = 1; size <= 64; size++)
+        {
+            int x = 40;
+            int y = 37;
+            BufferedImage direct = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+            BrushStroke stroke = new BrushStroke();
+            stroke.begin(direct, new UndoHistory(), Color.RED, size, x, y);
+            stroke.end();
+
+            BufferedImage expected = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = expected.createGraphics();
+            g.setColor(Color.RED);
+            g.fillOval(x - size / 2, y - size / 2, size, size);
+            g.dispose();
+
+            assertArrayEquals(pixels(expected), pixels(direct), "brush size " + size);
+        }
+    }
+
+    // an image in a scratch file gets its dabs a row at a time, they cover the same pixels as on the heap
+    @Test
+    public void dabOnAMappedImageCoversTheSamePixelsAsOnTheHeap()
+    {
+        BufferedImage mapped = MappedDataBuffer.createImage(600, 300, Color.WHITE.getRGB());
+        BufferedImage heap = ParallelRaster.createFilled(600, 300, Color.WHITE);
+        try {
+            for (BufferedImage image : new BufferedImage[] {mapped, heap})
+            {
+                BrushStroke stroke = new BrushStroke();
+                stroke.begin(image, new UndoHistory(), Color.RED, 33, 240, 10);
+                stroke.moveTo(290, 280); // crosses the tile edge at 256 in both directions
+                stroke.moveTo(590, 5);
+                stroke.end();
+            }
+            assertArrayEquals(pixels(heap), pixels(mapped));
+        } finally {
+            MappedDataBuffer.disposeImage(mapped);
+        }
+    }
+
+    // a dab that is partly outside the image is clipped like fillOval
+    @Test
+    public void dabIsClippedAtTheImageEdges()
+    {
+        BufferedImage direct = new BufferedImage(30, 30, BufferedImage.TYPE_INT_ARGB);
+        BrushStroke stroke = new BrushStroke();
+        stroke.begin(direct, new UndoHistory(), Color.BLUE, 21, 2, 27);
+        stroke.moveTo(28, 1);
+        stroke.end();
+
+        BufferedImage expected = new BufferedImage(30, 30, BufferedImage.TYPE_INT_RGB);
+        stroke.begin(expected, new UndoHistory(), Color.BLUE, 21, 2, 27);
+        stroke.moveTo(28, 1);
+        stroke.end();
+
+        int[] actual = pixels(direct);
+        int[] drawn = pixels(expected);
+        for (int i = 0; i < actual.length; i++)
+        {
+            // the RGB image has no transparent pixels, only the drawn ones are compared
+            actual[i] = actual[i] == 0 ? 0xff000000 : actual[i];
+        }
+        assertArrayEquals(drawn, actual);
+    }
+
+    private static int[] pixels(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CanvasSessionTest
+{
+    private static final int SIZE = 200;
+    private static final Color[] COLORS = {Color.RED, Color.BLUE, Color.GREEN, Color.MAGENTA};
+
+    @TempDir
+    File folder;
+
+    private CanvasServer server;
+
+    @AfterEach
+    public void closeServer()
+    {
+        if (server != null)
+        {
+            server.close();
+        }
+    }
+
+    // operations, undos and redos of both canvases cross on the way to the server,
+    // both canvases end with the same image and log every undo once
+    @Test
+    public void interleavedOperationsEndWithTheSameImage() throws Exception
+    {
+        server = new CanvasServer(0);
+        PaintCanvas first = connect();
+        PaintCanvas second = connect();
+        PaintCanvas[] canvases = {first, second};
+        int undos = 0;
+        for (int round = 0; round < 40; round++)
+        {
+            for (int i = 0; i < canvases.length; i++)
+            {
+                int step = round + i;
+                if (step % 4 == 2)
+                {
+                    undos++;
+                }
+                PaintCanvas canvas = canvases[i];
+                int brush = 5 + i;
+                SwingUtilities.invokeAndWait(() -> draw(canvas, step, brush));
+            }
+            Thread.sleep(2);
+        }
+
+        int[] image = awaitSameImage(canvases);
+        for (PaintCanvas canvas : canvases)
+        {
+            File file = new File(folder, "session.paint");
+            SwingUtilities.invokeAndWait(() -> save(canvas, file));
+            List<CanvasOp> ops = PaintDocument.open(file).readOperations();
+            assertEquals(undos, ops.stream().filter(op -> op.getType() == CanvasOp.UNDO).count());
+
+            // the log of the canvas draws what the session drew
+            PaintCanvas replayed = new PaintCanvas(SIZE, SIZE);
+            replayed.setSize(SIZE, SIZE);
+            SwingUtilities.invokeAndWait(() -> ops.forEach(op -> op.apply(replayed)));
+            assertArrayEquals(image, pixels(replayed));
+        }
+    }
+
+    // a client that joins after the history was trimmed still gets everything after the last clear
+    @Test
+    public void lateClientGetsTheOperationsAfterTheLastClear() throws Exception
+    {
+        server = new CanvasServer(0, 1024);
+        PaintCanvas first = connect();
+        SwingUtilities.invokeAndWait(() ->
+        {
+            for (int step = 0; step < 30; step++)
+            {
+                draw(first, step % 4 == 2 ? 0 : step, 9);
+            }
+            first.clearCanvas();
+            for (int step = 0; step < 6; step++)
+            {
+                draw(first, step % 4 == 2 ? 0 : step, 4);
+            }
+        });
+        PaintCanvas late = connect();
+        awaitSameImage(first, late);
+    }
+
+    private PaintCanvas connect() throws Exception
+    {
+        PaintCanvas[] canvas = new PaintCanvas[1];
+        SwingUtilities.invokeAndWait(() ->
+        {
+            canvas[0] = new PaintCanvas(SIZE, SIZE);
+            canvas[0].setSize(SIZE, SIZE);
+            try {
+                canvas[0].setSession(CanvasSession.connect(canvas[0], "localhost", server.getPort()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return canvas[0];
+    }
+
+    // a stroke, a shape, an undo or a fill (or a redo), depending on the step
+    private static void draw(PaintCanvas canvas, int step, int brush)
+    {
+        canvas.setSelectedColor(COLORS[step % COLORS.length]);
+        canvas.setBrushSize(brush);
+        switch (step % 4) {
+            case 0:
+                canvas.commitShape(ShapeStore.RECTANGLE, 20 + step, 20, 150, 150 - step);
+                break;
+            case 1:
+                canvas.beginStroke(0, 10, 10 + step * 3);
+                canvas.strokeTo(190, 190 - step * 2);
+                canvas.endStroke();
+                break;
+            case 2:
+                canvas.undo();
+                break;
+            default:
+                if (step % 5 == 0)
+                {
+                    canvas.redo();
+                }
+                else
+                {
+                    canvas.fillAt(100, 100, 10);
+                }
+        }
+    }
+
+    private static void save(PaintCanvas canvas, File file)
+    {
+        try {
+            canvas.saveDocument(file);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // waits until the canvases show the same image for a while, the messages of the server arrive asynchronously
+    private static int[] awaitSameImage(PaintCanvas... canvases) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        int[][] images = new int[canvases.length][];
+        int stable = 0;
+        while (true)
+        {
+            SwingUtilities.invokeAndWait(() ->
+            {
+                for (int i = 0; i < canvases.length; i++)
+                {
+                    images[i] = pixels(canvases[i]);
+                }
+            });
+            boolean same = true;
+            for (int i = 1; i < canvases.length; i++)
+            {
+                same &= Arrays.equals(images[0], images[i]);
+            }
+            stable = same ? stable + 1 : 0;
+            if (stable == 5 || System.currentTimeMillis() > deadline)
+            {
+                for (int i = 1; i < canvases.length; i++)
+                {
+                    assertArrayEquals(images[0], images[i], "canvas " + i);
+                }
+                return images[0];
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static int[] pixels(PaintCanvas canvas)
+    {
+        BufferedImage image = canvas.createFlattenedImage();
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
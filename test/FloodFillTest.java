@@ -0,0 +1,168 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class FloodFillTest
+{
+    private static final int FILL = 0xff3366cc;
+
+    // the scanline fill changes the same pixels as a plain 4-connected fill, on the pixel array and through getRGB
+    @Test
+    public void fillMatchesAPixelByPixelFill()
+    {
+        Random random = new Random(3);
+        for (int round = 0; round < 20; round++)
+        {
+            int tolerance = round % 3 == 0 ? 0 : random.nextInt(60);
+            BufferedImage image = blocks(157, 93, random);
+            BufferedImage shapes = round % 2 == 0 ? null : shapes(157, 93, random);
+            int x = random.nextInt(157);
+            int y = random.nextInt(93);
+            int[] expected = referenceFill(image, shapes, x, y, tolerance);
+
+            for (int type : new int[] {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB})
+            {
+                BufferedImage target = copy(image, type); // a TYPE_INT_RGB image is read with getRGB
+                FloodFill fill = FloodFill.find(target, shapes, x, y, FILL, tolerance);
+                if (expected == null)
+                {
+                    assertNull(fill, "round " + round);
+                    continue;
+                }
+                fill.apply(new UndoHistory());
+                assertArrayEquals(expected, pixels(target), "round " + round + " type " + type); // all pixels are opaque
+            }
+        }
+    }
+
+    // the tiles under the fill are saved, undo brings the image back
+    @Test
+    public void undoRestoresTheFilledArea()
+    {
+        BufferedImage image = blocks(300, 200, new Random(5));
+        int[] before = pixels(image);
+        UndoHistory history = new UndoHistory();
+        history.beginEdit(image, new IdList().snapshot());
+        FloodFill fill = FloodFill.find(image, null, 150, 100, FILL, 200);
+        fill.apply(history);
+        assertEquals(300 * 200, fill.getPixelCount()); // every channel of the blocks differs by less than 200
+
+        history.undo(image, new IdList().snapshot());
+        assertArrayEquals(before, pixels(image));
+    }
+
+    // a fill in the color of the area or on a shape changes nothing
+    @Test
+    public void fillThatChangesNothingIsNull()
+    {
+        BufferedImage image = blocks(50, 50, new Random(9));
+        assertNull(FloodFill.find(image, null, 10, 10, image.getRGB(10, 10), 0));
+        BufferedImage shapes = new BufferedImage(50, 50, BufferedImage.TYPE_INT_ARGB);
+        shapes.setRGB(20, 20, 0xff000000);
+        assertNull(FloodFill.find(image, shapes, 20, 20, FILL, 0));
+        assertNull(FloodFill.find(image, null, 50, 10, FILL, 0));
+    }
+
+    // the expected pixels after a fill from (x, y), null if nothing would change
+    private static int[] referenceFill(BufferedImage image, BufferedImage shapes, int x, int y, int tolerance)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = pixels(image);
+        int seed = pixels[y * width + x];
+        if (isShape(shapes, x, y) || tolerance == 0 && seed == FILL)
+        {
+            return null;
+        }
+        boolean[] filled = new boolean[pixels.length];
+        Deque<int[]> queue = new ArrayDeque<>();
+        queue.add(new int[] {x, y});
+        filled[y * width + x] = true;
+        while (!queue.isEmpty())
+        {
+            int[] p = queue.remove();
+            int[][] neighbours = {{p[0] - 1, p[1]}, {p[0] + 1, p[1]}, {p[0], p[1] - 1}, {p[0], p[1] + 1}};
+            for (int[] n : neighbours)
+            {
+                if (n[0] >= 0 && n[1] >= 0 && n[0] < width && n[1] < height && !filled[n[1] * width + n[0]]
+                        && close(pixels[n[1] * width + n[0]], seed, tolerance) && !isShape(shapes, n[0], n[1]))
+                {
+                    filled[n[1] * width + n[0]] = true;
+                    queue.add(n);
+                }
+            }
+        }
+        for (int i = 0; i < pixels.length; i++)
+        {
+            pixels[i] = filled[i] ? FILL : pixels[i];
+        }
+        return pixels;
+    }
+
+    private static boolean close(int a, int b, int tolerance)
+    {
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            if (Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff)) > tolerance)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isShape(BufferedImage shapes, int x, int y)
+    {
+        return shapes != null && shapes.getRGB(x, y) >>> 24 != 0;
+    }
+
+    // blocks of a few similar colors, so areas with holes and narrow passages are filled
+    private static BufferedImage blocks(int width, int height, Random random)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] colors = {0xff808080, 0xff8a8a80, 0xff707880, 0xff202020, 0xffffffff};
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, colors[random.nextInt(100) < 70 ? random.nextInt(2) : random.nextInt(colors.length)]);
+            }
+        }
+        return image;
+    }
+
+    // a few opaque lines like the outlines of shapes
+    private static BufferedImage shapes(int width, int height, Random random)
+    {
+        BufferedImage layer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < 6; i++)
+        {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            for (int j = 0; j < 60; j++)
+            {
+                layer.setRGB(Math.min(x + j, width - 1), y, 0xff000000);
+                layer.setRGB(x, Math.min(y + j, height - 1), 0xff000000);
+            }
+        }
+        return layer;
+    }
+
+    private static BufferedImage copy(BufferedImage image, int type)
+    {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        copy.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels(image), 0, image.getWidth());
+        return copy;
+    }
+
+    private static int[] pixels(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+public class IdListTest
+{
+    // the diff between two snapshots is the difference of their ids, also after chunks were split, copied and removed
+    @Test
+    public void diffOfSnapshotsMatchesTheChangedIds()
+    {
+        Random random = new Random(12);
+        IdList list = new IdList();
+        TreeSet<Integer> ids = new TreeSet<>();
+        List<IdList> snapshots = new ArrayList<>();
+        List<TreeSet<Integer>> expected = new ArrayList<>();
+        int next = 0;
+        for (int step = 0; step < 40; step++)
+        {
+            // mostly new shapes on top, like drawing, some in the middle and some removed
+            for (int i = random.nextInt(400); i > 0; i--)
+            {
+                int id = random.nextInt(10) == 0 && next > 0 ? random.nextInt(next) : next++;
+                list.add(id);
+                ids.add(id);
+            }
+            for (int i = random.nextInt(step % 5 == 0 ? 600 : 40); i > 0 && !ids.isEmpty(); i--)
+            {
+                int id = random.nextInt(next);
+                assertEquals(ids.remove(id), list.remove(id));
+            }
+            snapshots.add(list.snapshot());
+            expected.add(new TreeSet<>(ids));
+        }
+
+        for (int i = 0; i < snapshots.size(); i++)
+        {
+            for (int j = 0; j < snapshots.size(); j += 3)
+            {
+                IntList added = new IntList();
+                IntList removed = new IntList();
+                IdList.diff(snapshots.get(i), snapshots.get(j), added, removed);
+                assertEquals(minus(expected.get(j), expected.get(i)), toList(added), "added from " + i + " to " + j);
+                assertEquals(minus(expected.get(i), expected.get(j)), toList(removed), "removed from " + i + " to " + j);
+            }
+        }
+    }
+
+    // the list and its snapshots keep their own ids when the list changes after the snapshot
+    @Test
+    public void snapshotDoesNotSeeLaterChanges()
+    {
+        IdList list = new IdList();
+        for (int id = 0; id < 3000; id++)
+        {
+            list.add(id);
+        }
+        IdList snapshot = list.snapshot();
+        list.remove(5);
+        list.add(5000);
+        list.clear();
+        list.add(7);
+
+        assertEquals(3000, snapshot.size());
+        IntList added = new IntList();
+        IntList removed = new IntList();
+        IdList.diff(snapshot, list, added, removed);
+        assertEquals(List.of(), toList(added));
+        assertEquals(2999, removed.size());
+        assertEquals(List.of(7), toList(list));
+    }
+
+    private static List<Integer> minus(TreeSet<Integer> ids, TreeSet<Integer> other)
+    {
+        List<Integer> list = new ArrayList<>();
+        for (int id : ids)
+        {
+            if (!other.contains(id))
+            {
+                list.add(id);
+            }
+        }
+        return list;
+    }
+
+    private static List<Integer> toList(IntList values)
+    {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++)
+        {
+            list.add(values.get(i));
+        }
+        return list;
+    }
+
+    private static List<Integer> toList(IdList ids)
+    {
+        List<Integer> list = new ArrayList<>();
+        ids.forEach(list::add);
+        return list;
+    }
+}
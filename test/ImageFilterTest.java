@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class ImageFilterTest
+{
+    // filtering in place keeps the unfiltered rows for the next chunk, so it gives the same pixels as the preview,
+    // which writes into another image, and the pixels outside the area do not change
+    @Test
+    public void inPlaceFilterMatchesThePreview()
+    {
+        int chunkRows = 64 * 4 * Runtime.getRuntime().availableProcessors();
+        int height = chunkRows + 150; // at least two chunks
+        BufferedImage image = noise(60, height, 4);
+        Rectangle area = new Rectangle(7, 3, 45, height - 10);
+        for (ImageFilter filter : new ImageFilter[] {new ImageFilter(ImageFilter.BLUR, 9, 0),
+                new ImageFilter(ImageFilter.SHARPEN, 150, 0), new ImageFilter(ImageFilter.GRAYSCALE, 0, 0)})
+        {
+            BufferedImage preview = filter.preview(image, area);
+            BufferedImage filtered = copy(image);
+            filter.apply(filtered, area);
+
+            int[] before = pixels(image);
+            int[] after = pixels(filtered);
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < 60; x++)
+                {
+                    int expected = area.contains(x, y) ? preview.getRGB(x - area.x, y - area.y) : before[y * 60 + x];
+                    assertEquals(expected, after[y * 60 + x], filter.getType() + " at " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    // an image in a scratch file is filtered a tile row at a time, the result is the same as on the heap
+    @Test
+    public void mappedImageIsFilteredLikeAHeapImage()
+    {
+        BufferedImage heap = noise(300, 280, 8);
+        BufferedImage mapped = MappedDataBuffer.createImage(300, 280, 0);
+        try {
+            mapped.setRGB(0, 0, 300, 280, pixels(heap), 0, 300);
+            ImageFilter filter = new ImageFilter(ImageFilter.BLUR, 5, 0);
+            filter.apply(heap, new Rectangle(0, 0, 300, 280));
+            filter.apply(mapped, new Rectangle(0, 0, 300, 280));
+            assertArrayEquals(pixels(heap), pixels(mapped));
+        } finally {
+            MappedDataBuffer.disposeImage(mapped);
+        }
+    }
+
+    // the colors are premultiplied while they are blurred, the transparent pixels do not darken the edge
+    @Test
+    public void blurDoesNotDarkenTransparentEdges()
+    {
+        BufferedImage image = new BufferedImage(80, 40, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 40; y++)
+        {
+            for (int x = 40; x < 80; x++)
+            {
+                image.setRGB(x, y, 0xffff0000);
+            }
+        }
+        new ImageFilter(ImageFilter.BLUR, 6, 0).apply(image, new Rectangle(0, 0, 80, 40));
+        for (int x = 0; x < 80; x++)
+        {
+            int p = image.getRGB(x, 20);
+            int alpha = p >>> 24;
+            if (alpha > 20) // very transparent pixels lose precision
+            {
+                assertTrue(((p >> 16) & 0xff) >= 245 && (p & 0xffff) <= 0x0a0a, Integer.toHexString(p) + " at " + x);
+            }
+        }
+        assertEquals(0, image.getRGB(0, 20) >>> 24);
+        assertEquals(0xffff0000, image.getRGB(79, 20));
+    }
+
+    @Test
+    public void colorFiltersChangeEveryPixelOnItsOwn()
+    {
+        BufferedImage image = noise(50, 30, 2);
+        int[] before = pixels(image);
+
+        BufferedImage unchanged = copy(image);
+        new ImageFilter(ImageFilter.BRIGHTNESS_CONTRAST, 0, 0).apply(unchanged, new Rectangle(0, 0, 50, 30));
+        assertArrayEquals(before, pixels(unchanged));
+
+        BufferedImage white = copy(image);
+        new ImageFilter(ImageFilter.BRIGHTNESS_CONTRAST, 100, 0).apply(white, new Rectangle(0, 0, 50, 30));
+        BufferedImage grayImage = copy(image);
+        new ImageFilter(ImageFilter.GRAYSCALE, 0, 0).apply(grayImage, new Rectangle(0, 0, 50, 30));
+        int[] gray = pixels(grayImage);
+        int[] whitePixels = pixels(white);
+        for (int i = 0; i < before.length; i++)
+        {
+            int p = before[i];
+            assertEquals(p | 0x00ffffff, whitePixels[i]); // the alpha stays
+            int luma = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29 + 128) >> 8;
+            assertEquals((p & 0xff000000) | luma * 0x010101, gray[i]);
+        }
+    }
+
+    private static BufferedImage noise(int width, int height, long seed)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                // mostly opaque like a canvas, some transparent pixels like a layer
+                int alpha = random.nextInt(8) == 0 ? random.nextInt(256) : 255;
+                image.setRGB(x, y, alpha << 24 | random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image)
+    {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        copy.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels(image), 0, image.getWidth());
+        return copy;
+    }
+
+    private static int[] pixels(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
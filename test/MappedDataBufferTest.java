@@ -0,0 +1,51 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class MappedDataBufferTest
+{
+    // the rows are read and written a tile row at a time, they must give the same pixels as getRGB and setRGB
+    @Test
+    public void rowsAcrossTilesMatchGetRgbAndSetRgb()
+    {
+        BufferedImage argb = MappedDataBuffer.createImage(700, 300, 0xffffffff);
+        BufferedImage rgb = MappedDataBuffer.createRgbImage(700, 300);
+        try {
+            for (BufferedImage image : new BufferedImage[] {argb, rgb})
+            {
+                int[] row = new int[600];
+                Random random = new Random(7);
+                for (int i = 0; i < row.length; i++)
+                {
+                    row[i] = random.nextInt();
+                }
+                MappedDataBuffer.setRow(image, 50, 255, row.length, row, 0);
+                MappedDataBuffer.fillRow(image, 250, 256, 300, 0x80123456);
+
+                int[] expected = new int[700 * 300];
+                BufferedImage heap = new BufferedImage(700, 300,
+                        image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                heap.setRGB(0, 0, 700, 300, image.getRGB(0, 0, 700, 300, null, 0, 700), 0, 700);
+                heap.setRGB(50, 255, row.length, 1, row, 0, row.length);
+                for (int x = 250; x < 550; x++)
+                {
+                    heap.setRGB(x, 256, 0x80123456);
+                }
+                heap.getRGB(0, 0, 700, 300, expected, 0, 700);
+
+                int[] actual = new int[700 * 300];
+                for (int y = 0; y < 300; y++)
+                {
+                    MappedDataBuffer.getRow(image, 0, y, 700, actual, y * 700);
+                }
+                assertArrayEquals(expected, actual);
+                assertArrayEquals(expected, image.getRGB(0, 0, 700, 300, null, 0, 700));
+            }
+        } finally {
+            MappedDataBuffer.disposeImage(argb);
+            MappedDataBuffer.disposeImage(rgb);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OperationJournalTest
+{
+    @TempDir
+    File folder;
+
+    // a crash in the middle of a write leaves a record that is cut off, it is dropped and the next one follows the last good one
+    @Test
+    public void tornTailIsCutOff() throws IOException
+    {
+        File file = new File(folder, "torn.journal");
+        List<CanvasOp> ops = strokes(5);
+        write(file, ops);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(raf.length() - 3);
+        }
+
+        OperationJournal journal = OperationJournal.open(file);
+        assertEquals(describe(ops.subList(0, 4)), describe(journal.getOperations()));
+        CanvasOp next = new CanvasOp(CanvasOp.BRUSH_SIZE, 12);
+        journal.append(next);
+        journal.close(false);
+
+        List<CanvasOp> expected = new ArrayList<>(ops.subList(0, 4));
+        expected.add(next);
+        journal = OperationJournal.open(file);
+        assertEquals(describe(expected), describe(journal.getOperations()));
+        journal.close(true);
+    }
+
+    // a record with a wrong checksum ends the journal, the operations before it are recovered
+    @Test
+    public void corruptRecordEndsTheJournal() throws IOException
+    {
+        File file = new File(folder, "corrupt.journal");
+        List<CanvasOp> ops = strokes(5);
+        write(file, ops);
+        long end = file.length();
+        for (int i = ops.size() - 1; i > 2; i--)
+        {
+            end -= 8 + size(ops.get(i));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.seek(end - 1); // the last byte of the third record
+            int value = raf.read();
+            raf.seek(end - 1);
+            raf.write(value ^ 0x55);
+        }
+
+        OperationJournal journal = OperationJournal.open(file);
+        assertEquals(describe(ops.subList(0, 2)), describe(journal.getOperations()));
+        journal.close(true);
+    }
+
+    // the operations appended while the writer is busy are written with the next batch, after flush() all are on the disk
+    @Test
+    public void flushWritesEveryAppendedOperation() throws IOException
+    {
+        File file = new File(folder, "group.journal");
+        OperationJournal journal = OperationJournal.open(file);
+        journal.restart(OperationJournal.BASE_EMPTY, null, 640, 480);
+        List<CanvasOp> ops = strokes(500);
+        for (CanvasOp op : ops)
+        {
+            journal.append(op);
+        }
+        journal.flush();
+
+        // a copy of the file is what a crash right after the flush leaves
+        File copy = new File(folder, "copy.journal");
+        Files.copy(file.toPath(), copy.toPath());
+        journal.close(true);
+        OperationJournal recovered = OperationJournal.open(copy);
+        assertEquals(OperationJournal.BASE_EMPTY, recovered.getBaseType());
+        assertEquals(640, recovered.getWidth());
+        assertEquals(480, recovered.getHeight());
+        assertEquals(describe(ops), describe(recovered.getOperations()));
+        recovered.close(true);
+    }
+
+    // the journal of a canvas puts a new canvas into the same state, also with undo, redo and a grown canvas
+    @Test
+    public void recoveredCanvasEqualsTheOriginal() throws IOException
+    {
+        File file = new File(folder, "canvas.journal");
+        PaintCanvas canvas = new PaintCanvas(300, 200);
+        canvas.setSize(300, 200);
+        OperationJournal original = OperationJournal.open(file);
+        canvas.setJournal(original);
+        canvas.setSelectedColor(Color.RED);
+        canvas.setBrushSize(9);
+        canvas.beginStroke(0, 10, 10);
+        canvas.strokeTo(280, 150);
+        canvas.endStroke();
+        canvas.setSelectedColor(Color.BLUE);
+        canvas.commitShape(ShapeStore.RECTANGLE, 40, 30, 200, 170);
+        canvas.fillAt(100, 100, 10);
+        canvas.undo();
+        canvas.setSelectedColor(new Color(0x8000ff00, true));
+        canvas.commitShape(ShapeStore.CIRCLE, 150, 20, 260, 120);
+        canvas.undo();
+        canvas.redo();
+        canvas.growCanvas(420, 260);
+        canvas.setBrushSize(3);
+        canvas.beginStroke(5, 0, 250); // the eraser in the new area
+        canvas.strokeTo(410, 0);
+        canvas.endStroke();
+        canvas.applyFilter(new ImageFilter(ImageFilter.BLUR, 2, 0));
+        BufferedImage expected = canvas.createFlattenedImage();
+        canvas.dispose();
+        original.close(false); // kept like after a crash, the lock is released for the second open in this JVM
+
+        OperationJournal journal = OperationJournal.open(file);
+        List<Integer> types = new ArrayList<>();
+        journal.getOperations().forEach(op -> types.add(op.getType()));
+        assertTrue(types.containsAll(List.of(CanvasOp.UNDO, CanvasOp.REDO, CanvasOp.RESIZE, CanvasOp.FILTER)), types.toString());
+        PaintCanvas recovered = new PaintCanvas(300, 200);
+        recovered.setSize(300, 200);
+        recovered.recoverSession(journal);
+        BufferedImage actual = recovered.createFlattenedImage();
+        recovered.dispose();
+        journal.close(true);
+
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(pixels(expected), pixels(actual));
+    }
+
+    private static void write(File file, List<CanvasOp> ops) throws IOException
+    {
+        OperationJournal journal = OperationJournal.open(file);
+        journal.restart(OperationJournal.BASE_EMPTY, null, 100, 80);
+        for (CanvasOp op : ops)
+        {
+            journal.append(op);
+        }
+        journal.close(false);
+    }
+
+    private static List<CanvasOp> strokes(int count)
+    {
+        List<CanvasOp> ops = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            ops.add(new CanvasOp(CanvasOp.STROKE, 0, i, 2 * i, 50 + i, 60 - i, 70, 10 + i));
+        }
+        return ops;
+    }
+
+    private static int size(CanvasOp op) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        op.write(new DataOutputStream(bytes));
+        return bytes.size();
+    }
+
+    private static int[] pixels(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static List<String> describe(List<CanvasOp> ops)
+    {
+        List<String> list = new ArrayList<>();
+        for (CanvasOp op : ops)
+        {
+            list.add(op.getType() + " " + Arrays.toString(op.getArgs()));
+        }
+        return list;
+    }
+}
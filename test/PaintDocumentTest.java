@@ -0,0 +1,222 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PaintDocumentTest
+{
+    @TempDir
+    File folder;
+
+    @Test
+    public void savedDocumentOpensWithTheSameImageShapesAndOperations() throws IOException
+    {
+        BufferedImage image = ParallelRaster.createFilled(600, 300, Color.WHITE);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(250, 100, 300, 150);
+        g.dispose();
+        ShapeStore shapes = new ShapeStore();
+        shapes.add(10, 20, 200, 120, Color.BLUE, 4, ShapeStore.RECTANGLE);
+        int removed = shapes.add(5, 5, 50, 50, Color.GREEN, 2, ShapeStore.LINE);
+        shapes.add(300, 10, 400, 90, new Color(0x80ff0000, true), 7, ShapeStore.CIRCLE);
+        shapes.remove(removed);
+        List<CanvasOp> ops = List.of(new CanvasOp(CanvasOp.COLOR, 0xffff0000),
+                new CanvasOp(CanvasOp.STROKE, 0, 10, 10, 40, 50), new CanvasOp(CanvasOp.UNDO));
+
+        File file = new File(folder, "drawing.paint");
+        new PaintDocument(file).save(image, new LayerStack(), layer -> new BitSet(), 64, shapes, ops);
+
+        PaintDocument opened = PaintDocument.open(file);
+        assertArrayEquals(pixels(image), pixels(opened.readImage()));
+        ShapeStore openedShapes = new ShapeStore();
+        assertEquals(ids(shapes.getIds()), ids(opened.readShapes(openedShapes)));
+        assertEquals(shapes.capacity(), openedShapes.capacity());
+        assertEquals(describe(ops), describe(opened.readOperations()));
+    }
+
+    @Test
+    public void layersAreSavedWithTheirPixelsAndProperties() throws IOException
+    {
+        BufferedImage image = ParallelRaster.createFilled(700, 400, Color.WHITE);
+        LayerStack layers = new LayerStack();
+        Layer lower = layers.add(700, 400);
+        fill(lower.getImage(), 0xff00ff00, 20, 30, 300, 200);
+        lower.setOpacity(40);
+        lower.setBlendMode(Layer.MULTIPLY);
+        Layer upper = layers.add(700, 400);
+        fill(upper.getImage(), 0x800000ff, 500, 300, 150, 90);
+        upper.setName("Sky");
+        upper.setVisible(false);
+        layers.get(0).setOpacity(70);
+        layers.setActive(1);
+
+        File file = new File(folder, "layers.paint");
+        new PaintDocument(file).save(image, layers, layer -> new BitSet(), 64, new ShapeStore(), List.of());
+
+        PaintDocument opened = PaintDocument.open(file);
+        assertArrayEquals(pixels(image), pixels(opened.readImage()));
+        LayerStack openedLayers = new LayerStack();
+        opened.readLayers(openedLayers);
+        assertEquals(3, openedLayers.size());
+        assertEquals(1, openedLayers.getActiveIndex());
+        assertEquals(70, openedLayers.get(0).getOpacity());
+        for (int i = 1; i < 3; i++)
+        {
+            Layer expected = layers.get(i);
+            Layer actual = openedLayers.get(i);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.isVisible(), actual.isVisible());
+            assertEquals(expected.getOpacity(), actual.getOpacity());
+            assertEquals(expected.getBlendMode(), actual.getBlendMode());
+            assertArrayEquals(pixels(expected.getImage()), pixels(actual.getImage()));
+        }
+    }
+
+    // an append writes the changed tiles of a layer and keeps the tiles of the layers that were moved
+    @Test
+    public void appendFollowsChangedMovedAndRemovedLayers() throws IOException
+    {
+        BufferedImage image = ParallelRaster.createFilled(600, 600, Color.WHITE);
+        LayerStack layers = new LayerStack();
+        for (int i = 0; i < 3; i++)
+        {
+            fill(layers.add(600, 600).getImage(), 0xff000000 | (0x40 << (i * 8)), 100 * i, 50, 200, 400);
+        }
+        File file = new File(folder, "moved.paint");
+        PaintDocument document = new PaintDocument(file);
+        document.save(image, layers, layer -> new BitSet(), 64, new ShapeStore(), List.of());
+        long firstSize = file.length();
+
+        layers.move(3, 1);
+        layers.remove(2);
+        Layer changedLayer = layers.get(2);
+        fill(changedLayer.getImage(), 0xffffffff, 0, 0, 10, 10);
+        BitSet changed = new BitSet();
+        changed.set(0);
+        document.save(image, layers, layer -> layer == changedLayer ? changed : new BitSet(), 64, new ShapeStore(), List.of());
+
+        assertTrue(file.length() - firstSize < firstSize / 2, "the append wrote " + (file.length() - firstSize) + " bytes");
+        LayerStack openedLayers = new LayerStack();
+        PaintDocument.open(file).readLayers(openedLayers);
+        assertEquals(layers.size(), openedLayers.size());
+        for (int i = 1; i < layers.size(); i++)
+        {
+            assertEquals(layers.get(i).getName(), openedLayers.get(i).getName());
+            assertArrayEquals(pixels(layers.get(i).getImage()), pixels(openedLayers.get(i).getImage()));
+        }
+    }
+
+    // a save of a few changed tiles appends them and keeps the older tiles and operations
+    @Test
+    public void appendWritesOnlyTheChangedTiles() throws IOException
+    {
+        BufferedImage image = noise(1024, 1024, 1);
+        ShapeStore shapes = new ShapeStore();
+        LayerStack background = new LayerStack();
+        File file = new File(folder, "append.paint");
+        PaintDocument document = new PaintDocument(file);
+        document.save(image, background, layer -> new BitSet(), 64, shapes, List.of(new CanvasOp(CanvasOp.BRUSH_SIZE, 8)));
+        long firstSize = file.length();
+
+        // one undo tile of 64px in the middle of the image, it is inside one document tile
+        image.setRGB(600, 600, 0xff123456);
+        BitSet changed = new BitSet();
+        changed.set(9 * 16 + 9);
+        document.save(image, background, layer -> changed, 64, shapes, List.of(new CanvasOp(CanvasOp.CLEAR)));
+
+        assertTrue(file.length() - firstSize < firstSize / 8, "the append wrote " + (file.length() - firstSize) + " bytes");
+        PaintDocument opened = PaintDocument.open(file);
+        assertArrayEquals(pixels(image), pixels(opened.readImage()));
+        assertEquals(List.of("7 [8]", "3 []"), describe(opened.readOperations()));
+    }
+
+    // a rewrite of the file that fails leaves the old file, and the next save writes a complete one
+    @Test
+    public void failedRewriteKeepsTheDocumentComplete() throws IOException
+    {
+        ShapeStore shapes = new ShapeStore();
+        LayerStack background = new LayerStack();
+        File file = new File(folder, "compact.paint");
+        PaintDocument document = new PaintDocument(file);
+        document.save(noise(1024, 1024, 1), background, layer -> new BitSet(), 64, shapes, List.of(new CanvasOp(CanvasOp.BRUSH_SIZE, 3)));
+        // a new image object writes all tiles again, after two of them the old tiles are more than half of the file
+        document.save(noise(1024, 1024, 2), background, layer -> new BitSet(), 64, shapes, List.of());
+        BufferedImage image = noise(1024, 1024, 3);
+        document.save(image, background, layer -> new BitSet(), 64, shapes, List.of(new CanvasOp(CanvasOp.BRUSH_SIZE, 4)));
+
+        File part = new File(folder, "compact.paint.part");
+        assertTrue(new File(part, "blocker").mkdirs()); // the temp file cannot be created
+        assertThrows(IOException.class,
+                () -> document.save(image, background, layer -> new BitSet(), 64, shapes, List.of(new CanvasOp(CanvasOp.BRUSH_SIZE, 5))));
+        assertEquals(List.of("7 [3]", "7 [4]"), describe(PaintDocument.open(file).readOperations()));
+
+        Files.delete(new File(part, "blocker").toPath());
+        Files.delete(part.toPath());
+        document.save(image, background, layer -> new BitSet(), 64, shapes, List.of(new CanvasOp(CanvasOp.BRUSH_SIZE, 6)));
+
+        PaintDocument opened = PaintDocument.open(file);
+        assertArrayEquals(pixels(image), pixels(opened.readImage()));
+        assertEquals(List.of("7 [3]", "7 [4]", "7 [6]"), describe(opened.readOperations()));
+    }
+
+    private static BufferedImage noise(int width, int height, long seed)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = new int[width * height];
+        Random random = new Random(seed);
+        for (int i = 0; i < pixels.length; i++)
+        {
+            pixels[i] = 0xff000000 | random.nextInt(); // random pixels do not compress
+        }
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    private static void fill(BufferedImage image, int argb, int x, int y, int width, int height)
+    {
+        for (int row = y; row < y + height; row++)
+        {
+            for (int column = x; column < x + width; column++)
+            {
+                image.setRGB(column, row, argb);
+            }
+        }
+    }
+
+    private static int[] pixels(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static List<Integer> ids(IdList ids)
+    {
+        List<Integer> list = new ArrayList<>();
+        ids.forEach(list::add);
+        return list;
+    }
+
+    private static List<String> describe(List<CanvasOp> ops)
+    {
+        List<String> list = new ArrayList<>();
+        for (CanvasOp op : ops)
+        {
+            list.add(op.getType() + " " + Arrays.toString(op.getArgs()));
+        }
+        return list;
+    }
+}